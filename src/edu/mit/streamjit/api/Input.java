@@ -24,14 +24,21 @@ package edu.mit.streamjit.api;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.invoke.MethodHandles;
 import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.RandomAccess;
@@ -45,7 +52,9 @@ import edu.mit.streamjit.impl.blob.Buffer;
 import edu.mit.streamjit.impl.blob.Buffers;
 import edu.mit.streamjit.impl.blob.PeekableBuffer;
 import edu.mit.streamjit.impl.common.InputBufferFactory;
+import edu.mit.streamjit.impl.common.MappedFileBuffer;
 import edu.mit.streamjit.impl.common.NIOBuffers;
+import edu.mit.streamjit.impl.common.SplitTextFileBuffer;
 
 /**
  * A source of input to a stream graph.
@@ -125,21 +134,56 @@ public class Input<I> {
 		});
 	}
 
+	/**
+	 * Creates an Input containing the items of the given primitive wrapper
+	 * type in the given file, in the given byte order.  Files too big to map
+	 * all at once (over 2 GB) are read through a sliding window of mapped
+	 * regions; see {@link #fromBinaryFile(Path, Class, ByteOrder, int)}.
+	 * @param <I> the type of Input to create
+	 * @param path the file to read
+	 * @param type the primitive wrapper type of the items
+	 * @param byteOrder the byte order of the file
+	 * @return an Input containing the file's items
+	 */
 	public static <I> Input<I> fromBinaryFile(Path path, Class<I> type, ByteOrder byteOrder) {
+		return fromBinaryFile(path, type, byteOrder, 0);
+	}
+
+	/**
+	 * Creates an Input containing the items of the given primitive wrapper
+	 * type in the given file, in the given byte order, mapping the file in
+	 * regions of the given size.  Only a few regions are mapped at once, and
+	 * the next region is mapped and paged in on a background thread, so the
+	 * file can be of any size.
+	 * @param <I> the type of Input to create
+	 * @param path the file to read
+	 * @param type the primitive wrapper type of the items
+	 * @param byteOrder the byte order of the file
+	 * @param regionBytes the size of each mapped region, a multiple of 8, or 0
+	 * to map the whole file at once if it fits
+	 * @return an Input containing the file's items
+	 */
+	public static <I> Input<I> fromBinaryFile(Path path, Class<I> type, ByteOrder byteOrder, int regionBytes) {
 		checkArgument(Primitives.isWrapperType(type) && !type.equals(Void.class), "not a wrapper type: %s", type);
+		checkArgument(regionBytes >= 0 && regionBytes % Long.BYTES == 0, "bad region size %s", regionBytes);
 		class BinaryFileRealInput extends InputBufferFactory {
 			private final Path path;
 			private final Class<?> type;
 			private final ByteOrder byteOrder;
-			private BinaryFileRealInput(Path path, Class<?> type, ByteOrder byteOrder) {
+			private final int regionBytes;
+			private BinaryFileRealInput(Path path, Class<?> type, ByteOrder byteOrder, int regionBytes) {
 				this.path = path;
 				this.type = type;
 				this.byteOrder = byteOrder;
+				this.regionBytes = regionBytes;
 			}
 			@Override
 			public Buffer createReadableBuffer(int readerMinSize) {
 				MappedByteBuffer file = null;
 				try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+					if (regionBytes != 0 || fc.size() > Integer.MAX_VALUE)
+						return MappedFileBuffer.create(path, type, byteOrder,
+								regionBytes != 0 ? regionBytes : MappedFileBuffer.DEFAULT_REGION_BYTES);
 					file = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
 				} catch (IOException ex) {
 					throw new RuntimeException(ex);
@@ -149,10 +193,11 @@ public class Input<I> {
 			}
 			@Override
 			public String toString(){
-				return "Input.fromBinaryFile("+path+", "+type.getSimpleName()+".class, "+byteOrder+")";
+				return "Input.fromBinaryFile("+path+", "+type.getSimpleName()+".class, "+byteOrder
+						+(regionBytes != 0 ? ", "+regionBytes : "")+")";
 			}
 		}
-		return new Input<>(new BinaryFileRealInput(path, type, byteOrder));
+		return new Input<>(new BinaryFileRealInput(path, type, byteOrder, regionBytes));
 	}
 
 	/**
@@ -266,52 +311,306 @@ public class Input<I> {
 		});
 	}
 
-	private static class TextFileBuffer extends AbstractReadOnlyBuffer {
+	/**
+	 * Splits a text file into records on a read-ahead thread, handing them to
+	 * the reader in batches (one per decoded chunk).  The stream treats an
+	 * input buffer that runs dry as the end of its input, so size() and the
+	 * reads wait for the read-ahead thread to get far enough ahead (the
+	 * reader's minimum size, or the end of the file) rather than report a
+	 * temporary shortage.  The thread stops, closing the file, at the end of
+	 * the file or when the stream drains and the Input is closed.
+	 */
+	private static final class TextFileBuffer extends AbstractReadOnlyBuffer {
+		private static final int CHUNK_CHARS = 1 << 16;
+		private final Reader reader;
+		private final char delimiter;
+		private final boolean views;
+		private final int target, capacity;
+		/* guarded by this */
+		private final ArrayDeque<Object[]> batches = new ArrayDeque<>();
+		private int queued;
+		private boolean eof, closed;
+		private IOException failure;
+		/* only accessed by the (single) reader */
+		private Object[] current = new Object[0];
+		private int currentIndex;
+
+		TextFileBuffer(Path path, Charset charset, char delimiter, boolean views, int readerMinSize) throws IOException {
+			this.reader = new InputStreamReader(Files.newInputStream(path), charset.newDecoder());
+			this.delimiter = delimiter;
+			this.views = views;
+			this.target = Math.max(readerMinSize, 1);
+			this.capacity = Math.max(2 * target, 1 << 14);
+			Thread thread = new Thread(this::readAhead, "Input.fromTextFile("+path+") read-ahead");
+			thread.setDaemon(true);
+			thread.start();
+		}
 
-		final BufferedReader reader;
-		String next;
+		private void readAhead() {
+			char[] buf = new char[CHUNK_CHARS];
+			int filled = 0;
+			List<Object> records = new ArrayList<>();
+			try (Reader r = reader) {
+				int n;
+				while ((n = r.read(buf, filled, buf.length - filled)) != -1) {
+					filled += n;
+					int start = 0;
+					for (int i = start; i < filled; ++i)
+						if (buf[i] == delimiter) {
+							records.add(record(buf, start, i));
+							start = i + 1;
+						}
+					//Move the partial record to the front of the next chunk
+					//(a fresh one if views may point into this one), growing
+					//it if the record fills it.
+					int partial = filled - start;
+					char[] next = views || partial == buf.length ? new char[Math.max(buf.length, 2 * partial)] : buf;
+					System.arraycopy(buf, start, next, 0, partial);
+					buf = next;
+					filled = partial;
+					if (!records.isEmpty()) {
+						if (!put(records.toArray()))
+							return;
+						records.clear();
+					}
+				}
+				if (filled > 0)
+					put(new Object[]{record(buf, 0, filled)});
+			} catch (IOException ex) {
+				synchronized (this) {
+					failure = ex;
+				}
+			} catch (InterruptedException ex) {
+				//give up
+			} finally {
+				synchronized (this) {
+					eof = true;
+					notifyAll();
+				}
+			}
+		}
 
-		TextFileBuffer(Path path) throws IOException {
-			this.reader = new BufferedReader(new FileReader(path.toFile()));
-			next = reader.readLine();
+		private Object record(char[] buf, int start, int end) {
+			//Like BufferedReader.readLine(), treat \r\n as a line separator.
+			if (delimiter == '\n' && end > start && buf[end - 1] == '\r')
+				--end;
+			return views ? CharBuffer.wrap(buf, start, end - start).slice() : new String(buf, start, end - start);
+		}
+
+		/**
+		 * Queues a batch for the reader, waiting while the queue is full.
+		 * Returns false (and drops the batch) if the buffer has been closed,
+		 * in which case the read-ahead thread should stop.
+		 */
+		private synchronized boolean put(Object[] batch) throws InterruptedException {
+			while (queued >= capacity && !closed)
+				wait();
+			if (closed)
+				return false;
+			batches.addLast(batch);
+			queued += batch.length;
+			notifyAll();
+			return true;
+		}
+
+		/**
+		 * Stops the read-ahead thread (which closes the file) and discards
+		 * any queued records.  Called when the stream has drained, possibly
+		 * before reading the whole file.
+		 */
+		synchronized void close() {
+			closed = true;
+			batches.clear();
+			queued = 0;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until at least the given number of items are available to the
+		 * reader, or the read-ahead thread finishes.
+		 */
+		private synchronized void await(int items) {
+			boolean interrupted = false;
+			while (current.length - currentIndex + queued < items && !eof)
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (failure != null)
+				throw new RuntimeException(failure);
+		}
+
+		/**
+		 * Returns the items remaining in the current batch, moving to the next
+		 * batch if the current one is used up.
+		 */
+		private int remaining() {
+			if (currentIndex == current.length)
+				synchronized (this) {
+					if (batches.isEmpty())
+						return 0;
+					current = batches.removeFirst();
+					currentIndex = 0;
+					queued -= current.length;
+					notifyAll();
+				}
+			return current.length - currentIndex;
 		}
 
 		@Override
-		public String read() {
-			String cur = next;
-			try {
-				next = reader.readLine();
-			} catch (IOException e) {
-				e.printStackTrace();
+		public Object read() {
+			await(1);
+			if (remaining() == 0)
+				return null;
+			Object item = current[currentIndex];
+			current[currentIndex++] = null;
+			return item;
+		}
+
+		@Override
+		public int read(Object[] data, int offset, int length) {
+			await(Math.min(length, target));
+			int read = 0, n;
+			while (read < length && (n = remaining()) > 0) {
+				n = Math.min(n, length - read);
+				System.arraycopy(current, currentIndex, data, offset + read, n);
+				Arrays.fill(current, currentIndex, currentIndex + n, null);
+				currentIndex += n;
+				read += n;
 			}
-			return cur;
+			return read;
+		}
+
+		@Override
+		public boolean readAll(Object[] data, int offset) {
+			int required = data.length - offset;
+			if (required > size())
+				return false;
+			int read = read(data, offset, required);
+			assert read == required : read + " " + required;
+			return true;
 		}
 
 		@Override
 		public int size() {
-			int size = next == null ? 0 : 1;
-			return size;
+			await(target);
+			synchronized (this) {
+				return current.length - currentIndex + queued;
+			}
 		}
 	}
 
+	/**
+	 * Creates an Input containing the lines of the given file, decoded with
+	 * the platform default charset.  Equivalent to
+	 * {@code fromTextFile(path, Charset.defaultCharset(), '\n')}.
+	 * @param path the file to read
+	 * @return an Input containing the file's lines
+	 */
 	public static Input<String> fromTextFile(Path path) {
-		class TextFileInput extends InputBufferFactory {
-			final Path path;
-			TextFileInput(Path path) {
+		return fromTextFile(path, Charset.defaultCharset(), '\n');
+	}
+
+	/**
+	 * Creates an Input containing the records of the given file, decoded with
+	 * the given charset and separated by the given delimiter (which is not
+	 * included in the records).  If the delimiter is '\n', a preceding '\r' is
+	 * also removed, as by {@link BufferedReader#readLine()}.  The file is
+	 * decoded in large chunks on a read-ahead thread.
+	 * @param path the file to read
+	 * @param charset the file's charset
+	 * @param delimiter the record delimiter
+	 * @return an Input containing the file's records
+	 */
+	public static Input<String> fromTextFile(Path path, Charset charset, char delimiter) {
+		return new Input<>(new TextFileInput(path, charset, delimiter, false));
+	}
+
+	/**
+	 * Creates an Input containing the records of the given file as in
+	 * {@link #fromTextFile(Path, Charset, char)}, but as CharSequence views of
+	 * the decoded chunks rather than as fresh Strings.  This saves a copy per
+	 * record for workers that only parse their input, but each record keeps
+	 * its whole chunk reachable, so workers that keep records should copy
+	 * them with toString().
+	 * @param path the file to read
+	 * @param charset the file's charset
+	 * @param delimiter the record delimiter
+	 * @return an Input containing the file's records
+	 */
+	public static Input<CharSequence> fromTextFileAsCharSequences(Path path, Charset charset, char delimiter) {
+		return new Input<>(new TextFileInput(path, charset, delimiter, true));
+	}
+
+	/**
+	 * Creates an Input containing the lines of the given file, which can be
+	 * read out of order: the file is split at newlines into chunks that are
+	 * mapped and indexed in parallel, and lines are decoded only when read.
+	 * When the first worker in the graph is stateless and gets split across
+	 * cores, Compiler2 lets each core read (and decode) its own lines directly
+	 * from the file, rather than having one thread read all the lines.
+	 * (Binary files from {@link #fromBinaryFile(Path, Class, ByteOrder)} can
+	 * already be read that way.)  Lines end at '\n', with a preceding '\r'
+	 * removed.
+	 * @param path the file to read
+	 * @param charset the file's charset: US-ASCII, ISO-8859-1 or UTF-8
+	 * @return an Input containing the file's lines
+	 */
+	public static Input<String> fromSplittableTextFile(Path path, Charset charset) {
+		class SplittableTextFileInput extends InputBufferFactory {
+			private final Path path;
+			private final Charset charset;
+			private SplittableTextFileInput(Path path, Charset charset) {
 				this.path = path;
+				this.charset = charset;
 			}
-
 			@Override
 			public Buffer createReadableBuffer(int readerMinSize) {
-				Buffer b = null;
-				try {
-					b = new TextFileBuffer(path);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				return b;
+				return SplitTextFileBuffer.create(path, charset, SplitTextFileBuffer.DEFAULT_SPLIT_BYTES, readerMinSize);
 			}
+			@Override
+			public String toString() {
+				return "Input.fromSplittableTextFile("+path+", "+charset+")";
+			}
+		}
+		return new Input<>(new SplittableTextFileInput(path, charset));
+	}
+
+	private static final class TextFileInput extends InputBufferFactory {
+		private final Path path;
+		private final Charset charset;
+		private final char delimiter;
+		private final boolean views;
+		private final List<TextFileBuffer> buffers = new ArrayList<>(1);
+		private TextFileInput(Path path, Charset charset, char delimiter, boolean views) {
+			this.path = path;
+			this.charset = charset;
+			this.delimiter = delimiter;
+			this.views = views;
+		}
+		@Override
+		public synchronized Buffer createReadableBuffer(int readerMinSize) {
+			TextFileBuffer buffer;
+			try {
+				buffer = new TextFileBuffer(path, charset, delimiter, views, readerMinSize);
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+			buffers.add(buffer);
+			return buffer;
+		}
+		@Override
+		public synchronized void close() {
+			for (TextFileBuffer b : buffers)
+				b.close();
+			buffers.clear();
+		}
+		@Override
+		public String toString() {
+			return "Input.fromTextFile("+path+", "+charset+", "+(int)delimiter+(views ? ", views" : "")+")";
 		}
-		return new Input<>(new TextFileInput(path));
 	}
 }
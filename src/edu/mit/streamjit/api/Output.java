@@ -21,14 +21,29 @@
  */
 package edu.mit.streamjit.api;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import com.google.common.primitives.Primitives;
+import com.google.common.util.concurrent.Uninterruptibles;
 import edu.mit.streamjit.impl.blob.AbstractWriteOnlyBuffer;
 import edu.mit.streamjit.impl.blob.Buffer;
 import edu.mit.streamjit.impl.blob.Buffers;
+import edu.mit.streamjit.impl.blob.SPSCArrayBuffer;
 import edu.mit.streamjit.impl.common.OutputBufferFactory;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  *
@@ -39,6 +54,7 @@ public class Output<O> {
 	static {
 		OutputBufferFactory.OUTPUT_LOOKUP = MethodHandles.lookup();
 	}
+	private static final String LINE_SEPARATOR = System.lineSeparator();
 	private final OutputBufferFactory output;
 	private Output(OutputBufferFactory output) {
 		this.output = output;
@@ -101,10 +117,246 @@ public class Output<O> {
 		});
 	}
 
-	//TODO: we need flush() for good performance, and close() to avoid leaks.
-//	public static <O> Output<O> toBinaryFile(Path path, Class<I> type) {
-//
-//	}
+	/**
+	 * Creates an Output that writes items of the given primitive wrapper type
+	 * to the given file, in the given byte order, in the format read by
+	 * {@link Input#fromBinaryFile(Path, Class, ByteOrder)}.  The file is
+	 * created or truncated when the stream is compiled.  Items are collected
+	 * in a direct buffer and written in large blocks; the last block is
+	 * written and the file closed when the stream finishes draining.
+	 * @param <O> the type of Output to create
+	 * @param path the file to write
+	 * @param type the primitive wrapper type of the items
+	 * @param byteOrder the byte order to write in
+	 * @return an Output writing to the given file
+	 */
+	public static <O> Output<O> toBinaryFile(Path path, Class<O> type, ByteOrder byteOrder) {
+		checkArgument(Primitives.isWrapperType(type) && !type.equals(Void.class) && !type.equals(Boolean.class),
+				"not a numeric wrapper type: %s", type);
+		class BinaryFileRealOutput extends OutputBufferFactory {
+			private final Path path;
+			private final Class<?> type;
+			private final ByteOrder byteOrder;
+			private final List<BinaryFileBuffer> buffers = new ArrayList<>(1);
+			private BinaryFileRealOutput(Path path, Class<?> type, ByteOrder byteOrder) {
+				this.path = path;
+				this.type = type;
+				this.byteOrder = byteOrder;
+			}
+			@Override
+			public synchronized Buffer createWritableBuffer(int writerMinSize) {
+				FileChannel fc;
+				try {
+					fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+				BinaryFileBuffer buffer = new BinaryFileBuffer(fc, type, byteOrder);
+				buffers.add(buffer);
+				return buffer;
+			}
+			@Override
+			public synchronized void close() {
+				for (BinaryFileBuffer b : buffers)
+					b.close();
+				buffers.clear();
+			}
+			@Override
+			public boolean requiresClose() {
+				return true;
+			}
+			@Override
+			public String toString() {
+				return "Output.toBinaryFile("+path+", "+type.getSimpleName()+".class, "+byteOrder+")";
+			}
+		}
+		return new Output<>(new BinaryFileRealOutput(path, type, byteOrder));
+	}
+
+	/**
+	 * Collects items in a direct ByteBuffer, writing it to a FileChannel when
+	 * full and on close.  Only written by the thread writing the overall
+	 * output, then closed after draining.
+	 */
+	private static final class BinaryFileBuffer extends AbstractWriteOnlyBuffer {
+		private static final int BUFFER_BYTES = 1 << 20;
+		private static final List<Class<?>> PRIMITIVES = Arrays.<Class<?>>asList(
+				byte.class, short.class, char.class, int.class, long.class, float.class, double.class);
+		private static final int[] ITEM_BYTES = {1, 2, 2, 4, 8, 4, 8};
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final int itemBytes;
+		private final int kind;
+		private BinaryFileBuffer(FileChannel channel, Class<?> type, ByteOrder byteOrder) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(byteOrder);
+			this.kind = PRIMITIVES.indexOf(Primitives.unwrap(type));
+			this.itemBytes = ITEM_BYTES[kind];
+		}
+		@Override
+		public boolean write(Object t) {
+			if (buffer.remaining() < itemBytes)
+				flush();
+			put(t);
+			return true;
+		}
+		@Override
+		public int write(Object[] data, int offset, int length) {
+			for (int i = offset; i < offset + length; ++i) {
+				if (buffer.remaining() < itemBytes)
+					flush();
+				put(data[i]);
+			}
+			return length;
+		}
+		private void put(Object t) {
+			switch (kind) {
+				case 0: buffer.put((Byte)t); break;
+				case 1: buffer.putShort((Short)t); break;
+				case 2: buffer.putChar((Character)t); break;
+				case 3: buffer.putInt((Integer)t); break;
+				case 4: buffer.putLong((Long)t); break;
+				case 5: buffer.putFloat((Float)t); break;
+				case 6: buffer.putDouble((Double)t); break;
+				default: throw new AssertionError(kind);
+			}
+		}
+		private void flush() {
+			buffer.flip();
+			try {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+			buffer.clear();
+		}
+		private void close() {
+			if (!channel.isOpen())
+				return;
+			flush();
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Wraps the given Output so the stream writes into a bounded buffer, from
+	 * which a dedicated writer thread writes to the given Output in large
+	 * batches.  Formatting and I/O (e.g., by {@link #toPrintStream(PrintStream)})
+	 * then happen off the stream's threads, which only wait for the writer
+	 * when the buffer is full.  When the stream finishes draining, the writer
+	 * writes the rest of the items and closes the given Output.
+	 * Equivalent to {@code async(output, 65536)}.
+	 * @param <O> the type of Output
+	 * @param output the Output to write to
+	 * @return an asynchronous Output writing to the given Output
+	 */
+	public static <O> Output<O> async(Output<O> output) {
+		return async(output, 1 << 16);
+	}
+
+	/**
+	 * Wraps the given Output so the stream writes into a bounded buffer of at
+	 * least the given capacity; see {@link #async(Output)}.
+	 * @param <O> the type of Output
+	 * @param output the Output to write to
+	 * @param capacity the buffer capacity, in items
+	 * @return an asynchronous Output writing to the given Output
+	 */
+	public static <O> Output<O> async(Output<O> output, int capacity) {
+		checkArgument(capacity > 0, "bad capacity %s", capacity);
+		class AsyncRealOutput extends OutputBufferFactory {
+			private final OutputBufferFactory sink;
+			private final int capacity;
+			private final List<AsyncWriter> writers = new ArrayList<>(1);
+			private AsyncRealOutput(OutputBufferFactory sink, int capacity) {
+				this.sink = sink;
+				this.capacity = capacity;
+			}
+			@Override
+			public synchronized Buffer createWritableBuffer(int writerMinSize) {
+				Buffer ring = new SPSCArrayBuffer(Math.max(capacity, 2 * writerMinSize));
+				AsyncWriter writer = new AsyncWriter(ring, sink.createWritableBuffer(writerMinSize), toString());
+				writers.add(writer);
+				writer.start();
+				return ring;
+			}
+			@Override
+			public synchronized void close() {
+				for (AsyncWriter w : writers)
+					w.finish();
+				writers.clear();
+				sink.close();
+			}
+			@Override
+			public boolean requiresClose() {
+				return true;
+			}
+			@Override
+			public String toString() {
+				return "Output.async("+sink+", "+capacity+")";
+			}
+		}
+		return new Output<>(new AsyncRealOutput(OutputBufferFactory.unwrap(output), capacity));
+	}
+
+	/**
+	 * Moves items from the ring written by the stream to the sink buffer in
+	 * batches.  Parks (with a timeout, as wakeups are best-effort) when the
+	 * ring is empty or the sink is full.
+	 */
+	private static final class AsyncWriter extends Thread {
+		private static final int BATCH = 4096;
+		private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+		private final Buffer ring, sink;
+		private volatile boolean finishing;
+		private AsyncWriter(Buffer ring, Buffer sink, String name) {
+			super(name);
+			setDaemon(true);
+			this.ring = ring;
+			this.sink = sink;
+		}
+		@Override
+		public void run() {
+			Buffers.wakeReaderOnWrite(ring, this);
+			Buffers.wakeWriterOnRead(sink, this);
+			Object[] batch = new Object[BATCH];
+			while (true) {
+				//Read finishing first, so we don't miss items written before
+				//finish().
+				boolean last = finishing;
+				int n = ring.read(batch, 0, batch.length);
+				if (n == 0) {
+					if (last)
+						break;
+					LockSupport.parkNanos(this, PARK_NANOS);
+					continue;
+				}
+				for (int written = 0; written < n; ) {
+					int w = sink.write(batch, written, n - written);
+					if (w == 0)
+						LockSupport.parkNanos(this, PARK_NANOS);
+					written += w;
+				}
+				Arrays.fill(batch, 0, n, null);
+			}
+			Buffers.wakeReaderOnWrite(ring, null);
+			Buffers.wakeWriterOnRead(sink, null);
+		}
+		/**
+		 * Waits for the writer to write all items written to the ring so far,
+		 * then stop.
+		 */
+		private void finish() {
+			finishing = true;
+			LockSupport.unpark(this);
+			Uninterruptibles.joinUninterruptibly(this);
+		}
+	}
 
 	public static <O> Output<O> toCollection(final Collection<? super O> coll) {
 		return new Output<>(new OutputBufferFactory() {
@@ -132,8 +384,21 @@ public class Output<O> {
 						stream.println(t);
 						return true;
 					}
+					@Override
+					public int write(Object[] data, int offset, int length) {
+						//Format the whole batch, then print it in one call.
+						StringBuilder sb = new StringBuilder();
+						for (int i = offset; i < offset + length; ++i)
+							sb.append(data[i]).append(LINE_SEPARATOR);
+						stream.print(sb);
+						return length;
+					}
 				};
 			}
+			@Override
+			public void close() {
+				stream.flush();
+			}
 		});
 	}
 }
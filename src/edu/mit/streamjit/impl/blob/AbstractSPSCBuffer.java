@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.blob;
+
+import static com.google.common.base.Preconditions.*;
+import java.lang.reflect.Array;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The index management for single-reader, single-writer circular array
+ * buffers.  Subclasses provide the element accesses; this class tracks the
+ * reader's and writer's positions and moves runs of elements in and out of the
+ * backing array (which may be an array of any component type).
+ * <p/>
+ * Each side owns its own index and publishes it with a lazySet
+ * (store-release), and keeps a cached copy of the other side's index, only
+ * rereading the volatile when the cached value says the buffer is empty (for
+ * the reader) or full (for the writer).  The indices are padded onto separate
+ * cache lines to avoid false sharing.
+ * <p/>
+ * Methods named for the reader must only be called by the reader, and
+ * likewise for the writer.
+ * @since 10/17/2026
+ */
+abstract class AbstractSPSCBuffer extends SPSCWriterFields {
+	protected AbstractSPSCBuffer(int capacity, Class<?> componentType) {
+		super(capacity, componentType);
+	}
+
+	/**
+	 * Returns the number of items (at most wanted) the reader can read,
+	 * rereading the writer's index only if the cached value doesn't cover the
+	 * requested amount.
+	 * @param wanted the number of items the reader wants
+	 * @return the number of items available to read, at most wanted
+	 */
+	protected final int readable(int wanted) {
+		long h = head;
+		long available = readerCachedTail - h;
+		if (available < wanted) {
+			readerCachedTail = tail;
+			available = readerCachedTail - h;
+		}
+		return (int)Math.min(wanted, available);
+	}
+
+	/**
+	 * Returns the number of items (at most wanted) the writer can write,
+	 * rereading the reader's index only if the cached value doesn't leave
+	 * enough room.
+	 * @param wanted the number of items the writer wants
+	 * @return the number of items that can be written, at most wanted
+	 */
+	protected final int writable(int wanted) {
+		long tl = tail;
+		long free = capacity - (tl - writerCachedHead);
+		if (free < wanted) {
+			writerCachedHead = head;
+			free = capacity - (tl - writerCachedHead);
+		}
+		return (int)Math.min(wanted, free);
+	}
+
+	/**
+	 * Returns the array slot of the next item to read.
+	 */
+	protected final int headSlot() {
+		return (int)head & mask;
+	}
+
+	/**
+	 * Returns the array slot of the next item to write.
+	 */
+	protected final int tailSlot() {
+		return (int)tail & mask;
+	}
+
+	/**
+	 * Publishes the consumption of n items (previously checked with
+	 * readable()) to the writer, waking the writer if it's waiting.
+	 */
+	protected final void advanceHead(int n) {
+		HEAD.lazySet(this, head + n);
+		Object w = waitingWriter;
+		if (w != null)
+			wake(w);
+	}
+
+	/**
+	 * Publishes n items (previously checked with writable()) to the reader,
+	 * waking the reader if it's waiting.
+	 */
+	protected final void advanceTail(int n) {
+		TAIL.lazySet(this, tail + n);
+		Object r = waitingReader;
+		if (r != null)
+			wake(r);
+	}
+
+	private static void wake(Object waiter) {
+		if (waiter instanceof Thread)
+			LockSupport.unpark((Thread)waiter);
+		else
+			((Selector)waiter).wakeup();
+	}
+
+	/**
+	 * Sets the thread to unpark or the selector to wake up when items are
+	 * written, or null for none.  (The lazySet publishing the items can be
+	 * reordered after our read of the waiter, so a wakeup can be missed;
+	 * waiters must park or select with a timeout.)
+	 */
+	final void setWaitingReader(Object reader) {
+		this.waitingReader = reader;
+	}
+
+	/**
+	 * Sets the thread to unpark or the selector to wake up when items are
+	 * read, or null for none.  (See setWaitingReader() regarding missed
+	 * wakeups.)
+	 */
+	final void setWaitingWriter(Object writer) {
+		this.waitingWriter = writer;
+	}
+
+	/**
+	 * Copies the next n readable items into dest (an array of the backing
+	 * array's type) beginning at offset, clearing the vacated slots if they
+	 * hold references so we don't retain garbage.  Does not advance the head.
+	 */
+	protected final void copyOut(Object dest, int offset, int n) {
+		int begin = headSlot();
+		int firstRun = Math.min(n, length - begin);
+		System.arraycopy(array, begin, dest, offset, firstRun);
+		System.arraycopy(array, 0, dest, offset+firstRun, n-firstRun);
+		if (clearOnRead) {
+			Arrays.fill((Object[])array, begin, begin+firstRun, null);
+			Arrays.fill((Object[])array, 0, n-firstRun, null);
+		}
+	}
+
+	/**
+	 * Copies n items from src (an array of the backing array's type) beginning
+	 * at offset into the next n writable slots.  Does not advance the tail.
+	 */
+	protected final void copyIn(Object src, int offset, int n) {
+		int begin = tailSlot();
+		int firstRun = Math.min(n, length - begin);
+		System.arraycopy(src, offset, array, begin, firstRun);
+		System.arraycopy(src, offset+firstRun, array, 0, n-firstRun);
+	}
+
+	@Override
+	public boolean readAll(Object[] data) {
+		return readAll(data, 0);
+	}
+
+	@Override
+	public int size() {
+		//Read head first: if we're the reader, head is stable and tail only
+		//grows, so we get a lower bound; if we're the writer, tail is stable
+		//and head only grows, so we get an upper bound.
+		long h = head;
+		return (int)Math.min(tail - h, capacity);
+	}
+
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s@%08x[%d/%d]", getClass().getSimpleName(),
+				System.identityHashCode(this), size(), capacity());
+	}
+}
+
+/**
+ * Fields that don't change after construction, plus padding.  (Field layout is
+ * controlled with a class hierarchy because HotSpot doesn't reorder fields
+ * across classes.)
+ */
+abstract class SPSCColdFields extends AbstractBuffer {
+	/**
+	 * The backing array, of length a power of two at least capacity.
+	 */
+	protected final Object array;
+	protected final int length, mask, capacity;
+	protected final boolean clearOnRead;
+	/**
+	 * The Thread or Selector waiting for items or space, respectively.  These
+	 * are read on every publish but rarely written, so they live with the cold
+	 * fields.
+	 */
+	protected volatile Object waitingReader, waitingWriter;
+	protected long p00, p01, p02, p03, p04, p05, p06, p07;
+	SPSCColdFields(int capacity, Class<?> componentType) {
+		checkArgument(capacity > 0, "capacity %s", capacity);
+		checkArgument(capacity <= 1 << 30, "capacity %s", capacity);
+		this.capacity = capacity;
+		int arrayLength = Integer.highestOneBit(capacity);
+		if (arrayLength < capacity)
+			arrayLength <<= 1;
+		this.array = Array.newInstance(componentType, arrayLength);
+		this.length = arrayLength;
+		this.mask = arrayLength - 1;
+		this.clearOnRead = !componentType.isPrimitive();
+	}
+}
+
+/**
+ * The reader's index and the reader's cached copy of the writer's index.
+ */
+abstract class SPSCReaderFields extends SPSCColdFields {
+	protected static final AtomicLongFieldUpdater<SPSCReaderFields> HEAD
+			= AtomicLongFieldUpdater.newUpdater(SPSCReaderFields.class, "head");
+	protected volatile long head;
+	protected long readerCachedTail;
+	protected long p10, p11, p12, p13, p14, p15, p16, p17;
+	SPSCReaderFields(int capacity, Class<?> componentType) {
+		super(capacity, componentType);
+	}
+}
+
+/**
+ * The writer's index and the writer's cached copy of the reader's index.
+ */
+abstract class SPSCWriterFields extends SPSCReaderFields {
+	protected static final AtomicLongFieldUpdater<SPSCWriterFields> TAIL
+			= AtomicLongFieldUpdater.newUpdater(SPSCWriterFields.class, "tail");
+	protected volatile long tail;
+	protected long writerCachedHead;
+	protected long p20, p21, p22, p23, p24, p25, p26, p27;
+	SPSCWriterFields(int capacity, Class<?> componentType) {
+		super(capacity, componentType);
+	}
+}
@@ -74,6 +74,22 @@ public interface Blob {
 	 */
 	public int getMinimumBufferCapacity(Token token);
 
+	/**
+	 * Returns the type of the data items this Blob reads or writes on the edge
+	 * represented by the given token.  Blobs that store data items unboxed
+	 * return the primitive type; if the blobs on both ends of an edge agree on
+	 * a primitive type, the runtime system may install a
+	 * {@link PrimitiveBuffer} on that edge to avoid boxing.  Blobs that don't
+	 * care return Object.class (the default).
+	 * @param token the edge to get the type for
+	 * @return the type of data items on the given edge
+	 * @throws IllegalArgumentException if the given token is not an input or
+	 * output edge of this Blob
+	 */
+	public default Class<?> getEdgeType(Token token) {
+		return Object.class;
+	}
+
 	/**
 	 * Installs buffers for this Blob's input and output edges.
 	 * @param buffers an immutable map of tokens to the buffer on the corresponding
@@ -25,10 +25,12 @@ import static com.google.common.base.Preconditions.*;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
+import java.nio.channels.Selector;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Contains static methods related to Buffer instances.
@@ -201,6 +203,85 @@ public final class Buffers {
 		}
 	}
 
+	/**
+	 * Returns a Buffer for an edge between two blobs, given the types the
+	 * writing and reading blobs reported from
+	 * {@link Blob#getEdgeType(Blob.Token)}.  If both agree on a supported
+	 * primitive type, the returned buffer is a {@link PrimitiveBuffer};
+	 * otherwise it stores Objects.  Either way, the returned buffer supports
+	 * exactly one reader and one writer.
+	 * @param writerType the type reported by the writing blob
+	 * @param readerType the type reported by the reading blob
+	 * @param capacity the buffer capacity
+	 * @return a Buffer for the edge
+	 */
+	public static Buffer edgeBuffer(Class<?> writerType, Class<?> readerType, int capacity) {
+		if (writerType.isPrimitive() && writerType.equals(readerType)) {
+			Buffer b = SPSCPrimitiveArrayBuffer.create(writerType, capacity);
+			if (b != null)
+				return b;
+		}
+		return new SPSCArrayBuffer(capacity);
+	}
+
+	/**
+	 * Registers the given thread to be unparked (see
+	 * {@link LockSupport#unpark(Thread)}) when items are written to the given
+	 * buffer, replacing any previously registered thread, or unregisters if
+	 * the thread is null.  Does nothing if the buffer doesn't support wakeups.
+	 * Wakeups are best-effort, so waiters must park with a timeout.
+	 * @param buffer the buffer
+	 * @param reader the thread to wake, or null
+	 */
+	public static void wakeReaderOnWrite(Buffer buffer, Thread reader) {
+		if (buffer instanceof AbstractSPSCBuffer)
+			((AbstractSPSCBuffer)buffer).setWaitingReader(reader);
+	}
+
+	/**
+	 * Registers the given thread to be unparked (see
+	 * {@link LockSupport#unpark(Thread)}) when items are read from the given
+	 * buffer, replacing any previously registered thread, or unregisters if
+	 * the thread is null.  Does nothing if the buffer doesn't support wakeups.
+	 * Wakeups are best-effort, so waiters must park with a timeout.
+	 * @param buffer the buffer
+	 * @param writer the thread to wake, or null
+	 */
+	public static void wakeWriterOnRead(Buffer buffer, Thread writer) {
+		if (buffer instanceof AbstractSPSCBuffer)
+			((AbstractSPSCBuffer)buffer).setWaitingWriter(writer);
+	}
+
+	/**
+	 * Registers the given selector to be woken up (see
+	 * {@link Selector#wakeup()}) when items are written to the given buffer,
+	 * replacing any previously registered thread or selector, or unregisters
+	 * if the selector is null.  Does nothing if the buffer doesn't support
+	 * wakeups.  Wakeups are best-effort, so selectors must select with a
+	 * timeout.
+	 * @param buffer the buffer
+	 * @param reader the selector to wake, or null
+	 */
+	public static void wakeSelectorOnWrite(Buffer buffer, Selector reader) {
+		if (buffer instanceof AbstractSPSCBuffer)
+			((AbstractSPSCBuffer)buffer).setWaitingReader(reader);
+	}
+
+	/**
+	 * Registers the given selector to be woken up (see
+	 * {@link Selector#wakeup()}) when items are read from the given buffer,
+	 * replacing any previously registered thread or selector, or unregisters
+	 * if the selector is null.  Does nothing if the buffer doesn't support
+	 * wakeups.  Wakeups are best-effort, so selectors must select with a
+	 * timeout.
+	 * @param buffer the buffer
+	 * @param writer the selector to wake, or null
+	 */
+	public static void wakeSelectorOnRead(Buffer buffer, Selector writer) {
+		if (buffer instanceof AbstractSPSCBuffer)
+			((AbstractSPSCBuffer)buffer).setWaitingWriter(writer);
+	}
+
 	/**
 	 * Returns a read-only view of the given buffer.  (Note that reads still
 	 * modify the buffer as usual; this wrapper merely prohibits the write
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.blob;
+
+/**
+ * A Buffer whose elements are stored unboxed.  PrimitiveBuffers still
+ * implement the Object-based Buffer methods (boxing and unboxing as
+ * necessary), so blobs that don't know about them continue to work, but blobs
+ * that store their data unboxed can move data in and out without boxing by
+ * using the bulk methods taking primitive arrays.
+ * <p/>
+ * A PrimitiveBuffer is only created for an edge when both the writing and
+ * reading blob report (via {@link Blob#getEdgeType(Blob.Token)}) the same
+ * primitive type.
+ * @since 10/17/2026
+ */
+public interface PrimitiveBuffer extends Buffer {
+	/**
+	 * Returns the primitive type of the elements of this buffer (e.g.,
+	 * int.class).
+	 * @return the primitive type of this buffer's elements
+	 */
+	public Class<?> primitiveType();
+
+	/**
+	 * Reads up to length data items from this buffer into the given array
+	 * (an array of {@link #primitiveType()}) beginning at offset.
+	 * @param data the primitive array to write into
+	 * @param offset the offset to begin writing at
+	 * @param length the number of items to read
+	 * @return the number of data items read (between 0 and length, inclusive)
+	 */
+	public int readPrimitives(Object data, int offset, int length);
+
+	/**
+	 * Atomically reads enough data items from this buffer to fill the given
+	 * array (an array of {@link #primitiveType()}) starting from offset, or
+	 * does nothing.
+	 * @param data the primitive array to read into
+	 * @param offset the offset to begin writing at
+	 * @return true iff data was read
+	 */
+	public boolean readAllPrimitives(Object data, int offset);
+
+	/**
+	 * Writes up to length data items from the given array (an array of
+	 * {@link #primitiveType()}) beginning at offset into this buffer.
+	 * @param data the primitive array to read from
+	 * @param offset the offset to begin reading from
+	 * @param length the number of data items to write
+	 * @return the number of data items written (between 0 and length,
+	 * inclusive)
+	 */
+	public int writePrimitives(Object data, int offset, int length);
+
+	public interface OfInt extends PrimitiveBuffer {
+		public default int readInts(int[] data, int offset, int length) {
+			return readPrimitives(data, offset, length);
+		}
+		public default boolean readAllInts(int[] data) {
+			return readAllPrimitives(data, 0);
+		}
+		public default boolean readAllInts(int[] data, int offset) {
+			return readAllPrimitives(data, offset);
+		}
+		public default int writeInts(int[] data, int offset, int length) {
+			return writePrimitives(data, offset, length);
+		}
+	}
+
+	public interface OfFloat extends PrimitiveBuffer {
+		public default int readFloats(float[] data, int offset, int length) {
+			return readPrimitives(data, offset, length);
+		}
+		public default boolean readAllFloats(float[] data) {
+			return readAllPrimitives(data, 0);
+		}
+		public default boolean readAllFloats(float[] data, int offset) {
+			return readAllPrimitives(data, offset);
+		}
+		public default int writeFloats(float[] data, int offset, int length) {
+			return writePrimitives(data, offset, length);
+		}
+	}
+
+	public interface OfDouble extends PrimitiveBuffer {
+		public default int readDoubles(double[] data, int offset, int length) {
+			return readPrimitives(data, offset, length);
+		}
+		public default boolean readAllDoubles(double[] data) {
+			return readAllPrimitives(data, 0);
+		}
+		public default boolean readAllDoubles(double[] data, int offset) {
+			return readAllPrimitives(data, offset);
+		}
+		public default int writeDoubles(double[] data, int offset, int length) {
+			return writePrimitives(data, offset, length);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.blob;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * A lock-free bounded Buffer based on a circular array, supporting exactly one
+ * reader thread and one writer thread (which may be different threads over
+ * time, provided the handoff establishes happens-before).  Every Token edge
+ * between blobs has exactly one writer and one reader, so this is the buffer
+ * used between blobs.
+ * <p/>
+ * Unlike ConcurrentArrayBuffer, reads and writes never CAS; see
+ * AbstractSPSCBuffer for the details.  Bulk reads and writes move whole runs
+ * with System.arraycopy and publish once per call.
+ * <p/>
+ * This buffer does not accept nulls.
+ * @since 10/17/2026
+ */
+public final class SPSCArrayBuffer extends AbstractSPSCBuffer {
+	private final Object[] elements;
+	public SPSCArrayBuffer(int capacity) {
+		super(capacity, Object.class);
+		this.elements = (Object[])array;
+	}
+
+	@Override
+	public Object read() {
+		if (readable(1) == 0)
+			return null;
+		int i = headSlot();
+		Object e = elements[i];
+		elements[i] = null;
+		advanceHead(1);
+		return e;
+	}
+
+	@Override
+	public int read(Object[] data, int offset, int length) {
+		checkPositionIndexes(offset, offset+length, data.length);
+		int n = readable(length);
+		if (n == 0)
+			return 0;
+		copyOut(data, offset, n);
+		advanceHead(n);
+		return n;
+	}
+
+	@Override
+	public boolean readAll(Object[] data, int offset) {
+		int required = data.length - offset;
+		if (readable(required) < required)
+			return false;
+		if (required == 0)
+			return true;
+		copyOut(data, offset, required);
+		advanceHead(required);
+		return true;
+	}
+
+	@Override
+	public boolean write(Object t) {
+		checkNotNull(t);
+		if (writable(1) == 0)
+			return false;
+		elements[tailSlot()] = t;
+		advanceTail(1);
+		return true;
+	}
+
+	@Override
+	public int write(Object[] data, int offset, int length) {
+		checkPositionIndexes(offset, offset+length, data.length);
+		for (int i = offset; i < offset+length; ++i)
+			checkNotNull(data[i]);
+		int n = writable(length);
+		if (n == 0)
+			return 0;
+		copyIn(data, offset, n);
+		advanceTail(n);
+		return n;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.blob;
+
+import static com.google.common.base.Preconditions.*;
+import java.lang.reflect.Array;
+
+/**
+ * Single-reader, single-writer circular array buffers storing primitives
+ * unboxed.  The Object-based Buffer methods box and unbox (so blobs that
+ * don't know about PrimitiveBuffer still work); the primitive bulk methods
+ * move whole runs with System.arraycopy.
+ * @since 10/17/2026
+ */
+public abstract class SPSCPrimitiveArrayBuffer extends AbstractSPSCBuffer implements PrimitiveBuffer {
+	private SPSCPrimitiveArrayBuffer(int capacity, Class<?> type) {
+		super(capacity, type);
+	}
+
+	/**
+	 * Creates a buffer storing the given primitive type, if supported.
+	 * @param type the primitive type
+	 * @param capacity the buffer capacity
+	 * @return a buffer storing the given type, or null if the type is not
+	 * supported
+	 */
+	public static SPSCPrimitiveArrayBuffer create(Class<?> type, int capacity) {
+		if (type == int.class)
+			return new OfInt(capacity);
+		if (type == float.class)
+			return new OfFloat(capacity);
+		if (type == double.class)
+			return new OfDouble(capacity);
+		return null;
+	}
+
+	@Override
+	public Class<?> primitiveType() {
+		return array.getClass().getComponentType();
+	}
+
+	protected abstract Object get(int slot);
+	protected abstract void set(int slot, Object t);
+
+	@Override
+	public final Object read() {
+		if (readable(1) == 0)
+			return null;
+		Object e = get(headSlot());
+		advanceHead(1);
+		return e;
+	}
+
+	@Override
+	public final int read(Object[] data, int offset, int length) {
+		checkPositionIndexes(offset, offset+length, data.length);
+		int n = readable(length);
+		if (n == 0)
+			return 0;
+		int begin = headSlot();
+		for (int i = 0; i < n; ++i)
+			data[offset+i] = get((begin+i) & mask);
+		advanceHead(n);
+		return n;
+	}
+
+	@Override
+	public final boolean readAll(Object[] data, int offset) {
+		int required = data.length - offset;
+		if (readable(required) < required)
+			return false;
+		return read(data, offset, required) == required;
+	}
+
+	@Override
+	public final boolean write(Object t) {
+		checkNotNull(t);
+		if (writable(1) == 0)
+			return false;
+		set(tailSlot(), t);
+		advanceTail(1);
+		return true;
+	}
+
+	@Override
+	public final int write(Object[] data, int offset, int length) {
+		checkPositionIndexes(offset, offset+length, data.length);
+		int n = writable(length);
+		if (n == 0)
+			return 0;
+		int begin = tailSlot();
+		for (int i = 0; i < n; ++i)
+			set((begin+i) & mask, data[offset+i]);
+		advanceTail(n);
+		return n;
+	}
+
+	@Override
+	public final int readPrimitives(Object data, int offset, int length) {
+		checkArgument(data.getClass() == array.getClass(), "%s into %s", this, data.getClass());
+		int n = readable(length);
+		if (n == 0)
+			return 0;
+		copyOut(data, offset, n);
+		advanceHead(n);
+		return n;
+	}
+
+	@Override
+	public final boolean readAllPrimitives(Object data, int offset) {
+		checkArgument(data.getClass() == array.getClass(), "%s into %s", this, data.getClass());
+		int required = Array.getLength(data) - offset;
+		if (readable(required) < required)
+			return false;
+		copyOut(data, offset, required);
+		advanceHead(required);
+		return true;
+	}
+
+	@Override
+	public final int writePrimitives(Object data, int offset, int length) {
+		checkArgument(data.getClass() == array.getClass(), "%s from %s", this, data.getClass());
+		int n = writable(length);
+		if (n == 0)
+			return 0;
+		copyIn(data, offset, n);
+		advanceTail(n);
+		return n;
+	}
+
+	public static final class OfInt extends SPSCPrimitiveArrayBuffer implements PrimitiveBuffer.OfInt {
+		private final int[] elements;
+		public OfInt(int capacity) {
+			super(capacity, int.class);
+			this.elements = (int[])array;
+		}
+		@Override
+		protected Object get(int slot) {
+			return elements[slot];
+		}
+		@Override
+		protected void set(int slot, Object t) {
+			elements[slot] = (Integer)t;
+		}
+	}
+
+	public static final class OfFloat extends SPSCPrimitiveArrayBuffer implements PrimitiveBuffer.OfFloat {
+		private final float[] elements;
+		public OfFloat(int capacity) {
+			super(capacity, float.class);
+			this.elements = (float[])array;
+		}
+		@Override
+		protected Object get(int slot) {
+			return elements[slot];
+		}
+		@Override
+		protected void set(int slot, Object t) {
+			elements[slot] = (Float)t;
+		}
+	}
+
+	public static final class OfDouble extends SPSCPrimitiveArrayBuffer implements PrimitiveBuffer.OfDouble {
+		private final double[] elements;
+		public OfDouble(int capacity) {
+			super(capacity, double.class);
+			this.elements = (double[])array;
+		}
+		@Override
+		protected Object get(int slot) {
+			return elements[slot];
+		}
+		@Override
+		protected void set(int slot, Object t) {
+			elements[slot] = (Double)t;
+		}
+	}
+}
@@ -40,9 +40,9 @@ import edu.mit.streamjit.impl.blob.Buffers;
 import edu.mit.streamjit.util.affinity.Affinity;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A StreamCompiler that uses a BlobFactory to make a Blob for the entire graph.
@@ -86,14 +86,18 @@ public class BlobHostStreamCompiler implements StreamCompiler {
 		Configuration.PermutationParameter<Integer> affinityParam = config.getParameter("$affinity", Configuration.PermutationParameter.class, Integer.class);
 		ImmutableList<? extends Integer> affinityList;
 		affinityList = affinityParam != null ? affinityParam.getUniverse() : ImmutableList.copyOf(Affinity.getMaximalAffinity());
-		ImmutableList.Builder<PollingCoreThread> threadsBuilder = ImmutableList.builder();
+		SharedCoreExecutor executor = SharedCoreExecutor.fromConfiguration(config);
+		ImmutableList.Builder<CoreRunner> threadsBuilder = ImmutableList.builder();
 		for (int i = 0; i < blob.getCoreCount(); ++i) {
-			PollingCoreThread thread = new PollingCoreThread(affinityList.get(i % affinityList.size()), blob.getCoreCode(i), blob.toString()+"-"+i);
+			String name = blob.toString()+"-"+i;
+			//Affinity doesn't apply to tasks on a shared executor.
+			CoreRunner thread = executor != null ? executor.newTask(blob.getCoreCode(i), name)
+					: new PollingCoreThread(affinityList.get(i % affinityList.size()), blob.getCoreCode(i), name);
 			threadsBuilder.add(thread);
 		}
-		ImmutableList<PollingCoreThread> threads = threadsBuilder.build();
+		ImmutableList<CoreRunner> threads = threadsBuilder.build();
 
-		final BlobHostCompiledStream cs = new BlobHostCompiledStream(blob, threads);
+		final BlobHostCompiledStream cs = new BlobHostCompiledStream(blob, threads, InputBufferFactory.unwrap(input), OutputBufferFactory.unwrap(output));
 		if (input instanceof ManualInput)
 			InputBufferFactory.setManualInputDelegate((ManualInput<I>)input, new InputBufferFactory.AbstractManualInputDelegate<I>(inputBuffer) {
 				@Override
@@ -104,8 +108,7 @@ public class BlobHostStreamCompiler implements StreamCompiler {
 		else //Input provides all input, so immediately begin to drain.
 			cs.drain();
 
-		for (Thread t : threads)
-			t.start();
+		threads.forEach(CoreRunner::start);
 		return cs;
 	}
 
@@ -157,43 +160,49 @@ public class BlobHostStreamCompiler implements StreamCompiler {
 
 	private static final class BlobHostCompiledStream implements CompiledStream {
 		private final Blob blob;
-		private final ImmutableList<PollingCoreThread> threads;
-		private final CountDownLatch latch;
-		private BlobHostCompiledStream(Blob blob, ImmutableList<PollingCoreThread> threads) {
+		private final ImmutableList<CoreRunner> threads;
+		private final InputBufferFactory input;
+		private final OutputBufferFactory output;
+		private BlobHostCompiledStream(Blob blob, ImmutableList<CoreRunner> threads, InputBufferFactory input, OutputBufferFactory output) {
 			this.blob = blob;
 			this.threads = threads;
-			this.latch = new CountDownLatch(this.threads.size());
-			for (PollingCoreThread t : this.threads)
-				t.latch = this.latch;
+			this.input = input;
+			this.output = output;
 		}
 
 		private void drain() {
-			blob.drain(() -> threads.forEach(PollingCoreThread::requestStop));
+			blob.drain(() -> {
+				input.close();
+				output.close();
+				threads.forEach(CoreRunner::requestStop);
+			});
 		}
 
 		@Override
 		public boolean isDrained() {
-			for (Thread t : threads)
+			for (CoreRunner t : threads)
 				if (t.isAlive())
 					return false;
 			return true;
 		}
 
 		public void awaitDrained() throws InterruptedException {
-			latch.await();
+			for (CoreRunner t : threads)
+				t.join();
 		}
 
 		public void awaitDrained(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
-			if (!latch.await(timeout, unit))
-				throw new TimeoutException();
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			for (CoreRunner t : threads)
+				if (!t.join(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+					throw new TimeoutException();
 		}
 	}
 
-	private static final class PollingCoreThread extends Thread {
+	private static final class PollingCoreThread extends Thread implements CoreRunner {
 		private final int cpu;
 		private final Runnable coreCode;
 		private volatile boolean running = true;
-		private volatile CountDownLatch latch;
 		private PollingCoreThread(int cpu, Runnable target, String name) {
 			super(name);
 			this.cpu = cpu;
@@ -202,17 +211,19 @@ public class BlobHostStreamCompiler implements StreamCompiler {
 		@Override
 		public void run() {
 			Affinity.setThreadAffinity(ImmutableSet.of(cpu));
-			try {
-				while (running)
-					coreCode.run();
-			} finally {
-				//Whether we terminated normally or exceptionally, we need to
-				//count down so waiting threads don't get stuck.
-				latch.countDown();
-			}
+			while (running)
+				coreCode.run();
+		}
+		@Override
+		public boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+			unit.timedJoin(this, timeout);
+			return !isAlive();
 		}
+		@Override
 		public void requestStop() {
 			running = false;
+			//In case the core code is parked in its IdleStrategy.
+			LockSupport.unpark(this);
 		}
 	}
 }
@@ -22,6 +22,8 @@
 package edu.mit.streamjit.impl.common;
 
 import edu.mit.streamjit.impl.blob.Blob;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Runner thread to run a core code of a {@link Blob}.
@@ -29,7 +31,7 @@ import edu.mit.streamjit.impl.blob.Blob;
  * @author Sumanan sumanan@mit.edu
  * @since Jul 25, 2013
  */
-public final class BlobThread extends Thread {
+public final class BlobThread extends Thread implements CoreRunner {
 	private volatile boolean stopping = false;
 	private final Runnable coreCode;
 
@@ -48,7 +50,16 @@ public final class BlobThread extends Thread {
 			coreCode.run();
 	}
 
+	@Override
+	public boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+		unit.timedJoin(this, timeout);
+		return !isAlive();
+	}
+
+	@Override
 	public void requestStop() {
 		stopping = true;
+		//In case the core code is parked in its IdleStrategy.
+		LockSupport.unpark(this);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.common;
+
+import edu.mit.streamjit.impl.blob.Blob;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one core code Runnable of a {@link Blob} until asked to stop.  This is
+ * the subset of the Thread API blob hosts use, so core code can run either on
+ * a dedicated {@link BlobThread} or as a task on a {@link SharedCoreExecutor}.
+ * @since 10/17/2026
+ */
+public interface CoreRunner {
+	/**
+	 * Begins running the core code.  May only be called once.
+	 */
+	public void start();
+
+	/**
+	 * Asks the runner to stop after the current run of the core code.
+	 */
+	public void requestStop();
+
+	/**
+	 * Waits for the runner to stop.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void join() throws InterruptedException;
+
+	/**
+	 * Waits up to the given time for the runner to stop.
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout argument
+	 * @return true if the runner stopped, false if the timeout elapsed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean join(long timeout, TimeUnit unit) throws InterruptedException;
+
+	/**
+	 * Returns true if the runner has been started and has not yet stopped.
+	 * @return true if the runner is running
+	 */
+	public boolean isAlive();
+
+	/**
+	 * Creates a runner for the given core code: a task on the given executor,
+	 * or a dedicated BlobThread if the executor is null.
+	 * @param executor the shared executor, or null
+	 * @param coreCode the core code
+	 * @param name a name for the thread or task
+	 * @return a runner
+	 */
+	public static CoreRunner create(SharedCoreExecutor executor, Runnable coreCode, String name) {
+		return executor != null ? executor.newTask(coreCode, name) : new BlobThread(coreCode, name);
+	}
+}
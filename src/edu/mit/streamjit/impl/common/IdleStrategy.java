@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.common;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.base.Splitter;
+import com.google.common.primitives.Longs;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Decides what a blob thread does when it can't make progress (its input
+ * buffers are empty or its output buffers are full).  Callers call
+ * {@link #idle()} after each attempt that made no progress and {@link #reset()}
+ * after each attempt that did.  IdleStrategy instances are stateful and
+ * should not be shared between threads that idle concurrently.
+ * <p/>
+ * Parking strategies park with {@link LockSupport#parkNanos(long)}, so a
+ * thread idling in a buffer wait can be woken early by
+ * {@link LockSupport#unpark(Thread)}; see
+ * {@link edu.mit.streamjit.impl.blob.Buffers#wakeReaderOnWrite} and
+ * {@link edu.mit.streamjit.impl.blob.Buffers#wakeWriterOnRead}.  Parks are
+ * always bounded, so a missed wakeup only costs latency.
+ * <p/>
+ * When the calling thread is running a {@link SharedCoreExecutor} task, every
+ * strategy defers to the executor instead, so idle core code gives up its pool
+ * thread rather than spinning on it.
+ * <p/>
+ * Blob hosts get their strategy from the configuration's "idleStrategy"
+ * extra data (see {@link #fromConfiguration(Configuration)}).
+ * @since 10/17/2026
+ */
+public interface IdleStrategy {
+	/**
+	 * Called after an attempt that made no progress.  May spin, yield or park.
+	 */
+	public void idle();
+
+	/**
+	 * Called after an attempt that made progress, resetting any escalation.
+	 */
+	public void reset();
+
+	/**
+	 * The configuration extra data key holding the idle strategy
+	 * specification string.
+	 */
+	public static final String EXTRA_DATA_KEY = "idleStrategy";
+
+	/**
+	 * Returns a supplier of fresh idle strategies as specified by the given
+	 * configuration's "idleStrategy" extra data, or the default backoff
+	 * strategy if it isn't present.
+	 * @param config a configuration
+	 * @return a supplier of idle strategies
+	 */
+	public static Supplier<IdleStrategy> fromConfiguration(Configuration config) {
+		Object spec = config.getExtraData(EXTRA_DATA_KEY);
+		return spec != null ? parse((String)spec) : Backoff::new;
+	}
+
+	/**
+	 * Parses an idle strategy specification, one of:
+	 * <ul>
+	 * <li>"spin": always busy-spin (the old behavior)
+	 * <li>"yield": always Thread.yield()
+	 * <li>"backoff": the default backoff strategy
+	 * <li>"backoff:spins,yields,minParkNanos,maxParkNanos": a backoff
+	 * strategy with the given thresholds
+	 * </ul>
+	 * @param spec the specification
+	 * @return a supplier of fresh idle strategies
+	 * @throws IllegalArgumentException if the specification is malformed
+	 */
+	public static Supplier<IdleStrategy> parse(String spec) {
+		switch (spec) {
+			case "spin":
+				return BusySpin::new;
+			case "yield":
+				return Yield::new;
+			case "backoff":
+				return Backoff::new;
+		}
+		checkArgument(spec.startsWith("backoff:"), "bad idle strategy %s", spec);
+		List<String> args = Splitter.on(',').trimResults().splitToList(spec.substring("backoff:".length()));
+		checkArgument(args.size() == 4, "bad idle strategy %s", spec);
+		long[] values = new long[4];
+		for (int i = 0; i < values.length; ++i) {
+			Long value = Longs.tryParse(args.get(i));
+			checkArgument(value != null && value >= 0, "bad idle strategy %s", spec);
+			values[i] = value;
+		}
+		return () -> new Backoff(values[0], values[1], values[2], values[3]);
+	}
+
+	/**
+	 * Busy-spins.  Lowest latency, but burns a whole core.
+	 */
+	public static final class BusySpin implements IdleStrategy {
+		@Override
+		public void idle() {
+			SharedCoreExecutor.idleInTask();
+		}
+		@Override
+		public void reset() {
+		}
+	}
+
+	/**
+	 * Yields the processor on every idle.
+	 */
+	public static final class Yield implements IdleStrategy {
+		@Override
+		public void idle() {
+			if (SharedCoreExecutor.idleInTask())
+				return;
+			Thread.yield();
+		}
+		@Override
+		public void reset() {
+		}
+	}
+
+	/**
+	 * Spins for a while, then yields for a while, then parks for exponentially
+	 * increasing times between minParkNanos and maxParkNanos.
+	 */
+	public static final class Backoff implements IdleStrategy {
+		private static final long DEFAULT_SPINS = 100, DEFAULT_YIELDS = 10,
+				DEFAULT_MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1),
+				DEFAULT_MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+		private final long maxSpins, maxYields, minParkNanos, maxParkNanos;
+		private long spins, yields, parkNanos;
+		public Backoff() {
+			this(DEFAULT_SPINS, DEFAULT_YIELDS, DEFAULT_MIN_PARK_NANOS, DEFAULT_MAX_PARK_NANOS);
+		}
+		public Backoff(long maxSpins, long maxYields, long minParkNanos, long maxParkNanos) {
+			checkArgument(minParkNanos > 0 && minParkNanos <= maxParkNanos, "bad park times %s %s", minParkNanos, maxParkNanos);
+			this.maxSpins = maxSpins;
+			this.maxYields = maxYields;
+			this.minParkNanos = minParkNanos;
+			this.maxParkNanos = maxParkNanos;
+			reset();
+		}
+		@Override
+		public void idle() {
+			if (SharedCoreExecutor.idleInTask())
+				return;
+			if (spins < maxSpins)
+				++spins;
+			else if (yields < maxYields) {
+				++yields;
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(this, parkNanos);
+				parkNanos = Math.min(parkNanos << 1, maxParkNanos);
+			}
+		}
+		@Override
+		public void reset() {
+			spins = yields = 0;
+			parkNanos = minParkNanos;
+		}
+		@Override
+		public String toString() {
+			return String.format("backoff:%d,%d,%d,%d", maxSpins, maxYields, minParkNanos, maxParkNanos);
+		}
+	}
+}
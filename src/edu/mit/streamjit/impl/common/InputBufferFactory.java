@@ -50,6 +50,13 @@ public abstract class InputBufferFactory {
 	 */
 	public abstract Buffer createReadableBuffer(int readerMinSize);
 
+	/**
+	 * Called after a stream reading from buffers created by this factory has
+	 * finished draining (so no more items will be read), to release those
+	 * buffers' resources.  The default implementation does nothing.
+	 */
+	public void close() {}
+
 	public interface ManualInputDelegate<I> {
 		public boolean offer(I input);
 		public int offer(I[] input, int offset, int length);
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.google.common.primitives.Primitives;
+import com.google.common.util.concurrent.Uninterruptibles;
+import edu.mit.streamjit.impl.blob.AbstractReadOnlyBuffer;
+import edu.mit.streamjit.impl.blob.PeekableBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A PeekableBuffer over a binary file of primitive items, too big to map in
+ * one MappedByteBuffer (which is limited to 2 GB).  The file is mapped in
+ * fixed-size regions; the buffer keeps a window of the regions covering the
+ * items between the read position and the furthest peek, and maps the region
+ * after the window on a background thread (touching its pages) so it's ready
+ * when consume() moves the window forward.
+ * <p/>
+ * Peeks may come from several cores at once, but consume() is only called
+ * while no one is peeking (in the barrier action), per Compiler2's storage
+ * protocol.
+ * @since 10/17/2026
+ */
+public final class MappedFileBuffer extends AbstractReadOnlyBuffer implements PeekableBuffer {
+	/**
+	 * The default region size.  A multiple of every item size, so items never
+	 * span regions.
+	 */
+	public static final int DEFAULT_REGION_BYTES = 1 << 28;
+	private static final List<Class<?>> PRIMITIVES = Arrays.<Class<?>>asList(
+			byte.class, short.class, char.class, int.class, long.class, float.class, double.class);
+	private static final int[] ITEM_BYTES = {1, 2, 2, 4, 8, 4, 8};
+	private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "MappedFileBuffer prefetcher");
+		t.setDaemon(true);
+		return t;
+	});
+	private final FileChannel channel;
+	private final ByteOrder byteOrder;
+	private final int kind, itemBytes, regionBytes;
+	private final long fileBytes, items;
+	/**
+	 * The mapped regions, starting with the one containing the read position.
+	 * Replaced (never modified) when the window moves or grows.
+	 */
+	private volatile Window window;
+	/**
+	 * The region following the window, being mapped in the background, and
+	 * its index (or -1 if none).
+	 */
+	private Future<MappedByteBuffer> prefetch;
+	private long prefetchRegion = -1;
+	/**
+	 * The read position, in items.
+	 */
+	private long position;
+
+	private static final class Window {
+		private final long firstRegion;
+		private final ByteBuffer[] regions;
+		private Window(long firstRegion, ByteBuffer[] regions) {
+			this.firstRegion = firstRegion;
+			this.regions = regions;
+		}
+	}
+
+	private MappedFileBuffer(FileChannel channel, Class<?> type, ByteOrder byteOrder, int regionBytes) throws IOException {
+		this.channel = channel;
+		this.byteOrder = byteOrder;
+		this.kind = PRIMITIVES.indexOf(Primitives.unwrap(type));
+		this.itemBytes = ITEM_BYTES[kind];
+		checkArgument(regionBytes > 0 && regionBytes % Long.BYTES == 0, "bad region size %s", regionBytes);
+		this.regionBytes = regionBytes;
+		this.fileBytes = channel.size();
+		this.items = fileBytes / itemBytes;
+		this.window = new Window(0, new ByteBuffer[]{map(0)});
+		prefetch(1);
+	}
+
+	/**
+	 * Creates a MappedFileBuffer reading items of the given primitive wrapper
+	 * type from the given file.
+	 * @param path the file to read
+	 * @param type the primitive wrapper type of the items
+	 * @param byteOrder the byte order of the file
+	 * @param regionBytes the size of each mapped region, a multiple of 8
+	 * @return a buffer over the file
+	 */
+	public static MappedFileBuffer create(Path path, Class<?> type, ByteOrder byteOrder, int regionBytes) {
+		checkArgument(Primitives.isWrapperType(type) && PRIMITIVES.contains(Primitives.unwrap(type)),
+				"not a numeric wrapper type: %s", type);
+		try {
+			//Mappings remain valid after the channel is closed, but we map
+			//lazily, so this stays open until the last region is mapped.
+			return new MappedFileBuffer(FileChannel.open(path, StandardOpenOption.READ), type, byteOrder, regionBytes);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private MappedByteBuffer map(long region) {
+		long offset = region * regionBytes;
+		long length = Math.min(regionBytes, fileBytes - offset);
+		if (length <= 0) {
+			closeChannel();
+			return null;
+		}
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			buffer.order(byteOrder);
+			//Regions are mapped in order and never remapped, so after the last
+			//one we're done with the file.
+			if (offset + length == fileBytes)
+				closeChannel();
+			return buffer;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private void closeChannel() {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			//we only read, so nothing was lost
+		}
+	}
+
+	private void prefetch(long region) {
+		if (region * regionBytes >= fileBytes)
+			return;
+		prefetchRegion = region;
+		prefetch = PREFETCHER.submit(() -> {
+			MappedByteBuffer buffer = map(region);
+			buffer.load();
+			return buffer;
+		});
+	}
+
+	/**
+	 * Returns the given region, mapping it if it was prefetched or isn't
+	 * mapped.
+	 */
+	private MappedByteBuffer take(long region) {
+		if (region == prefetchRegion) {
+			prefetchRegion = -1;
+			try {
+				//Wait even if interrupted: the prefetch may close the channel
+				//once it maps the last region, so we can't map it here.
+				return Uninterruptibles.getUninterruptibly(prefetch);
+			} catch (ExecutionException ex) {
+				//mapping failed; fall through and try again here
+			}
+		}
+		return map(region);
+	}
+
+	@Override
+	public Object peek(int index) {
+		if (index < 0 || index >= size())
+			throw new IndexOutOfBoundsException(String.format("%d of %d", index, size()));
+		long byteOffset = (position + index) * itemBytes;
+		long region = byteOffset / regionBytes;
+		Window w = window;
+		if (region - w.firstRegion >= w.regions.length)
+			w = grow(region);
+		return get(w.regions[(int)(region - w.firstRegion)], (int)(byteOffset % regionBytes));
+	}
+
+	/**
+	 * Extends the window to include the given region.  Only happens when
+	 * peeks go past the regions we have, which (for reasonable region sizes)
+	 * only happens once per region.
+	 */
+	private synchronized Window grow(long region) {
+		Window w = window;
+		int have = w.regions.length;
+		if (region - w.firstRegion < have)
+			return w; //another core got here first
+		ByteBuffer[] regions = Arrays.copyOf(w.regions, (int)(region - w.firstRegion + 1));
+		for (int i = have; i < regions.length; ++i)
+			regions[i] = take(w.firstRegion + i);
+		w = new Window(w.firstRegion, regions);
+		window = w;
+		prefetch(w.firstRegion + regions.length);
+		return w;
+	}
+
+	private Object get(ByteBuffer buffer, int offset) {
+		switch (kind) {
+			case 0: return buffer.get(offset);
+			case 1: return buffer.getShort(offset);
+			case 2: return buffer.getChar(offset);
+			case 3: return buffer.getInt(offset);
+			case 4: return buffer.getLong(offset);
+			case 5: return buffer.getFloat(offset);
+			case 6: return buffer.getDouble(offset);
+			default: throw new AssertionError(kind);
+		}
+	}
+
+	@Override
+	public synchronized void consume(int items) {
+		if (items < 0 || items > size())
+			throw new IndexOutOfBoundsException(String.format("%d of %d", items, size()));
+		position += items;
+		long region = position * itemBytes / regionBytes;
+		Window w = window;
+		if (region == w.firstRegion)
+			return;
+		//Drop the regions we've passed (their mappings are released when
+		//collected), keeping at least one region beyond the read position.
+		long drop = region - w.firstRegion;
+		ByteBuffer[] regions;
+		if (drop < w.regions.length)
+			regions = Arrays.copyOfRange(w.regions, (int)drop, Math.max(w.regions.length, (int)drop + 1));
+		else
+			regions = new ByteBuffer[1];
+		for (int i = 0; i < regions.length; ++i)
+			if (regions[i] == null)
+				regions[i] = take(region + i);
+		if (regions[0] == null) //at end of file
+			regions = new ByteBuffer[0];
+		window = new Window(region, regions);
+		if (prefetchRegion != region + regions.length)
+			prefetch(region + regions.length);
+	}
+
+	@Override
+	public Object read() {
+		if (size() == 0)
+			return null;
+		Object item = peek(0);
+		consume(1);
+		return item;
+	}
+
+	@Override
+	public int size() {
+		return (int)Math.min(Integer.MAX_VALUE, items - position);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MappedFileBuffer(%s, %d of %d items, %d-byte regions)",
+				Primitives.wrap(PRIMITIVES.get(kind)).getSimpleName(), position, items, regionBytes);
+	}
+}
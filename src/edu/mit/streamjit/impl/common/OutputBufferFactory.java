@@ -37,6 +37,25 @@ import java.lang.invoke.MethodType;
 public abstract class OutputBufferFactory {
 	public abstract Buffer createWritableBuffer(int writerMinSize);
 
+	/**
+	 * Called after a stream writing to buffers created by this factory has
+	 * finished draining (so no more items will be written), to flush those
+	 * buffers and release their resources.  The default implementation does
+	 * nothing.
+	 */
+	public void close() {}
+
+	/**
+	 * Returns true if buffers created by this factory lose data or leak
+	 * resources unless {@link #close()} is called after draining, so stream
+	 * compilers that can't guarantee the call can reject this output.  The
+	 * default implementation returns false.
+	 * @return true if close() must be called
+	 */
+	public boolean requiresClose() {
+		return false;
+	}
+
 	public static MethodHandles.Lookup OUTPUT_LOOKUP;
 	private static final class OutputHolder {
 		private static final MethodHandle getOutputBufferFactory;
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.common;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.primitives.Ints;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs blob core code as cooperative tasks on a work-stealing pool sized to
+ * the machine, rather than on one dedicated thread per core.  Many compiled
+ * streams can share one executor without oversubscribing the CPUs.
+ * <p/>
+ * Each task runs its core code repeatedly for a time slice, then requeues
+ * itself so other tasks get a turn.  When the core code has no work it calls
+ * its {@link IdleStrategy}, which (via {@link #idleInTask()}) ends the slice;
+ * the task is then resubmitted after an exponentially increasing delay, so
+ * blobs with empty inputs don't occupy pool threads.  Core code that can't
+ * return mid-iteration (e.g., a compiler blob waiting for input inside its
+ * barrier action) keeps idling; those idles block through
+ * {@link ForkJoinPool#managedBlock} so the pool can compensate and upstream
+ * tasks still run.
+ * <p/>
+ * Blob hosts choose an executor with the configuration's "coreExecutor"
+ * extra data (see {@link #fromConfiguration(Configuration)}).
+ * @since 10/17/2026
+ */
+public final class SharedCoreExecutor {
+	private static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(1),
+			MIN_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(10),
+			MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final ThreadLocal<Task> CURRENT_TASK = new ThreadLocal<>();
+	/**
+	 * The configuration extra data key holding the executor specification
+	 * string.
+	 */
+	public static final String EXTRA_DATA_KEY = "coreExecutor";
+	private final ForkJoinPool pool;
+	/**
+	 * Resubmits idle tasks after their delay.  Never runs core code.
+	 */
+	private final ScheduledExecutorService timer;
+
+	public SharedCoreExecutor(int parallelism) {
+		checkArgument(parallelism > 0, "bad parallelism %s", parallelism);
+		this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "SharedCoreExecutor-timer");
+			t.setDaemon(true);
+			return t;
+		});
+		stpe.setRemoveOnCancelPolicy(true);
+		this.timer = stpe;
+	}
+
+	private static final class SharedHolder {
+		private static final SharedCoreExecutor SHARED = new SharedCoreExecutor(Runtime.getRuntime().availableProcessors());
+	}
+	/**
+	 * Executors created by {@link #parse(String)}, by parallelism.  Never
+	 * shut down, like the shared executor, so each specification creates its
+	 * threads once no matter how many streams (or reconfigurations) use it.
+	 */
+	private static final ConcurrentHashMap<Integer, SharedCoreExecutor> BY_PARALLELISM = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the JVM-wide executor, with one pool thread per available
+	 * processor.
+	 * @return the shared executor
+	 */
+	public static SharedCoreExecutor shared() {
+		return SharedHolder.SHARED;
+	}
+
+	/**
+	 * Returns the executor specified by the given configuration's
+	 * "coreExecutor" extra data, or null (meaning one dedicated thread per
+	 * core) if it isn't present.
+	 * @param config a configuration
+	 * @return an executor, or null
+	 */
+	public static SharedCoreExecutor fromConfiguration(Configuration config) {
+		Object spec = config.getExtraData(EXTRA_DATA_KEY);
+		return spec != null ? parse((String)spec) : null;
+	}
+
+	/**
+	 * Parses an executor specification, one of:
+	 * <ul>
+	 * <li>"threads": one dedicated thread per core (returns null)
+	 * <li>"shared": the JVM-wide shared executor
+	 * <li>"shared:N": the JVM-wide executor with N pool threads (created on
+	 * first use)
+	 * </ul>
+	 * @param spec the specification
+	 * @return an executor, or null
+	 * @throws IllegalArgumentException if the specification is malformed
+	 */
+	public static SharedCoreExecutor parse(String spec) {
+		switch (spec) {
+			case "threads":
+				return null;
+			case "shared":
+				return shared();
+		}
+		checkArgument(spec.startsWith("shared:"), "bad core executor %s", spec);
+		Integer parallelism = Ints.tryParse(spec.substring("shared:".length()).trim());
+		checkArgument(parallelism != null && parallelism > 0, "bad core executor %s", spec);
+		return BY_PARALLELISM.computeIfAbsent(parallelism, SharedCoreExecutor::new);
+	}
+
+	/**
+	 * Creates a task to run the given core code on this executor.  The task
+	 * does not run until started.
+	 * @param coreCode the core code
+	 * @param name a name for the task (used in toString())
+	 * @return a new task
+	 */
+	public Task newTask(Runnable coreCode, String name) {
+		return new Task(coreCode, name);
+	}
+
+	/**
+	 * Called by {@link IdleStrategy} implementations at the top of
+	 * {@link IdleStrategy#idle()}.  If the calling thread is not running a
+	 * task, returns false and the strategy idles as usual.  Otherwise, the
+	 * first call in a time slice asks the task to end its slice and returns
+	 * immediately; later calls (from core code that didn't return) block
+	 * briefly through the pool's managed blocking.  Either way, returns true
+	 * and the strategy should not idle itself.
+	 * @return true if the idle was handled for a task
+	 */
+	static boolean idleInTask() {
+		Task task = CURRENT_TASK.get();
+		if (task == null)
+			return false;
+		if (!task.idleRequested) {
+			task.idleRequested = true;
+			return true;
+		}
+		task.managedPark();
+		return true;
+	}
+
+	/**
+	 * A core code Runnable scheduled on a SharedCoreExecutor.
+	 */
+	public final class Task implements CoreRunner, Runnable {
+		private final Runnable coreCode;
+		private final String name;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean started = false, stopping = false;
+		//Only accessed by the thread running the task.
+		private boolean idleRequested;
+		private long delayNanos = MIN_DELAY_NANOS, parkNanos;
+		private Task(Runnable coreCode, String name) {
+			this.coreCode = coreCode;
+			this.name = name;
+		}
+
+		@Override
+		public void start() {
+			checkState(!started, "already started: %s", this);
+			started = true;
+			pool.execute(this);
+		}
+
+		@Override
+		public void run() {
+			idleRequested = false;
+			parkNanos = MIN_DELAY_NANOS;
+			long deadline = System.nanoTime() + SLICE_NANOS;
+			int runs = 0;
+			CURRENT_TASK.set(this);
+			try {
+				while (!stopping && !idleRequested && System.nanoTime() - deadline < 0) {
+					coreCode.run();
+					++runs;
+				}
+			} catch (Throwable t) {
+				//Count down so waiting threads don't get stuck.
+				done.countDown();
+				throw t;
+			} finally {
+				CURRENT_TASK.remove();
+			}
+
+			if (stopping)
+				done.countDown();
+			else if (idleRequested) {
+				//Only back off further if we didn't get anything done at all.
+				delayNanos = runs > 1 ? MIN_DELAY_NANOS : Math.min(delayNanos << 1, MAX_DELAY_NANOS);
+				timer.schedule(() -> pool.execute(this), delayNanos, TimeUnit.NANOSECONDS);
+			} else {
+				delayNanos = MIN_DELAY_NANOS;
+				pool.execute(this);
+			}
+		}
+
+		private void managedPark() {
+			final long nanos = parkNanos;
+			parkNanos = Math.min(parkNanos << 1, MAX_DELAY_NANOS);
+			try {
+				ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+					private boolean parked = false;
+					@Override
+					public boolean block() {
+						LockSupport.parkNanos(Task.this, nanos);
+						parked = true;
+						return true;
+					}
+					@Override
+					public boolean isReleasable() {
+						return parked || stopping;
+					}
+				});
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void requestStop() {
+			stopping = true;
+		}
+
+		@Override
+		public void join() throws InterruptedException {
+			done.await();
+		}
+
+		@Override
+		public boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+			return done.await(timeout, unit);
+		}
+
+		@Override
+		public boolean isAlive() {
+			return started && done.getCount() > 0;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import com.google.common.collect.ImmutableSet;
+import edu.mit.streamjit.impl.blob.AbstractReadOnlyBuffer;
+import edu.mit.streamjit.impl.blob.PeekableBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A PeekableBuffer over the lines of a text file, allowing random access to
+ * any line in the window between the read position and the furthest peek, so
+ * Compiler2's data-parallel replicas of the first worker can each read and
+ * decode their own lines directly (through PeekableBufferConcreteStorage)
+ * rather than having one thread read the lines into storage.
+ * <p/>
+ * The file is divided into splits of about a fixed size, each ending at a
+ * newline.  A split's boundaries only depend on the bytes near its nominal
+ * start and end, so splits are mapped and indexed (finding the line starts)
+ * in parallel on a pool, ahead of the read position.  Lines are decoded when
+ * peeked; only charsets in which '\n' is always the single byte 0x0A are
+ * supported.
+ * <p/>
+ * As with {@link MappedFileBuffer}, peeks may come from several cores at once,
+ * but consume() is only called while no one is peeking.
+ * @since 10/17/2026
+ */
+public final class SplitTextFileBuffer extends AbstractReadOnlyBuffer implements PeekableBuffer {
+	/**
+	 * The default nominal split size.
+	 */
+	public static final int DEFAULT_SPLIT_BYTES = 1 << 25;
+	private static final ImmutableSet<Charset> SUPPORTED_CHARSETS = ImmutableSet.of(
+			StandardCharsets.US_ASCII, StandardCharsets.ISO_8859_1, StandardCharsets.UTF_8);
+	private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+	private static final ExecutorService INDEXERS = Executors.newFixedThreadPool(PARALLELISM, r -> {
+		Thread t = new Thread(r, "SplitTextFileBuffer indexer");
+		t.setDaemon(true);
+		return t;
+	});
+	private final Path path;
+	private final FileChannel channel;
+	private final Charset charset;
+	private final int splitBytes, target;
+	private final long fileBytes, splitCount;
+	/**
+	 * The number of splits not yet indexed; the indexer finishing the last
+	 * one closes the channel.
+	 */
+	private final AtomicLong unindexed;
+	/**
+	 * The indexed splits, starting with the one containing the read position.
+	 * Replaced (never modified) when the window moves or grows.
+	 */
+	private volatile Window window;
+	/* guarded by this */
+	private final ArrayDeque<Future<Split>> pending = new ArrayDeque<>();
+	private long nextSplit;
+	/**
+	 * The read position, in lines.
+	 */
+	private long position;
+
+	private static final class Split {
+		private final ByteBuffer bytes;
+		private final int[] starts;
+		private final int lines;
+		private Split(ByteBuffer bytes, int[] starts, int lines) {
+			this.bytes = bytes;
+			this.starts = starts;
+			this.lines = lines;
+		}
+	}
+
+	private static final class Window {
+		private final Split[] splits;
+		/**
+		 * The index of each split's first line, plus the index after the
+		 * last split's last line.
+		 */
+		private final long[] firstLines;
+		private Window(Split[] splits, long[] firstLines) {
+			this.splits = splits;
+			this.firstLines = firstLines;
+		}
+		private long endLine() {
+			return firstLines[splits.length];
+		}
+	}
+
+	private SplitTextFileBuffer(Path path, FileChannel channel, Charset charset, int splitBytes, int readerMinSize) throws IOException {
+		this.path = path;
+		this.channel = channel;
+		this.charset = charset;
+		this.splitBytes = splitBytes;
+		this.target = Math.max(readerMinSize, 1);
+		this.fileBytes = channel.size();
+		this.splitCount = (fileBytes + splitBytes - 1) / splitBytes;
+		this.unindexed = new AtomicLong(splitCount);
+		if (splitCount == 0)
+			closeChannel();
+		this.window = new Window(new Split[0], new long[]{0});
+		synchronized (this) {
+			submit();
+		}
+	}
+
+	/**
+	 * Creates a SplitTextFileBuffer over the lines of the given file.
+	 * @param path the file to read
+	 * @param charset the file's charset (US-ASCII, ISO-8859-1 or UTF-8)
+	 * @param splitBytes the nominal split size
+	 * @param readerMinSize the reader's minimum buffer size; size() waits for
+	 * at least this many lines (or the end of the file) to be indexed
+	 * @return a buffer over the file's lines
+	 */
+	public static SplitTextFileBuffer create(Path path, Charset charset, int splitBytes, int readerMinSize) {
+		checkArgument(SUPPORTED_CHARSETS.contains(charset), "unsupported charset %s", charset);
+		checkArgument(splitBytes > 0, "bad split size %s", splitBytes);
+		try {
+			//Mappings remain valid after the channel is closed, but we map
+			//lazily, so this stays open until every split is indexed.
+			return new SplitTextFileBuffer(path, FileChannel.open(path, StandardOpenOption.READ), charset, splitBytes, readerMinSize);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Keeps up to PARALLELISM splits being indexed ahead of the window.
+	 */
+	private void submit() {
+		while (pending.size() < PARALLELISM && nextSplit < splitCount) {
+			final long split = nextSplit++;
+			pending.addLast(INDEXERS.submit(() -> index(split)));
+		}
+	}
+
+	/**
+	 * Returns the byte offset of the first line starting at or after the
+	 * given offset, that is, just past the first newline at or after offset - 1.
+	 */
+	private long boundary(long offset) throws IOException {
+		if (offset <= 0)
+			return 0;
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		long pos = offset - 1;
+		while (pos < fileBytes) {
+			buf.clear();
+			int read = channel.read(buf, pos);
+			if (read <= 0)
+				break;
+			for (int i = 0; i < read; ++i)
+				if (buf.get(i) == '\n')
+					return pos + i + 1;
+			pos += read;
+		}
+		return fileBytes;
+	}
+
+	/**
+	 * Maps the given split and finds its line starts, closing the channel if
+	 * this was the last split to be indexed.  Runs on the indexer pool.
+	 */
+	private Split index(long split) throws IOException {
+		try {
+			return indexSplit(split);
+		} finally {
+			if (unindexed.decrementAndGet() == 0)
+				closeChannel();
+		}
+	}
+
+	private Split indexSplit(long split) throws IOException {
+		long start = boundary(split * splitBytes), end = boundary((split + 1) * splitBytes);
+		if (end <= start)
+			return new Split(null, new int[0], 0);
+		checkArgument(end - start <= Integer.MAX_VALUE, "line too long in %s near byte %s", path, start);
+		MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		int length = bytes.limit();
+		int[] starts = new int[Math.max(16, length / 64)];
+		int lines = 0;
+		starts[lines++] = 0;
+		for (int i = 0; i < length - 1; ++i)
+			if (bytes.get(i) == '\n') {
+				if (lines == starts.length)
+					starts = Arrays.copyOf(starts, starts.length * 2);
+				starts[lines++] = i + 1;
+			}
+		return new Split(bytes, starts, lines);
+	}
+
+	private void closeChannel() {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			//we only read, so nothing was lost
+		}
+	}
+
+	/**
+	 * Adds indexed splits to the window until it extends to the given line
+	 * (exclusive) or covers the whole file.
+	 */
+	private synchronized Window grow(long endLine) {
+		Window w = window;
+		if (w.endLine() >= endLine || pending.isEmpty())
+			return w;
+		Split[] splits = w.splits;
+		long[] firstLines = w.firstLines;
+		int n = splits.length;
+		while (firstLines[n] < endLine && !pending.isEmpty()) {
+			Split s = take(pending.removeFirst());
+			submit();
+			splits = Arrays.copyOf(splits, n + 1);
+			firstLines = Arrays.copyOf(firstLines, n + 2);
+			splits[n] = s;
+			firstLines[n + 1] = firstLines[n] + s.lines;
+			++n;
+		}
+		w = new Window(splits, firstLines);
+		window = w;
+		return w;
+	}
+
+	private Split take(Future<Split> future) {
+		boolean interrupted = false;
+		try {
+			while (true)
+				try {
+					return future.get();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+		} catch (ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public Object peek(int index) {
+		if (index < 0)
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		long line = position + index;
+		Window w = window;
+		if (line >= w.endLine()) {
+			w = grow(line + 1);
+			if (line >= w.endLine())
+				throw new IndexOutOfBoundsException(String.format("%d of %d", index, w.endLine() - position));
+		}
+		int s = Arrays.binarySearch(w.firstLines, line);
+		if (s < 0)
+			s = -s - 2; //insertion point - 1
+		else
+			//Skip empty splits starting at this line.
+			while (w.splits[s].lines == 0)
+				++s;
+		return decode(w.splits[s], (int)(line - w.firstLines[s]));
+	}
+
+	private String decode(Split split, int line) {
+		int start = split.starts[line];
+		int end = line + 1 < split.lines ? split.starts[line + 1] : split.bytes.limit();
+		if (end > start && split.bytes.get(end - 1) == '\n')
+			--end;
+		if (end > start && split.bytes.get(end - 1) == '\r')
+			--end;
+		byte[] data = new byte[end - start];
+		ByteBuffer dup = split.bytes.duplicate();
+		dup.position(start);
+		dup.get(data);
+		return new String(data, charset);
+	}
+
+	@Override
+	public synchronized void consume(int items) {
+		if (items < 0 || items > size())
+			throw new IndexOutOfBoundsException(String.format("%d of %d", items, size()));
+		position += items;
+		Window w = window;
+		int drop = 0;
+		while (drop < w.splits.length && w.firstLines[drop + 1] <= position)
+			++drop;
+		if (drop > 0)
+			//Passed splits are unmapped when collected.
+			window = new Window(Arrays.copyOfRange(w.splits, drop, w.splits.length),
+					Arrays.copyOfRange(w.firstLines, drop, w.firstLines.length));
+	}
+
+	@Override
+	public Object read() {
+		if (size() == 0)
+			return null;
+		Object item = peek(0);
+		consume(1);
+		return item;
+	}
+
+	@Override
+	public int size() {
+		Window w = window;
+		if (w.endLine() - position < target)
+			w = grow(position + target);
+		return (int)Math.min(Integer.MAX_VALUE, w.endLine() - position);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SplitTextFileBuffer(%s, %s, line %d)", path, charset, position);
+	}
+}
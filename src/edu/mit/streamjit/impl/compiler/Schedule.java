@@ -23,19 +23,40 @@ package edu.mit.streamjit.impl.compiler;
 
 import static com.google.common.base.Preconditions.*;
 import com.google.common.base.Predicates;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.math.LongMath;
+import edu.mit.streamjit.util.Fraction;
 import edu.mit.streamjit.util.ilpsolve.ILPSolver;
 import edu.mit.streamjit.util.ilpsolve.SolverException;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
- *
+ * A schedule: how many times each thing fires, subject to buffering and
+ * execution constraints, minimizing a weighted sum of firings and excess
+ * buffering.
+ * <p/>
+ * Systems of only equality constraints (steady-state schedules) are solved
+ * exactly by solving the balance equations with rational arithmetic.  Systems
+ * of only lower-bound constraints (init schedules) where firing never reduces
+ * the objective are solved exactly by simulation: each thing fires just enough
+ * to satisfy the things downstream of it.  Other systems, and systems the above
+ * can't solve without overflowing, go to the ILP solver, which needs the
+ * native lp_solve library.
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 8/1/2013
  */
@@ -52,6 +73,103 @@ public final class Schedule<T> {
 			ImmutableSet<ExecutionConstraint<T>> executionConstraints,
 			ImmutableSet<BufferingConstraint<T>> bufferingConstraints,
 			int multiplier, int fireCost, int excessBufferCost) {
+		ImmutableList<T> order = canonicalOrder(things);
+		String key = canonicalKey(order, executionConstraints, bufferingConstraints, fireCost, excessBufferCost);
+		int[] cached = SOLUTIONS.getIfPresent(key);
+		Map<T, Integer> solution = null;
+		if (cached != null) {
+			solution = new HashMap<>();
+			for (int i = 0; i < order.size(); ++i)
+				solution.put(order.get(i), cached[i]);
+		}
+		if (solution == null)
+			try {
+				solution = solveWithoutILP(things.asList(), executionConstraints, bufferingConstraints, fireCost, excessBufferCost);
+			} catch (ArithmeticException ex) {
+				//overflowed; let the ILP solver try
+			}
+		if (solution == null)
+			solution = solveWithILP(things, executionConstraints, bufferingConstraints, fireCost, excessBufferCost);
+		if (cached == null) {
+			int[] toCache = new int[order.size()];
+			for (int i = 0; i < order.size(); ++i)
+				toCache[i] = solution.get(order.get(i));
+			SOLUTIONS.put(key, toCache);
+		}
+
+		ImmutableMap.Builder<T, Integer> schedule = ImmutableMap.builder();
+		for (T thing : things)
+			schedule.put(thing, solution.get(thing) * multiplier);
+		return new Schedule<>(things, bufferingConstraints, schedule.build());
+	}
+
+	/**
+	 * Recently computed solutions (before multiplying), keyed by the canonical
+	 * form of their system (see canonicalKey()).  The compiler schedules the
+	 * same systems again whenever the same graph is recompiled (restarts, the
+	 * tuner revisiting parameters that don't affect scheduling), and the ILP
+	 * solver in particular is slow.  The solution only depends on the
+	 * system, so this is safe across graphs.
+	 */
+	private static final Cache<String, int[]> SOLUTIONS = CacheBuilder.newBuilder()
+			.maximumSize(1024)
+			.build();
+
+	/**
+	 * Discards all cached solutions, so subsequent schedules are solved from
+	 * scratch.  Used when measuring cold compile times.
+	 */
+	public static void clearSolutionCache() {
+		SOLUTIONS.invalidateAll();
+	}
+
+	/**
+	 * Returns the things in a canonical order: their natural order if they're
+	 * all mutually comparable and distinct under it (as Actors and
+	 * ActorGroups are, by id), else their set order.  Any order gives a
+	 * correct cache key; a canonical one makes recompilations hit the cache.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <T> ImmutableList<T> canonicalOrder(ImmutableSet<T> things) {
+		for (T t : things)
+			if (!(t instanceof Comparable))
+				return things.asList();
+		try {
+			List<T> sorted = new ArrayList<>(things);
+			Collections.sort((List<Comparable>)sorted);
+			for (int i = 1; i < sorted.size(); ++i)
+				if (((Comparable)sorted.get(i-1)).compareTo(sorted.get(i)) == 0)
+					return things.asList();
+			return ImmutableList.copyOf(sorted);
+		} catch (ClassCastException ex) {
+			return things.asList();
+		}
+	}
+
+	/**
+	 * Returns a string describing the given system with things replaced by
+	 * their index in the given order.  Equal keys mean equal systems (up to
+	 * renaming the things), which have equal solutions.
+	 */
+	private static <T> String canonicalKey(ImmutableList<T> order,
+			ImmutableSet<ExecutionConstraint<T>> executionConstraints,
+			ImmutableSet<BufferingConstraint<T>> bufferingConstraints,
+			int fireCost, int excessBufferCost) {
+		Map<T, Integer> index = indexMap(order);
+		List<String> parts = new ArrayList<>(executionConstraints.size() + bufferingConstraints.size());
+		for (ExecutionConstraint<T> c : executionConstraints)
+			parts.add(String.format("e%d>=%d", index.get(c.thing), c.minExecutions));
+		for (BufferingConstraint<T> c : bufferingConstraints)
+			parts.add(String.format("b%d,%d:%d,%d,%d%s%d", index.get(c.upstream), index.get(c.downstream),
+					c.pushRate, c.popRate, c.excessPeeks, c.condition, c.bufferDelta));
+		Collections.sort(parts);
+		return String.format("%d;%d,%d;%s", order.size(), fireCost, excessBufferCost, parts);
+	}
+
+	private static <T> Map<T, Integer> solveWithILP(ImmutableSet<T> things,
+			ImmutableSet<ExecutionConstraint<T>> executionConstraints,
+			ImmutableSet<BufferingConstraint<T>> bufferingConstraints,
+			int fireCost, int excessBufferCost) {
 		ILPSolver solver = new ILPSolver();
 		//There's one variable for each thing, which represents the number of
 		//times it fires.  This uses the default bounds.  (TODO: perhaps a bound
@@ -112,8 +230,241 @@ public final class Schedule<T> {
 
 		ImmutableMap.Builder<T, Integer> schedule = ImmutableMap.builder();
 		for (Map.Entry<T, ILPSolver.Variable> e : variables.entrySet())
-			schedule.put(e.getKey(), e.getValue().value() * multiplier);
-		return new Schedule<>(things, bufferingConstraints, schedule.build());
+			schedule.put(e.getKey(), e.getValue().value());
+		return schedule.build();
+	}
+
+	/**
+	 * Solves the given system without the ILP solver, or returns null if it
+	 * isn't of a form we can solve.
+	 * @throws ArithmeticException if the solution overflows
+	 */
+	private static <T> Map<T, Integer> solveWithoutILP(ImmutableList<T> things,
+			ImmutableSet<ExecutionConstraint<T>> executionConstraints,
+			ImmutableSet<BufferingConstraint<T>> bufferingConstraints,
+			int fireCost, int excessBufferCost) {
+		if (things.isEmpty())
+			return null;
+		boolean allEqual = true, allAtLeast = true;
+		for (BufferingConstraint<T> c : bufferingConstraints) {
+			allEqual &= c.condition == BufferingConstraint.Condition.EQUAL;
+			allAtLeast &= c.condition == BufferingConstraint.Condition.GREATER_THAN_EQUAL;
+		}
+		long[] solution;
+		if (allEqual)
+			solution = solveBalanceEquations(things, executionConstraints, bufferingConstraints);
+		else if (allAtLeast)
+			solution = simulate(things, executionConstraints, bufferingConstraints, fireCost, excessBufferCost);
+		else
+			solution = null;
+		if (solution == null)
+			return null;
+		ImmutableMap.Builder<T, Integer> schedule = ImmutableMap.builder();
+		for (int i = 0; i < things.size(); ++i)
+			schedule.put(things.get(i), Math.toIntExact(solution[i]));
+		return schedule.build();
+	}
+
+	/**
+	 * Solves a system of buffer-exactly-zero constraints: finds the smallest
+	 * repetition vector of each connected component, scaled up to meet the
+	 * execution constraints.  Returns null if some constraint forces a thing
+	 * not to fire, or if more than one component could fire without
+	 * violating execution constraints and it isn't clear which one the
+	 * objective prefers.
+	 * @throws ScheduleException if the rates are inconsistent
+	 */
+	private static <T> long[] solveBalanceEquations(ImmutableList<T> things,
+			ImmutableSet<ExecutionConstraint<T>> executionConstraints,
+			ImmutableSet<BufferingConstraint<T>> bufferingConstraints) {
+		for (BufferingConstraint<T> c : bufferingConstraints)
+			if (c.bufferDelta != 0 || c.pushRate == 0 || c.popRate == 0)
+				return null;
+		Map<T, Integer> index = indexMap(things);
+		List<List<BufferingConstraint<T>>> incident = new ArrayList<>(things.size());
+		for (int i = 0; i < things.size(); ++i)
+			incident.add(new ArrayList<BufferingConstraint<T>>());
+		for (BufferingConstraint<T> c : bufferingConstraints) {
+			incident.get(index.get(c.upstream)).add(c);
+			incident.get(index.get(c.downstream)).add(c);
+		}
+
+		Fraction[] rates = new Fraction[things.size()];
+		int[] component = new int[things.size()];
+		List<List<Integer>> components = new ArrayList<>();
+		for (int root = 0; root < things.size(); ++root) {
+			if (rates[root] != null)
+				continue;
+			List<Integer> members = new ArrayList<>();
+			rates[root] = Fraction.ONE;
+			ArrayDeque<Integer> work = new ArrayDeque<>();
+			work.add(root);
+			while (!work.isEmpty()) {
+				int t = work.remove();
+				component[t] = components.size();
+				members.add(t);
+				for (BufferingConstraint<T> c : incident.get(t)) {
+					//push * rate(upstream) == pop * rate(downstream)
+					int other;
+					Fraction rate;
+					if (index.get(c.upstream) == t) {
+						other = index.get(c.downstream);
+						rate = rates[t].mul(new Fraction(c.pushRate, c.popRate));
+					} else {
+						other = index.get(c.upstream);
+						rate = rates[t].mul(new Fraction(c.popRate, c.pushRate));
+					}
+					if (rates[other] == null) {
+						rates[other] = rate;
+						work.add(other);
+					} else if (!rates[other].equals(rate))
+						throw new ScheduleException("inconsistent rates at "+c);
+				}
+			}
+			components.add(members);
+		}
+
+		long[] solution = new long[things.size()];
+		long[] scale = new long[components.size()];
+		for (List<Integer> members : components) {
+			long lcm = 1;
+			for (int t : members) {
+				long d = rates[t].denom();
+				lcm = LongMath.checkedMultiply(lcm / LongMath.gcd(lcm, d), d);
+			}
+			long gcd = 0;
+			for (int t : members) {
+				solution[t] = LongMath.checkedMultiply(rates[t].num(), lcm / rates[t].denom());
+				gcd = LongMath.gcd(gcd, solution[t]);
+			}
+			for (int t : members)
+				solution[t] /= gcd;
+		}
+		for (ExecutionConstraint<T> c : executionConstraints) {
+			int t = index.get(c.thing);
+			scale[component[t]] = Math.max(scale[component[t]],
+					LongMath.divide(c.minExecutions, solution[t], RoundingMode.CEILING));
+		}
+		//At least one thing must fire.
+		if (Arrays.stream(scale).allMatch(x -> x <= 0)) {
+			if (components.size() > 1)
+				return null;
+			scale[0] = 1;
+		}
+		for (int t = 0; t < solution.length; ++t)
+			solution[t] = LongMath.checkedMultiply(solution[t], Math.max(scale[component[t]], 0));
+		return solution;
+	}
+
+	/**
+	 * Solves a system of buffer-at-least constraints by simulation.  Each
+	 * constraint requires its upstream thing to fire enough times to supply
+	 * its downstream thing's firings, so starting from the execution
+	 * constraints and propagating those requirements upstream gives the least
+	 * solution: every feasible solution fires each thing at least as many
+	 * times.  If no thing's firing reduces the objective (that is, firing
+	 * costs at least as much as the excess buffering it consumes), the least
+	 * solution is therefore optimal.  Otherwise firing some things more might
+	 * reduce the objective, and only the ILP solver finds the best amount,
+	 * so we return null.  We also return null if some constraint bounds a
+	 * thing's firings from above.
+	 */
+	private static <T> long[] simulate(ImmutableList<T> things,
+			ImmutableSet<ExecutionConstraint<T>> executionConstraints,
+			ImmutableSet<BufferingConstraint<T>> bufferingConstraints,
+			int fireCost, int excessBufferCost) {
+		for (BufferingConstraint<T> c : bufferingConstraints)
+			if (c.pushRate == 0)
+				return null;
+		Map<T, Integer> index = indexMap(things);
+		ImmutableList<BufferingConstraint<T>> constraints = bufferingConstraints.asList();
+		int[] upstream = new int[constraints.size()];
+		List<List<Integer>> inputs = new ArrayList<>(things.size());
+		for (int i = 0; i < things.size(); ++i)
+			inputs.add(new ArrayList<Integer>());
+		long[] cost = new long[things.size()];
+		Arrays.fill(cost, fireCost);
+		for (int e = 0; e < constraints.size(); ++e) {
+			BufferingConstraint<T> c = constraints.get(e);
+			upstream[e] = index.get(c.upstream);
+			inputs.get(index.get(c.downstream)).add(e);
+			cost[upstream[e]] += (long)excessBufferCost * c.pushRate;
+			cost[index.get(c.downstream)] -= (long)excessBufferCost * c.popRate;
+		}
+		if (Arrays.stream(cost).anyMatch(x -> x < 0))
+			return null;
+
+		long[] solution = new long[things.size()];
+		for (ExecutionConstraint<T> c : executionConstraints)
+			solution[index.get(c.thing)] = Math.max(solution[index.get(c.thing)], c.minExecutions);
+		ArrayDeque<Integer> all = new ArrayDeque<>();
+		for (int t = 0; t < things.size(); ++t)
+			all.add(t);
+		if (!propagate(solution, all, constraints, upstream, inputs))
+			return null;
+		if (Arrays.stream(solution).anyMatch(x -> x > 0))
+			return solution;
+		//At least one thing must fire.  Any feasible solution fires some thing
+		//at least once, so it's at least the least solution with that thing
+		//firing once; the cheapest of those is optimal.
+		long[] best = null;
+		for (int t = 0; t < things.size(); ++t) {
+			long[] trial = solution.clone();
+			trial[t] = 1;
+			if (!propagate(trial, new ArrayDeque<>(Arrays.asList(t)), constraints, upstream, inputs))
+				continue;
+			if (best == null || dot(cost, trial) < dot(cost, best))
+				best = trial;
+		}
+		return best;
+	}
+
+	/**
+	 * Raises the given solution's firings until every constraint is
+	 * satisfied, starting from the given things (whose firings have
+	 * changed).  Returns false if a thing would fire more than
+	 * Integer.MAX_VALUE times (e.g., because the constraints around a cycle
+	 * can't be satisfied).
+	 */
+	private static <T> boolean propagate(long[] solution, ArrayDeque<Integer> work,
+			List<BufferingConstraint<T>> constraints, int[] upstream, List<List<Integer>> inputs) {
+		boolean[] queued = new boolean[solution.length];
+		for (int t : work)
+			queued[t] = true;
+		while (!work.isEmpty()) {
+			int t = work.remove();
+			queued[t] = false;
+			for (int e : inputs.get(t)) {
+				BufferingConstraint<T> c = constraints.get(e);
+				//push * upstream - pop * downstream >= delta
+				long required = LongMath.divide(c.bufferDelta + c.popRate * solution[t], c.pushRate, RoundingMode.CEILING);
+				int u = upstream[e];
+				if (required > solution[u]) {
+					if (required > Integer.MAX_VALUE)
+						return false;
+					solution[u] = required;
+					if (!queued[u]) {
+						queued[u] = true;
+						work.add(u);
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private static long dot(long[] a, long[] b) {
+		long sum = 0;
+		for (int i = 0; i < a.length; ++i)
+			sum = LongMath.checkedAdd(sum, LongMath.checkedMultiply(a[i], b[i]));
+		return sum;
+	}
+
+	private static <T> Map<T, Integer> indexMap(List<T> things) {
+		Map<T, Integer> index = new HashMap<>(things.size());
+		for (int i = 0; i < things.size(); ++i)
+			index.put(things.get(i), i);
+		return index;
 	}
 
 	public static <T> Builder<T> builder() {
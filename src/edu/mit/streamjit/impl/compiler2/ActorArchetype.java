@@ -23,10 +23,13 @@ package edu.mit.streamjit.impl.compiler2;
 
 import static com.google.common.base.Preconditions.*;
 import com.google.common.base.Predicates;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.Sets;
@@ -81,6 +84,7 @@ import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Contains information about a Worker subclass, detached from any particular
@@ -102,9 +106,15 @@ public class ActorArchetype {
 	 */
 	private final ImmutableList<java.lang.reflect.Field> fields;
 	/**
-	 * The Klass corresponding to the worker class.
+	 * The module the worker class's Klass is (lazily) loaded into.
 	 */
-	private final Klass workerKlass;
+	private final Module module;
+	/**
+	 * The Klass corresponding to the worker class, or null if not yet loaded.
+	 * Parsing the worker class is expensive and unnecessary when the generated
+	 * code comes from the cache, so we only do it when generating code.
+	 */
+	private Klass workerKlass;
 	private MethodHandle constructStateHolder;
 	private ImmutableMap<Pair<Class<?>, Class<?>>, MethodHandle> workMethods;
 	public ActorArchetype(Class<? extends Worker<?, ?>> workerClass, Module module) {
@@ -118,7 +128,7 @@ public class ActorArchetype {
 				}
 		}
 		this.fields = fieldsBuilder.build();
-		this.workerKlass = module.getKlass(workerClass);
+		this.module = module;
 	}
 
 	public Class<? extends Worker<?, ?>> workerClass() {
@@ -160,7 +170,18 @@ public class ActorArchetype {
 		//If we've removed all instances of this archetype, don't spin an empty class.
 		if (Iterables.isEmpty(actors)) return;
 
-		Module module = workerKlass.getParent();
+		ImmutableSet.Builder<Pair<Class<?>, Class<?>>> typePairs = ImmutableSet.builder();
+		for (WorkerActor a : actors)
+			typePairs.add(new Pair<Class<?>, Class<?>>(a.inputType().getRawType(), a.outputType().getRawType()));
+		GeneratedCodeKey cacheKey = new GeneratedCodeKey(workerClass, typePairs.build());
+		GeneratedCode cached = isCacheable() ? GENERATED_CODE.getIfPresent(cacheKey) : null;
+		if (cached != null) {
+			this.constructStateHolder = cached.constructStateHolder;
+			this.workMethods = cached.workMethods;
+			return;
+		}
+
+		Klass workerKlass = workerKlass();
 		TypeFactory types = module.types();
 		//We need to resolve work before making the state holder class so we
 		//pick up its uses.
@@ -219,10 +240,83 @@ public class ActorArchetype {
 			throw new AssertionError(ex);
 		}
 		this.workMethods = workMethodsBuilder.build();
+		if (isCacheable())
+			GENERATED_CODE.put(cacheKey, new GeneratedCode(constructStateHolder, workMethods));
+	}
+
+	private Klass workerKlass() {
+		if (workerKlass == null)
+			workerKlass = module.getKlass(workerClass);
+		return workerKlass;
+	}
+
+	/**
+	 * Returns true iff generated code for this archetype can be reused by
+	 * later compilations.  State holders copy the worker class's static fields
+	 * when initialized, so if any user-code static field is nonfinal, each
+	 * compilation must generate its own state holder to see the current value.
+	 */
+	private boolean isCacheable() {
+		for (Class<?> c = workerClass; c != Filter.class && c != Splitter.class && c != Joiner.class; c = c.getSuperclass())
+			for (java.lang.reflect.Field f : c.getDeclaredFields())
+				if (java.lang.reflect.Modifier.isStatic(f.getModifiers()) && !java.lang.reflect.Modifier.isFinal(f.getModifiers()))
+					return false;
+		return true;
+	}
+
+	/**
+	 * Recently generated archetype code, so recompiling the same workers (on
+	 * restart, or when the tuner revisits a configuration) doesn't parse the
+	 * worker classes and spin new classes again.  Generated code only depends
+	 * on the worker class and the input/output types the work methods are
+	 * specialized for, so it can be shared between compilations with
+	 * different configurations.  Evicting an entry lets its class loader (and
+	 * the module it was generated from) be collected once no blob uses it.
+	 */
+	private static final Cache<GeneratedCodeKey, GeneratedCode> GENERATED_CODE = CacheBuilder.newBuilder()
+			.maximumSize(256)
+			.build();
+
+	/**
+	 * Discards all cached generated code, so the next compilation of any
+	 * worker class generates its archetype code from scratch.  Used when
+	 * measuring cold compile times.
+	 */
+	public static void clearGeneratedCodeCache() {
+		GENERATED_CODE.invalidateAll();
+	}
+
+	private static final class GeneratedCodeKey {
+		private final Class<?> workerClass;
+		private final ImmutableSet<Pair<Class<?>, Class<?>>> typePairs;
+		private GeneratedCodeKey(Class<?> workerClass, ImmutableSet<Pair<Class<?>, Class<?>>> typePairs) {
+			this.workerClass = workerClass;
+			this.typePairs = typePairs;
+		}
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof GeneratedCodeKey))
+				return false;
+			GeneratedCodeKey other = (GeneratedCodeKey)obj;
+			return workerClass.equals(other.workerClass) && typePairs.equals(other.typePairs);
+		}
+		@Override
+		public int hashCode() {
+			return Objects.hash(workerClass, typePairs);
+		}
+	}
+
+	private static final class GeneratedCode {
+		private final MethodHandle constructStateHolder;
+		private final ImmutableMap<Pair<Class<?>, Class<?>>, MethodHandle> workMethods;
+		private GeneratedCode(MethodHandle constructStateHolder, ImmutableMap<Pair<Class<?>, Class<?>>, MethodHandle> workMethods) {
+			this.constructStateHolder = constructStateHolder;
+			this.workMethods = workMethods;
+		}
 	}
 
 	private Klass makeStateHolderKlass(String packageName) {
-		Module module = workerKlass.getParent();
+		Module module = workerKlass().getParent();
 		Klass stateHolder = new Klass(packageName + "." + workerKlass.getName() + "StateHolder",
 				module.getKlass(StateHolder.class),
 				ImmutableList.<Klass>of(),
@@ -268,7 +362,7 @@ public class ActorArchetype {
 
 	private ImmutableList<Instruction> initStateHolderField(Field workerField, Field holderField, Argument worker, Argument holder) {
 		assert !holderField.isStatic() || workerField.isStatic() : "can't initialize static holder field from instance worker field (no worker object available)";
-		Module module = workerKlass.getParent();
+		Module module = workerKlass().getParent();
 		TypeFactory types = module.types();
 		//We need to generate field initializers, but some worker fields may be
 		//private (thus inaccessible).  Unfortunately this means we need to
@@ -374,7 +468,7 @@ public class ActorArchetype {
 	 * to treat inputs()/outputs() as things to be specialized in ActorGroup)
 	 */
 	private void makeArgTempCopy(Argument arg, String localVarName, BasicBlock block) {
-		Module module = workerKlass.getParent();
+		Module module = workerKlass().getParent();
 		LocalVariable var = new LocalVariable(arg.getType(), localVarName, block.getParent());
 		Value toStore = arg;
 
@@ -405,7 +499,7 @@ public class ActorArchetype {
 	}
 
 	private void remap(CallInst inst, Class<?> inputType, Class<?> outputType) {
-		Module module = workerKlass.getParent();
+		Module module = workerKlass().getParent();
 		Method rwork = inst.getParent().getParent();
 		Method method = inst.getMethod();
 		Klass filterKlass = module.getKlass(Filter.class);
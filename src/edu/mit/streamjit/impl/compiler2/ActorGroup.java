@@ -23,6 +23,7 @@ package edu.mit.streamjit.impl.compiler2;
 
 import static com.google.common.base.Preconditions.*;
 import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
@@ -260,6 +261,27 @@ public class ActorGroup implements Comparable<ActorGroup> {
 			int unrollFactor,
 			ImmutableTable<Actor, Integer, IndexFunctionTransformer> inputTransformers,
 			ImmutableTable<Actor, Integer, IndexFunctionTransformer> outputTransformers) {
+		List<MethodHandle> loops = new ArrayList<>(2);
+		for (GroupLoop loop : plan(iterations, storage, switchFactory, unrollFactor, inputTransformers, outputTransformers))
+			loops.add(loop.asHandle());
+		return loops.isEmpty() ? Combinators.nop() : Combinators.semicolon(loops);
+	}
+
+	/**
+	 * Returns the loops that will run this ActorGroup for the given iterations
+	 * using the given ConcreteStorage instances: an unrolled loop followed by a
+	 * loop running the leftover iterations, omitting empty loops.
+	 * specialize() turns these into MethodHandle combinators;
+	 * CoreCodeEmitter turns them into bytecode.
+	 * @param iterations the range of iterations to run for
+	 * @param storage the storage being used
+	 * @return the loops to run, in order
+	 */
+	public ImmutableList<GroupLoop> plan(Range<Integer> iterations, Map<Storage, ConcreteStorage> storage,
+			BiFunction<MethodHandle[], WorkerActor, MethodHandle> switchFactory,
+			int unrollFactor,
+			ImmutableTable<Actor, Integer, IndexFunctionTransformer> inputTransformers,
+			ImmutableTable<Actor, Integer, IndexFunctionTransformer> outputTransformers) {
 		//TokenActors are special.
 		assert !isTokenGroup() : actors();
 
@@ -270,11 +292,13 @@ public class ActorGroup implements Comparable<ActorGroup> {
 		unrollFactor = Math.min(unrollFactor, totalIterations);
 		int unrolls = (totalIterations/unrollFactor);
 		int unrollEndpoint = iterations.lowerEndpoint() + unrolls*unrollFactor;
-		MethodHandle overall = Combinators.semicolon(
+		ImmutableList.Builder<GroupLoop> loops = ImmutableList.builder();
+		for (GroupLoop loop : new GroupLoop[]{
 				makeGroupLoop(Range.closedOpen(iterations.lowerEndpoint(), unrollEndpoint), unrollFactor, withRWHandlesBound),
-				makeGroupLoop(Range.closedOpen(unrollEndpoint, iterations.upperEndpoint()), 1, withRWHandlesBound)
-		);
-		return overall;
+				makeGroupLoop(Range.closedOpen(unrollEndpoint, iterations.upperEndpoint()), 1, withRWHandlesBound)})
+			if (loop != null)
+				loops.add(loop);
+		return loops.build();
 	}
 
 	/**
@@ -323,32 +347,25 @@ public class ActorGroup implements Comparable<ActorGroup> {
 	}
 
 	/**
-	 * Make loop handles for each Actor that execute the iteration given as
-	 * an argument, then bind them together in an outer loop body that
-	 * executes all the iterations.  Before the outer loop we must also
-	 * reinitialize the splitter/joiner index arrays to their initial
-	 * values.
+	 * Make loops for each Actor that execute the iteration given as an
+	 * argument, then bind them together in an outer loop body that executes
+	 * all the iterations.  Before the outer loop we must also reinitialize the
+	 * splitter/joiner index arrays to their initial values.  Returns null if
+	 * the range is empty.
 	 */
-	private MethodHandle makeGroupLoop(Range<Integer> iterations, int unrollFactor, Map<Actor, MethodHandle> withRWHandlesBound) {
-		if (iterations.isEmpty()) return Combinators.nop();
-		List<MethodHandle> loopHandles = new ArrayList<>(actors().size());
+	private GroupLoop makeGroupLoop(Range<Integer> iterations, int unrollFactor, Map<Actor, MethodHandle> withRWHandlesBound) {
+		if (iterations.isEmpty()) return null;
+		ImmutableList.Builder<WorkerLoop> workerLoops = ImmutableList.builder();
 		Map<int[], int[]> requiredCopies = new LinkedHashMap<>();
 		for (Actor a : actors())
-			loopHandles.add(makeWorkerLoop((WorkerActor)a, withRWHandlesBound.get(a), unrollFactor, iterations.lowerEndpoint(), requiredCopies));
-		MethodHandle groupLoop = MethodHandles.insertArguments(OVERALL_GROUP_LOOP, 0,
-				Combinators.semicolon(loopHandles), iterations.lowerEndpoint(), iterations.upperEndpoint(), unrollFactor);
-		if (!requiredCopies.isEmpty()) {
-			int[][] copies = new int[requiredCopies.size()*2][];
-			int i = 0;
-			for (Map.Entry<int[], int[]> e : requiredCopies.entrySet()) {
-				copies[i++] = e.getKey();
-				copies[i++] = e.getValue();
-			}
-			groupLoop = Combinators.semicolon(
-					MethodHandles.insertArguments(REINITIALIZE_ARRAYS, 0, (Object)copies),
-					groupLoop);
+			workerLoops.add(makeWorkerLoop((WorkerActor)a, withRWHandlesBound.get(a), unrollFactor, iterations.lowerEndpoint(), requiredCopies));
+		int[][] copies = new int[requiredCopies.size()*2][];
+		int i = 0;
+		for (Map.Entry<int[], int[]> e : requiredCopies.entrySet()) {
+			copies[i++] = e.getKey();
+			copies[i++] = e.getValue();
 		}
-		return groupLoop;
+		return new GroupLoop(iterations.lowerEndpoint(), iterations.upperEndpoint(), unrollFactor, workerLoops.build(), copies);
 	}
 
 	/**
@@ -362,9 +379,9 @@ public class ActorGroup implements Comparable<ActorGroup> {
 	 * initial contents of index arrays
 	 * @param requiredCopies accumulates the copies required to reinitialize the
 	 * index arrays
-	 * @return a MethodHandle taking one int parameter
+	 * @return the worker loop
 	 */
-	private MethodHandle makeWorkerLoop(WorkerActor a, MethodHandle base, int unrollFactor, int firstIteration, Map<int[], int[]> requiredCopies) {
+	private WorkerLoop makeWorkerLoop(WorkerActor a, MethodHandle base, int unrollFactor, int firstIteration, Map<int[], int[]> requiredCopies) {
 		int subiterations = schedule.get(a);
 		Object pop, push;
 		if (base.type().parameterType(0).equals(int.class)) {
@@ -387,16 +404,131 @@ public class ActorGroup implements Comparable<ActorGroup> {
 			push = writeIndices.clone();
 			requiredCopies.put(writeIndices, (int[])push);
 		}
-		MethodHandle loopHandle;
-		if (a.worker() instanceof Filter)
-			loopHandle = FILTER_LOOP;
-		else if (a.worker() instanceof Splitter)
-			loopHandle = SPLITTER_LOOP;
-		else if (a.worker() instanceof Joiner)
-			loopHandle = JOINER_LOOP;
-		else
+		if (!(a.worker() instanceof Filter || a.worker() instanceof Splitter || a.worker() instanceof Joiner))
 			throw new AssertionError(a);
-		return MethodHandles.insertArguments(loopHandle, 0, base, unrollFactor, subiterations, pop, push);
+		return new WorkerLoop(a, base, unrollFactor, subiterations, pop, push);
+	}
+
+	/**
+	 * A loop over a range of ActorGroup iterations, executing the group's
+	 * worker loops for each group of unrolled iterations:
+	 * <pre>{@code
+	 * reinitialize index arrays from copies;
+	 * for (int i = begin; i < end; i += increment)
+	 *     for each worker loop: run it for iteration i
+	 * }</pre>
+	 */
+	public static final class GroupLoop {
+		private final int begin, end, increment;
+		private final ImmutableList<WorkerLoop> workerLoops;
+		private final int[][] copies;
+		private GroupLoop(int begin, int end, int increment, ImmutableList<WorkerLoop> workerLoops, int[][] copies) {
+			this.begin = begin;
+			this.end = end;
+			this.increment = increment;
+			this.workerLoops = workerLoops;
+			this.copies = copies;
+		}
+		public int begin() {
+			return begin;
+		}
+		public int end() {
+			return end;
+		}
+		public int increment() {
+			return increment;
+		}
+		public ImmutableList<WorkerLoop> workerLoops() {
+			return workerLoops;
+		}
+		/**
+		 * Returns the index arrays to reinitialize before the loop, as
+		 * alternating (source, destination) pairs.  The arrays are shared with
+		 * the worker loops, not copied.
+		 * @return the index array copies
+		 */
+		public int[][] copies() {
+			return copies;
+		}
+		public MethodHandle asHandle() {
+			List<MethodHandle> loopHandles = new ArrayList<>(workerLoops.size());
+			for (WorkerLoop l : workerLoops)
+				loopHandles.add(l.asHandle());
+			MethodHandle groupLoop = MethodHandles.insertArguments(OVERALL_GROUP_LOOP, 0,
+					Combinators.semicolon(loopHandles), begin, end, increment);
+			if (copies.length > 0)
+				groupLoop = Combinators.semicolon(
+						MethodHandles.insertArguments(REINITIALIZE_ARRAYS, 0, (Object)copies),
+						groupLoop);
+			return groupLoop;
+		}
+	}
+
+	/**
+	 * One worker's loop within a GroupLoop, executing the worker's work method
+	 * {@code subiterations} times for each of {@code iterations} group
+	 * iterations starting at the group iteration passed to it:
+	 * <pre>{@code
+	 * for (int j = i*subiterations; j < (i+iterations)*subiterations; ++j)
+	 *     work(pop is int ? j*pop : pop, push is int ? j*push : push);
+	 * }</pre>
+	 */
+	public static final class WorkerLoop {
+		private final WorkerActor actor;
+		private final MethodHandle work;
+		private final int iterations, subiterations;
+		private final Object pop, push;
+		private WorkerLoop(WorkerActor actor, MethodHandle work, int iterations, int subiterations, Object pop, Object push) {
+			this.actor = actor;
+			this.work = work;
+			this.iterations = iterations;
+			this.subiterations = subiterations;
+			this.pop = pop;
+			this.push = push;
+		}
+		public WorkerActor actor() {
+			return actor;
+		}
+		/**
+		 * Returns the specialized work method with read/write handles bound,
+		 * taking two int or int[] parameters matching pop() and push().
+		 * @return the work method
+		 */
+		public MethodHandle work() {
+			return work;
+		}
+		public int iterations() {
+			return iterations;
+		}
+		public int subiterations() {
+			return subiterations;
+		}
+		/**
+		 * Returns the pop rate (an Integer) or the read index array (an int[]).
+		 * @return the pop rate or read indices
+		 */
+		public Object pop() {
+			return pop;
+		}
+		/**
+		 * Returns the push rate (an Integer) or the write index array (an int[]).
+		 * @return the push rate or write indices
+		 */
+		public Object push() {
+			return push;
+		}
+		public MethodHandle asHandle() {
+			MethodHandle loopHandle;
+			if (actor.worker() instanceof Filter)
+				loopHandle = FILTER_LOOP;
+			else if (actor.worker() instanceof Splitter)
+				loopHandle = SPLITTER_LOOP;
+			else if (actor.worker() instanceof Joiner)
+				loopHandle = JOINER_LOOP;
+			else
+				throw new AssertionError(actor);
+			return MethodHandles.insertArguments(loopHandle, 0, work, iterations, subiterations, pop, push);
+		}
 	}
 
 	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
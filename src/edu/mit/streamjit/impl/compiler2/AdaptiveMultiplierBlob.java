@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.compiler2;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import edu.mit.streamjit.api.Input;
+import edu.mit.streamjit.api.Output;
+import edu.mit.streamjit.api.Worker;
+import edu.mit.streamjit.impl.blob.Blob;
+import edu.mit.streamjit.impl.blob.Buffer;
+import edu.mit.streamjit.impl.blob.DrainData;
+import edu.mit.streamjit.impl.common.Configuration;
+import edu.mit.streamjit.impl.common.Configuration.IntParameter;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A Compiler2 blob that picks its own steady-state multiplier at runtime.  It
+ * measures how much of each barrier cycle the cores spend doing work (as
+ * opposed to synchronizing and copying data in the barrier action, excluding
+ * time spent waiting for input or output space); if the overhead exceeds the
+ * configured fraction, it compiles a blob with twice the multiplier on a
+ * background thread (see {@link PreparedBlob}), then drains the current blob
+ * at a barrier and swaps the new one in, reinstalling the same buffers.  If
+ * the overhead is well under the fraction, it halves the multiplier instead,
+ * to save memory and latency.  If the new blob doesn't compile or needs bigger
+ * buffers, the current blob keeps running.
+ * <p/>
+ * Enabled by the configuration's "adaptiveMultiplier" extra data, a Double
+ * giving the maximum overhead fraction.  The configured multiplier is the
+ * starting point.
+ * @since 10/17/2026
+ */
+final class AdaptiveMultiplierBlob implements Blob, Compiler2BlobHost.CycleListener {
+	/**
+	 * The configuration extra data key holding the maximum overhead fraction.
+	 */
+	static final String EXTRA_DATA_KEY = "adaptiveMultiplier";
+	/**
+	 * Steady states to skip after each compile (while the JIT settles), then
+	 * steady states to measure before deciding.
+	 */
+	private static final int WARMUP_CYCLES = 16, MEASURE_CYCLES = 64;
+	/**
+	 * Bounds the time we spend recompiling (counting compiles that fail or
+	 * don't fit).
+	 */
+	private static final int MAX_RECOMPILES = 8;
+	private final ImmutableSet<Worker<?, ?>> workers;
+	private final Configuration config;
+	private final int maxNumCores;
+	private final double maxOverhead;
+	private final IntParameter multiplierParam;
+	private final ImmutableList<Runnable> coreCode;
+	private final ExecutorService compiler = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "AdaptiveMultiplierBlob compiler");
+		t.setDaemon(true);
+		return t;
+	});
+	private volatile Compiler2BlobHost current;
+	/* only accessed in the barrier action */
+	private int multiplier, nextMultiplier, cycles, recompiles;
+	private long workNanos, busyNanos;
+	/**
+	 * The replacement being compiled, or null if none.
+	 */
+	private Future<PreparedBlob> pending;
+	/* guarded by this */
+	private Runnable drainCallback;
+	private boolean recompiling;
+
+	AdaptiveMultiplierBlob(Set<Worker<?, ?>> workers, Configuration config, int maxNumCores, DrainData initialState, Input<?> input, Output<?> output) {
+		this.workers = ImmutableSet.copyOf(workers);
+		this.config = config;
+		this.maxNumCores = maxNumCores;
+		this.maxOverhead = ((Number)config.getExtraData(EXTRA_DATA_KEY)).doubleValue();
+		this.multiplierParam = config.getParameter("multiplier", IntParameter.class);
+		this.multiplier = multiplierParam.getValue();
+		this.current = compile(initialState, input, output);
+		ImmutableList.Builder<Runnable> coreCodeBuilder = ImmutableList.builder();
+		for (int i = 0; i < current.getCoreCount(); ++i) {
+			final int core = i;
+			coreCodeBuilder.add(() -> current.getCoreCode(core).run());
+		}
+		this.coreCode = coreCodeBuilder.build();
+	}
+
+	/**
+	 * Returns true if the given configuration asks for an adaptive multiplier.
+	 */
+	static boolean isEnabled(Configuration config) {
+		return config.getExtraData(EXTRA_DATA_KEY) != null;
+	}
+
+	private Compiler2BlobHost compile(DrainData initialState, Input<?> input, Output<?> output) {
+		Compiler2BlobHost blob = (Compiler2BlobHost)new Compiler2(workers, config, maxNumCores, initialState, input, output).compile();
+		blob.setCycleListener(this);
+		return blob;
+	}
+
+	@Override
+	public Runnable steadyStateDone(long workNanos, long cycleNanos, long waitNanos) {
+		if (pending != null)
+			return pendingDone();
+		if (recompiles >= MAX_RECOMPILES || ++cycles <= WARMUP_CYCLES)
+			return null;
+		this.workNanos += workNanos;
+		this.busyNanos += cycleNanos - waitNanos;
+		if (cycles < WARMUP_CYCLES + MEASURE_CYCLES)
+			return null;
+
+		double overhead = busyNanos <= 0 ? 0 : 1 - (double)this.workNanos / busyNanos;
+		cycles = 0;
+		this.workNanos = this.busyNanos = 0;
+		int next = multiplier;
+		if (overhead > maxOverhead)
+			next = (int)Math.min((long)multiplier * 2, multiplierParam.getMax());
+		else if (overhead < maxOverhead / 4)
+			next = Math.max(multiplier / 2, multiplierParam.getMin());
+		if (next != multiplier)
+			prepare(next);
+		return null;
+	}
+
+	/**
+	 * Starts compiling a replacement blob with the given multiplier on the
+	 * compiler thread, for a drain shaped like one at this barrier.
+	 */
+	private void prepare(int newMultiplier) {
+		++recompiles;
+		nextMultiplier = newMultiplier;
+		Configuration.Builder builder = Configuration.builder(config);
+		builder.removeParameter("multiplier");
+		builder.addParameter(new IntParameter("multiplier", multiplierParam.getRange(), newMultiplier));
+		Configuration newConfig = builder.build();
+		ImmutableMap<Token, Integer> shape = current.drainDataSizes();
+		ImmutableMap<Token, Buffer> buffers = current.installedBuffers();
+		try {
+			pending = compiler.submit(() -> PreparedBlob.compile(workers, newConfig, maxNumCores, shape, coreCode.size(), buffers));
+		} catch (RejectedExecutionException ex) {
+			//We're draining.
+			pending = null;
+		}
+	}
+
+	/**
+	 * Called at each barrier while a replacement is being prepared.  Returns
+	 * a callback to swap it in if it's ready and fits this barrier's drain;
+	 * otherwise keeps running the current blob.
+	 */
+	private Runnable pendingDone() {
+		if (!pending.isDone())
+			return null;
+		PreparedBlob prepared;
+		try {
+			prepared = pending.get();
+		} catch (InterruptedException | ExecutionException ex) {
+			prepared = null;
+		}
+		pending = null;
+		if (prepared == null)
+			//The new multiplier didn't compile or doesn't fit the installed
+			//buffers; keep the current blob.
+			return null;
+		if (!prepared.fits(current.drainDataSizes())) {
+			//Staged I/O changed the drain's shape; try again with this one.
+			if (recompiles < MAX_RECOMPILES)
+				prepare(nextMultiplier);
+			return null;
+		}
+		synchronized (this) {
+			if (drainCallback != null)
+				return null; //we're finishing anyway
+			recompiling = true;
+		}
+		return () -> swap(prepared);
+	}
+
+	/**
+	 * Replaces the current blob, which has just drained, with the prepared
+	 * one.  Runs in the old blob's barrier action, so the cores are all
+	 * stopped, but only moves data.
+	 */
+	private void swap(PreparedBlob prepared) {
+		Compiler2BlobHost next = prepared.install(current);
+		next.setCycleListener(this);
+		multiplier = nextMultiplier;
+		cycles = 0;
+		workNanos = busyNanos = 0;
+		current = next;
+		synchronized (this) {
+			recompiling = false;
+			if (drainCallback != null)
+				next.drain(drainCallback);
+		}
+	}
+
+	@Override
+	public Set<Worker<?, ?>> getWorkers() {
+		return workers;
+	}
+
+	@Override
+	public Set<Token> getInputs() {
+		return current.getInputs();
+	}
+
+	@Override
+	public Set<Token> getOutputs() {
+		return current.getOutputs();
+	}
+
+	@Override
+	public int getMinimumBufferCapacity(Token token) {
+		return current.getMinimumBufferCapacity(token);
+	}
+
+	@Override
+	public Class<?> getEdgeType(Token token) {
+		return current.getEdgeType(token);
+	}
+
+	@Override
+	public void installBuffers(Map<Token, Buffer> buffers) {
+		current.installBuffers(buffers);
+	}
+
+	@Override
+	public int getCoreCount() {
+		return coreCode.size();
+	}
+
+	@Override
+	public Runnable getCoreCode(int core) {
+		return coreCode.get(core);
+	}
+
+	@Override
+	public synchronized void drain(Runnable callback) {
+		drainCallback = callback;
+		compiler.shutdownNow();
+		//If we're swapping blobs, swap() will pass this on.
+		if (!recompiling)
+			current.drain(callback);
+	}
+
+	@Override
+	public DrainData getDrainData() {
+		return current.getDrainData();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("AdaptiveMultiplierBlob(%s, multiplier %d)", current, multiplier);
+	}
+}
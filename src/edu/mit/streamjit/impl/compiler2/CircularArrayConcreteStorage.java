@@ -29,13 +29,21 @@ import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodHandles.Lookup;
 
 /**
- * A ConcreteStorage using a circular buffer.
+ * A ConcreteStorage using a circular buffer.  If the buffer's capacity is a
+ * power of two, indices wrap with a mask instead of a remainder; factories
+ * should allocate {@link #capacity(Storage)} elements to make that likely.
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 10/10/2013
  */
 public class CircularArrayConcreteStorage implements ConcreteStorage {
 	private static final Lookup LOOKUP = MethodHandles.lookup();
 	private static final MethodHandle INDEX = findStatic(LOOKUP, "index");
+	private static final MethodHandle MASKED_INDEX = findStatic(LOOKUP, "maskedIndex");
+	/**
+	 * The most padding (as a fraction of the steady-state capacity)
+	 * {@link #capacity(Storage)} will add to reach a power of two.
+	 */
+	private static final int MAX_PADDING_DIVISOR = 4;
 	private static final MethodHandle ADJUST = findVirtual(LOOKUP, "adjust");
 	private static final MethodHandle HEAD_GETTER = findGetter(LOOKUP, "head");
 	private final Arrayish array;
@@ -44,12 +52,15 @@ public class CircularArrayConcreteStorage implements ConcreteStorage {
 	private final MethodHandle readHandle, writeHandle, adjustHandle;
 	public CircularArrayConcreteStorage(Arrayish array, Storage s) {
 		this.array = array;
-		this.capacity = s.steadyStateCapacity();
+		this.capacity = array.size();
 		assert capacity > 0 : s + " has capacity "+capacity;
+		assert capacity >= s.steadyStateCapacity() : s + " needs capacity "+s.steadyStateCapacity()+", got "+capacity;
 		this.throughput = s.throughput();
 		this.head = 0;
 
-		MethodHandle index = MethodHandles.insertArguments(INDEX, 0, capacity);
+		MethodHandle index = Integer.bitCount(capacity) == 1 ?
+				MethodHandles.insertArguments(MASKED_INDEX, 0, capacity - 1) :
+				MethodHandles.insertArguments(INDEX, 0, capacity);
 		index = MethodHandles.foldArguments(index, HEAD_GETTER.bindTo(this));
 		this.readHandle = MethodHandles.filterArguments(array.get(), 0, index);
 		this.writeHandle = MethodHandles.filterArguments(array.set(), 0, index);
@@ -92,6 +103,27 @@ public class CircularArrayConcreteStorage implements ConcreteStorage {
 		return (physicalIndex + head) % capacity;
 	}
 
+	private static int maskedIndex(int mask, int head, int physicalIndex) {
+		//assumes (physicalIndex + head) >= 0
+		return (physicalIndex + head) & mask;
+	}
+
+	/**
+	 * Returns the capacity to allocate for the given storage: its steady-state
+	 * capacity, rounded up to a power of two if that doesn't waste too much
+	 * memory.  Any capacity at least the steady-state capacity works, as the
+	 * live items never span more than that.
+	 * @param storage the storage
+	 * @return the capacity to allocate
+	 */
+	public static int capacity(Storage storage) {
+		int capacity = storage.steadyStateCapacity();
+		if (capacity <= 1 || Integer.bitCount(capacity) == 1)
+			return capacity;
+		int padded = Integer.highestOneBit(capacity) << 1;
+		return padded > 0 && padded - capacity <= capacity / MAX_PADDING_DIVISOR ? padded : capacity;
+	}
+
 	public static StorageFactory factory() {
 		return new StorageFactory() {
 			@Override
@@ -99,8 +131,8 @@ public class CircularArrayConcreteStorage implements ConcreteStorage {
 				if (storage.steadyStateCapacity() == 0)
 					return new EmptyConcreteStorage(storage);
 				Arrayish array = storage.type().isPrimitive() ?
-						new Arrayish.UnsafeArrayish(storage.type(), storage.steadyStateCapacity()) :
-						new Arrayish.ArrayArrayish(storage.type(), storage.steadyStateCapacity());
+						new Arrayish.UnsafeArrayish(storage.type(), capacity(storage)) :
+						new Arrayish.ArrayArrayish(storage.type(), capacity(storage));
 				return new CircularArrayConcreteStorage(array, storage);
 			}
 		};
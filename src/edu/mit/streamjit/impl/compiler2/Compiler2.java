@@ -22,6 +22,7 @@
 package edu.mit.streamjit.impl.compiler2;
 
 import com.google.common.base.Function;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.HashBasedTable;
@@ -58,6 +59,7 @@ import edu.mit.streamjit.impl.blob.Blob.Token;
 import edu.mit.streamjit.impl.blob.Buffer;
 import edu.mit.streamjit.impl.blob.DrainData;
 import edu.mit.streamjit.impl.blob.PeekableBuffer;
+import edu.mit.streamjit.impl.blob.PrimitiveBuffer;
 import edu.mit.streamjit.impl.common.Configuration;
 import edu.mit.streamjit.impl.common.Configuration.IntParameter;
 import edu.mit.streamjit.impl.common.Configuration.SwitchParameter;
@@ -82,13 +84,18 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
@@ -96,6 +103,8 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -129,6 +138,10 @@ public class Compiler2 {
 	private final DrainData initialState;
 	
 	private List<MethodStorage> ms;
+	/**
+	 * Nanoseconds spent in each phase of compile(), in phase order.
+	 */
+	private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
 	/**
 	 * If the blob is the entire graph, this is the overall input; else null.
 	 */
@@ -231,22 +244,57 @@ public class Compiler2 {
 	}
 
 	public Blob compile() {
-		findRemovals();
-		fuse();
-		schedule();
+		phase("findRemovals", this::findRemovals);
+		phase("fuse", this::fuse);
+		phase("schedule", this::schedule);
 
 //		identityRemoval();
-		splitterRemoval();
-		joinerRemoval();
+		phase("splitterRemoval", this::splitterRemoval);
+		phase("joinerRemoval", this::joinerRemoval);
+
+		phase("inferTypes", this::inferTypes);
+		phase("unbox", this::unbox);
+
+		phase("generateArchetypalCode", this::generateArchetypalCode);
+		phase("createBuffers", this::createBuffers);
+		phase("createInitCode", this::createInitCode);
+		phase("createSteadyStateCode", this::createSteadyStateCode);
+		Blob blob = phase("instantiateBlob", this::instantiateBlob);
+		((Compiler2BlobHost)blob).setCompileTimes(compileTimes());
+
+		Boolean reportCompileTimes = (Boolean)config.getExtraData("timings");
+		if (reportCompileTimes != null && reportCompileTimes) {
+			long total = 0;
+			for (Map.Entry<String, Long> e : phaseNanos.entrySet()) {
+				System.out.println(String.format("%s: %d ms", e.getKey(), TimeUnit.NANOSECONDS.toMillis(e.getValue())));
+				total += e.getValue();
+			}
+			System.out.println(String.format("total compile time: %d ms", TimeUnit.NANOSECONDS.toMillis(total)));
+		}
+		return blob;
+	}
 
-		inferTypes();
-		unbox();
+	private void phase(String name, Runnable phase) {
+		phase(name, () -> {
+			phase.run();
+			return null;
+		});
+	}
 
-		generateArchetypalCode();
-		createBuffers();
-		createInitCode();
-		createSteadyStateCode();
-		return instantiateBlob();
+	private <T> T phase(String name, Supplier<T> phase) {
+		long start = System.nanoTime();
+		T result = phase.get();
+		phaseNanos.put(name, System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * Returns the time spent in each phase of compile(), in nanoseconds, in
+	 * the order the phases ran.  Phases that haven't run yet are absent.
+	 * @return the time spent in each compilation phase
+	 */
+	public ImmutableMap<String, Long> compileTimes() {
+		return ImmutableMap.copyOf(phaseNanos);
 	}
 
 	private void findRemovals() {
@@ -629,36 +677,10 @@ public class Compiler2 {
 		//where the first two terms select a "window" and the third is the
 		//index into that window.
 		ImmutableList.Builder<IndexFunction> transfer = ImmutableList.builder();
-		for (int x = 0; x < weights.length; ++x) {
-			//don't capture the array in the lambda
-			int weight = weights[x], prefixSum = weightPrefixSum[x];
-			transfer.add(new RoundrobinTransferIndexFunction(weight, prefixSum, N));
-		}
+		for (int x = 0; x < weights.length; ++x)
+			transfer.add(PiecewiseAffineIndexFunction.roundrobinTransfer(weights[x], weightPrefixSum[x], N));
 		return transfer.build();
 	}
-	private static int _roundrobinTransferFunction(int weight, int prefixSum, int N, int i) {
-		//assumes nonnegative indices
-		return N*(i/weight) + prefixSum + (i % weight);
-	}
-	private static final class RoundrobinTransferIndexFunction implements IndexFunction {
-		private final int weight, prefixSum, N;
-		private RoundrobinTransferIndexFunction(int weight, int prefixSum, int N) {
-			this.weight = weight;
-			this.prefixSum = prefixSum;
-			this.N = N;
-		}
-		@Override
-		public int applyAsInt(int operand) {
-			return _roundrobinTransferFunction(weight, prefixSum, N, operand);
-		}
-		@Override
-		public void applyBulk(int[] bulk) {
-			//TODO: is just a specialization point enough?
-			for (int i = 0; i < bulk.length; ++i)
-//				bulk[i] = applyAsInt(bulk[i]);
-				bulk[i] = _roundrobinTransferFunction(weight, prefixSum, N, bulk[i]);
-		}
-	}
 
 	/**
 	 * Removes an Actor from this compiler's data structures.  The Actor should
@@ -856,6 +878,8 @@ public class Compiler2 {
 	}
 
 	private void generateArchetypalCode() {
+		//Archetypes generate code into this compile's Module, which isn't
+		//thread-safe, so this phase stays serial.
 		for (final ActorArchetype archetype : archetypes) {
 			Iterable<WorkerActor> workerActors = FluentIterable.from(actors)
 					.filter(WorkerActor.class)
@@ -958,22 +982,6 @@ public class Compiler2 {
 		restoreOutputIndexFunctions(indexFxnBackup);
 	}
 
-	private static final class AdditionIndexFunction implements IndexFunction {
-		private final int addend;
-		private AdditionIndexFunction(int addend) {
-			this.addend = addend;
-		}
-		@Override
-		public int applyAsInt(int operand) {
-			return operand + addend;
-		}
-		@Override
-		public void applyBulk(int[] bulk) {
-			for (int i = 0; i < bulk.length; ++i)
-				bulk[i] += addend;
-		}
-	}
-
 	private void createSteadyStateCode() {
 		for (Actor a : actors) {
 			for (int i = 0; i < a.outputs().size(); ++i) {
@@ -981,7 +989,7 @@ public class Compiler2 {
 				
 				if (s.isInternal()) continue;
 				int itemsWritten = a.push(i).max() * initSchedule.get(a.group()) * a.group().schedule().get(a);
-				a.outputIndexFunctions().set(i, a.outputIndexFunctions().get(i).compose(new AdditionIndexFunction(itemsWritten)));
+				a.outputIndexFunctions().set(i, a.outputIndexFunctions().get(i).compose(IndexFunction.affine(1, itemsWritten)));
 			}
 			for (int i = 0; i < a.inputs().size(); ++i) {
 				
@@ -989,7 +997,7 @@ public class Compiler2 {
 				if (s.isInternal()) continue;
 				
 				int itemsRead = a.pop(i).max() * initSchedule.get(a.group()) * a.group().schedule().get(a);
-				a.inputIndexFunctions().set(i, a.inputIndexFunctions().get(i).compose(new AdditionIndexFunction(itemsRead)));
+				a.inputIndexFunctions().set(i, a.inputIndexFunctions().get(i).compose(IndexFunction.affine(1, itemsRead)));
 			}
 		}
 
@@ -1000,6 +1008,10 @@ public class Compiler2 {
 		ImmutableMap<Storage, ConcreteStorage> internalStorage = createStorage(true, INTERNAL_STORAGE_STRATEGY.asFactory(config));
 
 		List<Core> ssCores = new ArrayList<>(maxNumCores);
+		//All steady-state cores share storage, so they can share specializations.
+		ImmutableMap<Storage, ConcreteStorage> coreStorage = CollectionUtils.union(steadyStateStorage, internalStorage);
+		Core.SpecializationCache specializations = new Core.SpecializationCache();
+		boolean emitBytecode = CoreCodeEmitter.isEnabled(config);
 		
 		IndexFunctionTransformer ift = new IdentityIndexFunctionTransformer();
 		for (int i = 0; i < maxNumCores; ++i) {
@@ -1025,7 +1037,9 @@ public class Compiler2 {
 				
 			}
 
-			ssCores.add(new Core(CollectionUtils.union(steadyStateStorage, internalStorage), (table, wa) -> SWITCHING_STRATEGY.createSwitch(table, wa, config), unrollFactors.build(), inputTransformers.build(), outputTransformers.build()));
+			String coreClassName = String.format("%s.Core%d", packageName, i);
+			ssCores.add(new Core(coreStorage, (table, wa) -> SWITCHING_STRATEGY.createSwitch(table, wa, config), unrollFactors.build(), inputTransformers.build(), outputTransformers.build(), specializations,
+					emitBytecode ? () -> new CoreCodeEmitter(coreClassName, module, classloader) : null));
 		}
 
 		int throughputPerSteadyState = 0;
@@ -1045,17 +1059,23 @@ public class Compiler2 {
 					throughputPerSteadyState += executions;
 				}
 			}
+		//Specialize (or plan) the cores in parallel, then emit any bytecode
+		//serially, as it goes into this compile's Module.
+		List<Core> nonEmptyCores = ssCores.stream().filter(c -> !c.isEmpty()).collect(Collectors.toList());
+		nonEmptyCores.parallelStream().forEach(Core::prepare);
+		List<List<MethodStorage>> coreCode = new ArrayList<>(nonEmptyCores.size());
+		for (Core c : nonEmptyCores)
+			coreCode.add(c.code());
 		ImmutableList.Builder<MethodHandle> steadyStateCodeBuilder = ImmutableList.builder();
 		ms = new ArrayList<>();
-		for (Core c : ssCores)
-			if (!c.isEmpty()){
-				List<MethodHandle> code = new ArrayList<>();
-				for( MethodStorage ms1:c.code()){
-					code.add(ms1.code);
-					ms.add(ms1);
-				}
-				steadyStateCodeBuilder.add(Combinators.semicolon(code));
+		for (List<MethodStorage> c : coreCode) {
+			List<MethodHandle> code = new ArrayList<>();
+			for (MethodStorage ms1 : c) {
+				code.add(ms1.code);
+				ms.add(ms1);
 			}
+			steadyStateCodeBuilder.add(Combinators.semicolon(code));
+		}
 		//Provide at least one core of code, even if it doesn't do anything; the
 		//blob host will still copy inputs to outputs.
 		this.steadyStateCode = steadyStateCodeBuilder.build();
@@ -1216,7 +1236,7 @@ public class Compiler2 {
 				for (int check = 0; check < 100; ++check)
 					assert !liveIndices.contains(a.translateOutputIndex(i, offset + check)) : check;
 				final int finalOffset = offset;
-				a.outputIndexFunctions().set(i, a.outputIndexFunctions().get(i).compose(new AdditionIndexFunction(finalOffset)));
+				a.outputIndexFunctions().set(i, a.outputIndexFunctions().get(i).compose(IndexFunction.affine(1, finalOffset)));
 			}
 		}
 		return backup.build();
@@ -1238,10 +1258,16 @@ public class Compiler2 {
 	//</editor-fold>
 
 	private ImmutableMap<Storage, ConcreteStorage> createStorage(boolean internal, StorageFactory factory) {
-		ImmutableMap.Builder<Storage, ConcreteStorage> builder = ImmutableMap.builder();
+		List<Storage> toCreate = new ArrayList<>();
 		for (Storage s : storage)
 			if (s.isInternal() == internal)
-				builder.put(s, factory.make(s));
+				toCreate.add(s);
+		//Storage factories only read the Storage they're given, so we can
+		//allocate (and zero) the backing arrays in parallel.
+		List<ConcreteStorage> created = toCreate.parallelStream().map(factory::make).collect(Collectors.toList());
+		ImmutableMap.Builder<Storage, ConcreteStorage> builder = ImmutableMap.builder();
+		for (int i = 0; i < toCreate.size(); ++i)
+			builder.put(toCreate.get(i), created.get(i));
 		return builder.build();
 	}
 
@@ -1326,6 +1352,10 @@ public class Compiler2 {
 				storageSelector[i] = Arrays.asList(storage).indexOf(storages.get(i));
 		}
 		@Override
+		public Map<Token, Integer> sizes() {
+			return ImmutableMap.of(token, index.length);
+		}
+		@Override
 		public Map<Token, Object[]> call() {
 			Object[] data = new Object[index.length];
 			int idx = 0;
@@ -1416,7 +1446,9 @@ public class Compiler2 {
 	}
 
 	/**
-	 * TODO: consider using read/write handles instead of read(), write()?
+	 * If the buffer is a PrimitiveBuffer of the storage's (unboxed) type, reads
+	 * into a primitive array and stores with the storage's write handle, so no
+	 * boxing occurs at the blob boundary.
 	 */
 	private static final class TokenReadInstruction implements ReadInstruction {
 		private final Token token;
@@ -1424,6 +1456,14 @@ public class Compiler2 {
 		private final ConcreteStorage storage;
 		private final int count;
 		private Buffer buffer;
+		/**
+		 * If non-null, the buffer is a PrimitiveBuffer of the storage type;
+		 * primitiveData is an array of that type and primitiveStore is a
+		 * handle of type (Object array, int i) -> void that stores array[i]
+		 * at idxFxn(i).
+		 */
+		private Object primitiveData;
+		private MethodHandle primitiveStore;
 		private TokenReadInstruction(TokenActor a, ConcreteStorage storage, int count) {
 			assert a.isInput() : a;
 			this.token = a.token();
@@ -1437,6 +1477,18 @@ public class Compiler2 {
 			if (buffer != null)
 				checkState(buffers.get(token) == buffer, "reassigning %s from %s to %s", token, buffer, buffers.get(token));
 			this.buffer = buffers.get(token);
+			if (buffer instanceof PrimitiveBuffer && ((PrimitiveBuffer)buffer).primitiveType().equals(storage.type())) {
+				Class<?> arrayType = Array.newInstance(storage.type(), 0).getClass();
+				this.primitiveData = Array.newInstance(storage.type(), count);
+				//(int i, T v) -> write(idxFxn(i), v)
+				MethodHandle store = MethodHandles.filterArguments(
+						storage.writeHandle().asType(MethodType.methodType(void.class, int.class, storage.type())),
+						0, idxFxn.asHandle());
+				//(int i, T[] a, int j) -> write(idxFxn(i), a[j])
+				store = MethodHandles.collectArguments(store, 1, MethodHandles.arrayElementGetter(arrayType));
+				store = MethodHandles.permuteArguments(store, MethodType.methodType(void.class, arrayType, int.class), 1, 0, 1);
+				this.primitiveStore = store.asType(MethodType.methodType(void.class, Object.class, int.class));
+			}
 		}
 		@Override
 		public Map<Token, Integer> getMinimumBufferCapacity() {
@@ -1444,6 +1496,8 @@ public class Compiler2 {
 		}
 		@Override
 		public boolean load() {
+			if (primitiveData != null)
+				return loadPrimitives();
 			Object[] data = new Object[count];
 			if (!buffer.readAll(data))
 				return false;
@@ -1459,6 +1513,18 @@ public class Compiler2 {
 			storage.sync();
 			return true;
 		}
+		private boolean loadPrimitives() {
+			if (!((PrimitiveBuffer)buffer).readAllPrimitives(primitiveData, 0))
+				return false;
+			try {
+				for (int i = 0; i < count; ++i)
+					primitiveStore.invokeExact(primitiveData, i);
+			} catch (Throwable ex) {
+				throw new AssertionError("Can't happen! Index functions and storage writes should not throw", ex);
+			}
+			storage.sync();
+			return true;
+		}
 		@Override
 		public Map<Token, Object[]> unload() {
 			Object[] data = new Object[count];
@@ -1535,7 +1601,9 @@ public class Compiler2 {
 	}
 
 	/**
-	 * TODO: consider using read handles instead of read()?
+	 * If the buffer is a PrimitiveBuffer of the storage's (unboxed) type, loads
+	 * into a primitive array with the storage's read handle and writes that,
+	 * so no boxing occurs at the blob boundary.
 	 */
 	private static final class TokenWriteInstruction implements WriteInstruction {
 		private final Token token;
@@ -1544,6 +1612,14 @@ public class Compiler2 {
 		private final int count;
 		private Buffer buffer;
 		private int written;
+		/**
+		 * If non-null, the buffer is a PrimitiveBuffer of the storage type;
+		 * primitiveData is an array of that type and primitiveLoad is a
+		 * handle of type (Object array, int i) -> void that stores
+		 * read(idxFxn(i)) at array[i].
+		 */
+		private Object primitiveData;
+		private MethodHandle primitiveLoad;
 		private TokenWriteInstruction(TokenActor a, ConcreteStorage storage, int count) {
 			assert a.isOutput() : a;
 			this.token = a.token();
@@ -1557,6 +1633,18 @@ public class Compiler2 {
 			if (buffer != null)
 				checkState(buffers.get(token) == buffer, "reassigning %s from %s to %s", token, buffer, buffers.get(token));
 			this.buffer = buffers.get(token);
+			if (buffer instanceof PrimitiveBuffer && ((PrimitiveBuffer)buffer).primitiveType().equals(storage.type())) {
+				Class<?> arrayType = Array.newInstance(storage.type(), 0).getClass();
+				this.primitiveData = Array.newInstance(storage.type(), count);
+				//(int i) -> read(idxFxn(i))
+				MethodHandle load = MethodHandles.filterArguments(
+						storage.readHandle().asType(MethodType.methodType(storage.type(), int.class)),
+						0, idxFxn.asHandle());
+				//(T[] a, int j, int i) -> a[j] = read(idxFxn(i))
+				load = MethodHandles.collectArguments(MethodHandles.arrayElementSetter(arrayType), 2, load);
+				load = MethodHandles.permuteArguments(load, MethodType.methodType(void.class, arrayType, int.class), 0, 1, 1);
+				this.primitiveLoad = load.asType(MethodType.methodType(void.class, Object.class, int.class));
+			}
 		}
 		@Override
 		public Map<Token, Integer> getMinimumBufferCapacity() {
@@ -1564,6 +1652,8 @@ public class Compiler2 {
 		}
 		@Override
 		public Boolean call() {
+			if (primitiveData != null)
+				return writePrimitives();
 			Object[] data = new Object[count];
 			for (int i = 0; i < count; ++i) {
 				int idx;
@@ -1580,6 +1670,22 @@ public class Compiler2 {
 			written = 0;
 			return true;
 		}
+		private boolean writePrimitives() {
+			//Storage doesn't change until we finish writing, so we only need
+			//to load the array on the first attempt.
+			if (written == 0)
+				try {
+					for (int i = 0; i < count; ++i)
+						primitiveLoad.invokeExact(primitiveData, i);
+				} catch (Throwable ex) {
+					throw new AssertionError("Can't happen! Index functions and storage reads should not throw", ex);
+				}
+			written += ((PrimitiveBuffer)buffer).writePrimitives(primitiveData, written, count-written);
+			if (written < count)
+				return false;
+			written = 0;
+			return true;
+		}
 	}
 
 	/**
@@ -1610,9 +1716,9 @@ public class Compiler2 {
 	 * There's only one of these per blob because it returns all the data, and
 	 * it should be the first initReadInstruction.
 	 */
-	private static final class InitDataReadInstruction implements ReadInstruction {
-		private final ImmutableMap<ConcreteStorage, ImmutableList<Pair<ImmutableList<Object>, IndexFunction>>> toWrite;
-		private final ImmutableMap<Token, ImmutableList<Object>> initialStateDataMap;
+	static final class InitDataReadInstruction implements ReadInstruction {
+		private ImmutableMap<ConcreteStorage, ImmutableList<Pair<ImmutableList<Object>, IndexFunction>>> toWrite;
+		private ImmutableMap<Token, ImmutableList<Object>> initialStateDataMap;
 		private InitDataReadInstruction(Map<Storage, ConcreteStorage> initStorage, ImmutableMap<Token, ImmutableList<Object>> initialStateDataMap) {
 			ImmutableMap.Builder<ConcreteStorage, ImmutableList<Pair<ImmutableList<Object>, IndexFunction>>> toWriteBuilder = ImmutableMap.builder();
 			for (Map.Entry<Storage, ConcreteStorage> e : initStorage.entrySet()) {
@@ -1653,6 +1759,35 @@ public class Compiler2 {
 				r.put(e.getKey(), e.getValue().toArray());
 			return r;
 		}
+		/**
+		 * Replaces the initial data with the given data, which must have the
+		 * same number of items for each token.  The compiler only looks at
+		 * how many items there are, so a blob compiled with placeholder data
+		 * can take the real data before it runs.
+		 */
+		void replaceData(DrainData state) {
+			Map<ImmutableList<Object>, ImmutableList<Object>> replacements = new IdentityHashMap<>();
+			ImmutableMap.Builder<Token, ImmutableList<Object>> newMap = ImmutableMap.builder();
+			for (Map.Entry<Token, ImmutableList<Object>> e : initialStateDataMap.entrySet()) {
+				ImmutableList<Object> data = state.getData(e.getKey());
+				checkArgument(data != null && data.size() == e.getValue().size(),
+						"%s: expected %s items, got %s", e.getKey(), e.getValue().size(), data == null ? 0 : data.size());
+				replacements.put(e.getValue(), data);
+				newMap.put(e.getKey(), data);
+			}
+			for (Map.Entry<Token, ImmutableList<Object>> e : state.getData().entrySet())
+				checkArgument(e.getValue().isEmpty() || initialStateDataMap.containsKey(e.getKey()),
+						"%s: expected no items, got %s", e.getKey(), e.getValue().size());
+			ImmutableMap.Builder<ConcreteStorage, ImmutableList<Pair<ImmutableList<Object>, IndexFunction>>> toWriteBuilder = ImmutableMap.builder();
+			for (Map.Entry<ConcreteStorage, ImmutableList<Pair<ImmutableList<Object>, IndexFunction>>> e : toWrite.entrySet()) {
+				ImmutableList.Builder<Pair<ImmutableList<Object>, IndexFunction>> pairs = ImmutableList.builder();
+				for (Pair<ImmutableList<Object>, IndexFunction> p : e.getValue())
+					pairs.add(Pair.make(replacements.get(p.first), p.second));
+				toWriteBuilder.put(e.getKey(), pairs.build());
+			}
+			this.toWrite = toWriteBuilder.build();
+			this.initialStateDataMap = newMap.build();
+		}
 	}
 
 	private static final class ReportThroughputInstruction implements ReadInstruction, WriteInstruction {
@@ -1713,13 +1848,17 @@ public class Compiler2 {
 	public Blob instantiateBlob() {
 		ImmutableSortedSet.Builder<Token> inputTokens = ImmutableSortedSet.naturalOrder(),
 				outputTokens = ImmutableSortedSet.naturalOrder();
-		for (TokenActor ta : Iterables.filter(actors, TokenActor.class))
+		ImmutableMap.Builder<Token, Class<?>> edgeTypes = ImmutableMap.builder();
+		for (TokenActor ta : Iterables.filter(actors, TokenActor.class)) {
 			(ta.isInput() ? inputTokens : outputTokens).add(ta.token());
+			Storage s = Iterables.getOnlyElement(ta.isInput() ? ta.outputs() : ta.inputs());
+			edgeTypes.put(ta.token(), s.type());
+		}
 		ImmutableList.Builder<MethodHandle> storageAdjusts = ImmutableList.builder();
 		for (ConcreteStorage s : steadyStateStorage.values())
 			storageAdjusts.add(s.adjustHandle());
 		return new Compiler2BlobHost(workers, config,
-				inputTokens.build(), outputTokens.build(),
+				inputTokens.build(), outputTokens.build(), edgeTypes.build(),
 				initCode, steadyStateCode,
 				ImmutableList.copyOf(ms), storageAdjusts.build(),
 				initReadInstructions, initWriteInstructions, migrationInstructions,
@@ -42,6 +42,10 @@ public final class Compiler2BlobFactory implements BlobFactory {
 
 	@Override
 	public Blob makeBlob(Set<Worker<?, ?>> workers, Configuration config, int maxNumCores, DrainData initialState) {
+		if (OnlineTuningBlob.isEnabled(config))
+			return new OnlineTuningBlob(workers, config, maxNumCores, initialState, null, null);
+		if (AdaptiveMultiplierBlob.isEnabled(config))
+			return new AdaptiveMultiplierBlob(workers, config, maxNumCores, initialState, null, null);
 		return new Compiler2(workers, config, maxNumCores, initialState, null, null).compile();
 	}
 
@@ -76,6 +80,8 @@ public final class Compiler2BlobFactory implements BlobFactory {
 		//and resulting extra buffering.  My ILP solver interface only supports
 		//int coefficients so this is discretized in units of 100.
 		builder.addParameter(new Configuration.IntParameter("InitBufferingCost", 0, 100, 100));
+		CoreBarrier.makeParameters(builder);
+		CoreCodeEmitter.makeParameters(builder);
 		//TODO: this really belongs in BlobHostStreamCompiler, but we have to
 		//add it here or we won't pick it up in the default configuration.
 //		Configuration.PermutationParameter<Integer> affinity = new Configuration.PermutationParameter<>("$affinity", Integer.class, Affinity.getMaximalAffinity());
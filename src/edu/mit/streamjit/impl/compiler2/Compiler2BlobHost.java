@@ -35,8 +35,11 @@ import com.google.common.collect.Sets;
 import edu.mit.streamjit.api.Worker;
 import edu.mit.streamjit.impl.blob.Blob;
 import edu.mit.streamjit.impl.blob.Buffer;
+import edu.mit.streamjit.impl.blob.Buffers;
 import edu.mit.streamjit.impl.blob.DrainData;
+import edu.mit.streamjit.impl.blob.PrimitiveBuffer;
 import edu.mit.streamjit.impl.common.Configuration;
+import edu.mit.streamjit.impl.common.IdleStrategy;
 import edu.mit.streamjit.impl.interp.Interpreter;
 import edu.mit.streamjit.util.CollectionUtils;
 import edu.mit.streamjit.util.bytecode.methodhandles.Combinators;
@@ -50,16 +53,20 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.invoke.SwitchPoint;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Phaser;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The actual blob produced by a Compiler2.
@@ -76,11 +83,27 @@ public class Compiler2BlobHost implements Blob {
 			MethodHandles.throwException(void.class, AssertionError.class));
 	private static final MethodHandle NOP = Combinators.nop();
 	private static final MethodHandle MAIN_LOOP_NOP = MethodHandles.insertArguments(MAIN_LOOP, 1, NOP);
+	/**
+	 * If this extra data is true, the steady-state read and write
+	 * instructions use staging buffers, which an I/O thread fills from and
+	 * flushes to the installed buffers while the cores compute.
+	 */
+	static final String PIPELINE_IO_KEY = "pipelineIO";
+	/**
+	 * If this extra data is true, the cores share the barrier action's write
+	 * instructions, storage adjusts and read instructions between them rather
+	 * than leaving them all to the last core to arrive.
+	 */
+	static final String PARALLEL_BARRIER_ACTION_KEY = "parallelBarrierAction";
 
 	/* provided by Compiler2 */
 	private final ImmutableSet<Worker<?, ?>> workers;
 	private final Configuration config;
 	private final ImmutableSortedSet<Token> inputTokens, outputTokens;
+	/**
+	 * The type of the external storage for each token (primitive if unboxed).
+	 */
+	private final ImmutableMap<Token, Class<?>> edgeTypes;
 	private final MethodHandle initCode;
 	private final ImmutableList<MethodHandle> steadyStateCode;
 	private final ImmutableList<MethodHandle> storageAdjusts;
@@ -118,19 +141,99 @@ public class Compiler2BlobHost implements Blob {
 	private final ImmutableMap<Token, Buffer> precreatedBuffers;
 	/* provided by the host */
 	private final boolean collectTimings;
+	/**
+	 * Used when the barrier action waits for input or output space.  Only one
+	 * thread runs the barrier action at a time, so one instance suffices.
+	 */
+	private final IdleStrategy idle;
 	private final ImmutableMap<Token, Integer> minimumBufferCapacity;
 	private ImmutableMap<Token, Buffer> buffers;
+	private final boolean pipelineIO;
+	/**
+	 * The buffers the steady-state read and write instructions use in place
+	 * of the installed buffers, if pipelining I/O; see
+	 * {@link #PIPELINE_IO_KEY}.
+	 */
+	private ImmutableMap<Token, Buffer> stagingBuffers = ImmutableMap.of();
+	/**
+	 * The buffers the barrier action reads and writes: the installed buffers,
+	 * then the staging buffers in their place once the I/O thread starts.
+	 */
+	private ImmutableMap<Token, Buffer> barrierBuffers;
+	/**
+	 * Moves items between the installed and staging buffers, or null if not
+	 * running.  Only set in the barrier action.
+	 */
+	private IOThread ioThread;
 	private final ImmutableList<Runnable> coreCode;
 	private final SwitchPoint sp1 = new SwitchPoint(), sp2 = new SwitchPoint();
-	private final Phaser barrier;
+	private final CoreBarrier barrier;
+	/**
+	 * If the barrier action runs in parallel, separates its stages (writes,
+	 * then storage adjusts, then reads; see {@link #runStages(int)}), else
+	 * null.
+	 */
+	private final CoreBarrier stageBarrier;
+	/**
+	 * The stage the cores are in (0 = writes, 1 = adjusts, 2 = reads), and
+	 * whether they should run the stages after the main barrier.  Only
+	 * written in barrier actions.
+	 */
+	private int stage;
+	private boolean stagesPending;
+	/**
+	 * Whether the reads stage is skipped because we've drained.  Only written
+	 * in barrier actions.
+	 */
+	private boolean skipReads;
+	/**
+	 * The next instruction to claim in the current stage.
+	 */
+	private final AtomicInteger nextTask = new AtomicInteger();
+	/**
+	 * Whether each read instruction was loaded in the reads stage.
+	 */
+	private final boolean[] loaded;
+	/**
+	 * Per-core idle strategies and time spent waiting in the stages.
+	 */
+	private final ImmutableList<IdleStrategy> coreIdle;
+	private final long[] coreWaitNanos;
 	private volatile Runnable drainCallback;
 	private volatile DrainData drainData;
 	private ImmutableList<MethodStorage> ms;
+	/**
+	 * Nanoseconds the compiler spent in each compilation phase, in phase
+	 * order (see Compiler2.compileTimes()).
+	 */
+	private ImmutableMap<String, Long> compileTimes = ImmutableMap.of();
+	/**
+	 * If non-null, told about each steady state; see
+	 * {@link #setCycleListener(CycleListener)}.
+	 */
+	private CycleListener cycleListener;
+	/**
+	 * True if drainDataSizes() stopped the I/O thread during the current
+	 * call to the cycle listener.  Only accessed in the barrier action.
+	 */
+	private boolean ioPaused;
+	/**
+	 * The longest time any core spent running its steady-state code in the
+	 * current cycle (only measured if we have a cycle listener).
+	 */
+	private final LongAccumulator maxWorkNanos = new LongAccumulator(Math::max, 0);
+	/**
+	 * Time the barrier action spent waiting for input or output space in the
+	 * current cycle, and when the previous cycle ended.  Only accessed in the
+	 * barrier action.
+	 */
+	private long waitNanos, lastCycleEndNanos;
 
 	public Compiler2BlobHost(ImmutableSet<Worker<?, ?>> workers,
 			Configuration configuration,
 			ImmutableSortedSet<Token> inputTokens,
 			ImmutableSortedSet<Token> outputTokens,
+			ImmutableMap<Token, Class<?>> edgeTypes,
 			MethodHandle initCode,
 			ImmutableList<MethodHandle> steadyStateCode,
 			ImmutableList<MethodStorage> ms,
@@ -146,6 +249,7 @@ public class Compiler2BlobHost implements Blob {
 		this.config = configuration;
 		this.inputTokens = inputTokens;
 		this.outputTokens = outputTokens;
+		this.edgeTypes = edgeTypes;
 		this.initCode = initCode;
 		this.steadyStateCode = steadyStateCode;
 		this.storageAdjusts = storageAdjusts;
@@ -159,6 +263,8 @@ public class Compiler2BlobHost implements Blob {
 		this.ms = ms;
 
 		this.collectTimings = config.getExtraData("timings") != null ? (Boolean)config.getExtraData("timings") : false;
+		this.idle = IdleStrategy.fromConfiguration(config).get();
+		this.pipelineIO = Boolean.TRUE.equals(config.getExtraData(PIPELINE_IO_KEY));
 
 		List<Map<Token, Integer>> capacityRequirements = new ArrayList<>();
 		for (ReadInstruction i : Iterables.concat(this.initReadInstructions, this.readInstructions))
@@ -175,20 +281,25 @@ public class Compiler2BlobHost implements Blob {
 		ImmutableList.Builder<Runnable> coreCodeRunnables = ImmutableList.builder();
 		for (int i = 0; i < this.steadyStateCode.size(); ++i) {
 			MethodHandle ssc = this.steadyStateCode.get(i);
-			MethodHandle code = sp1.guardWithTest(mainLoopNop, sp2.guardWithTest(mainLoop.bindTo(ssc), NOP));
+			MethodHandle code = sp1.guardWithTest(MethodHandles.insertArguments(mainLoopNop, 0, i),
+					sp2.guardWithTest(MethodHandles.insertArguments(mainLoop, 0, ssc, i), NOP));
 			coreCodeRunnables.add(pf.createProxy("Proxy"+i, ImmutableMap.of("run", code), Runnable.class));
 		}
 		this.coreCode = coreCodeRunnables.build();
 		MethodHandle throwAE = THROW_NEW_ASSERTION_ERROR.bindTo("Can't happen! Barrier action reached after draining?");
 		MethodHandle barrierAction = sp1.guardWithTest(doInit, sp2.guardWithTest(doAdjust, throwAE));
 		final Runnable onAdvanceRunnable = pf.createProxy("BarrierAction", ImmutableMap.of("run", barrierAction), Runnable.class);
-		this.barrier = new Phaser(coreCode.size()) {
-			@Override
-			protected boolean onAdvance(int phase, int registeredParties) {
-				onAdvanceRunnable.run();
-				return super.onAdvance(phase, registeredParties);
-			}
-		};
+		this.barrier = CoreBarrier.create(config, coreCode.size(), onAdvanceRunnable);
+
+		boolean parallelBarrierAction = Boolean.TRUE.equals(config.getExtraData(PARALLEL_BARRIER_ACTION_KEY))
+				&& coreCode.size() > 1;
+		this.stageBarrier = !parallelBarrierAction ? null : CoreBarrier.create(config, coreCode.size(), this::endStage);
+		this.loaded = new boolean[this.readInstructions.size()];
+		ImmutableList.Builder<IdleStrategy> coreIdleBuilder = ImmutableList.builder();
+		for (int i = 0; parallelBarrierAction && i < coreCode.size(); ++i)
+			coreIdleBuilder.add(IdleStrategy.fromConfiguration(config).get());
+		this.coreIdle = coreIdleBuilder.build();
+		this.coreWaitNanos = new long[coreCode.size()];
 	}
 
 	@Override
@@ -213,6 +324,13 @@ public class Compiler2BlobHost implements Blob {
 		return minimumBufferCapacity.get(token);
 	}
 
+	@Override
+	public Class<?> getEdgeType(Token token) {
+		if (!inputTokens.contains(token) && !outputTokens.contains(token))
+			throw new IllegalArgumentException(token.toString()+" not an input or output of this blob");
+		return edgeTypes.get(token);
+	}
+
 	@Override
 	public void installBuffers(Map<Token, Buffer> buffers) {
 		if (this.buffers != null)
@@ -230,11 +348,55 @@ public class Compiler2BlobHost implements Blob {
 			builder.put(t, b);
 		}
 		this.buffers = builder.build();
+		this.barrierBuffers = this.buffers;
 
-		for (ReadInstruction i : Iterables.concat(this.initReadInstructions, this.readInstructions))
+		for (ReadInstruction i : this.initReadInstructions)
 			i.init(this.buffers);
-		for (WriteInstruction i : Iterables.concat(this.initWriteInstructions, this.writeInstructions))
+		for (WriteInstruction i : this.initWriteInstructions)
 			i.init(this.buffers);
+		if (pipelineIO)
+			this.stagingBuffers = makeStagingBuffers();
+		Map<Token, Buffer> steadyStateBuffers = withStagingBuffers();
+		for (ReadInstruction i : this.readInstructions)
+			i.init(steadyStateBuffers);
+		for (WriteInstruction i : this.writeInstructions)
+			i.init(steadyStateBuffers);
+	}
+
+	/**
+	 * Creates a staging buffer for each token, big enough for two steady
+	 * states' worth of items: one the barrier action is reading or writing
+	 * and one the I/O thread is filling or flushing.  Peekable buffers double
+	 * as storage, so they aren't staged.
+	 * @return the staging buffers
+	 */
+	private ImmutableMap<Token, Buffer> makeStagingBuffers() {
+		List<Map<Token, Integer>> capacityRequirements = new ArrayList<>();
+		for (ReadInstruction i : readInstructions)
+			capacityRequirements.add(i.getMinimumBufferCapacity());
+		for (WriteInstruction i : writeInstructions)
+			capacityRequirements.add(i.getMinimumBufferCapacity());
+		ImmutableMap<Token, Integer> steadyStateCapacity = CollectionUtils.union((key, value) -> Collections.max(value), capacityRequirements);
+		ImmutableMap.Builder<Token, Buffer> builder = ImmutableMap.builder();
+		for (Map.Entry<Token, Integer> e : steadyStateCapacity.entrySet()) {
+			if (e.getValue() == 0 || precreatedBuffers.containsKey(e.getKey()))
+				continue;
+			Buffer b = buffers.get(e.getKey());
+			Class<?> type = b instanceof PrimitiveBuffer ? ((PrimitiveBuffer)b).primitiveType() : Object.class;
+			builder.put(e.getKey(), Buffers.edgeBuffer(type, type, 2*e.getValue()));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the installed buffers, with the staging buffers in place of
+	 * those they stage.
+	 * @return the buffers the steady-state instructions use
+	 */
+	private ImmutableMap<Token, Buffer> withStagingBuffers() {
+		Map<Token, Buffer> map = new HashMap<>(buffers);
+		map.putAll(stagingBuffers);
+		return ImmutableMap.copyOf(map);
 	}
 
 	@Override
@@ -257,25 +419,38 @@ public class Compiler2BlobHost implements Blob {
 		return drainData;
 	}
 
-	private void mainLoop(MethodHandle coreCode) throws Throwable {
+	/**
+	 * Returns the nanoseconds the compiler spent in each compilation phase,
+	 * in phase order.
+	 * @return the compilation phase times
+	 */
+	public ImmutableMap<String, Long> getCompileTimes() {
+		return compileTimes;
+	}
+
+	void setCompileTimes(ImmutableMap<String, Long> compileTimes) {
+		this.compileTimes = compileTimes;
+	}
+
+	private void mainLoop(MethodHandle coreCode, int core) throws Throwable {
 		try {
-			MethodHandle mainLoop = MAIN_LOOP.bindTo(this),
-					doInit = DO_INIT.bindTo(this),
-					doAdjust = DO_ADJUST.bindTo(this),
-					mainLoopNop = MAIN_LOOP_NOP.bindTo(this);
-			ProxyFactory pf = new ProxyFactory(new ModuleClassLoader(new Module()));
-			ImmutableList.Builder<Runnable> coreCodeRunnables = ImmutableList.builder();
-			for (int i = 0; i < this.steadyStateCode.size(); ++i) {
-				MethodHandle ssc = this.steadyStateCode.get(i);
-				MethodHandle code = sp1.guardWithTest(mainLoopNop, sp2.guardWithTest(mainLoop.bindTo(ssc), NOP));
-				coreCodeRunnables.add(pf.createProxy("Proxy"+i, ImmutableMap.of("run", code), Runnable.class));
-			}
-			ImmutableList<Runnable> cCode = coreCodeRunnables.build();
-			coreCode.invokeExact();
-			barrier.arriveAndAwaitAdvance();
+			if (cycleListener != null) {
+				long start = System.nanoTime();
+				coreCode.invokeExact();
+				maxWorkNanos.accumulate(System.nanoTime() - start);
+			} else
+				coreCode.invokeExact();
+			barrier.await(core);
+			if (stagesPending)
+				runStages(core);
 		} catch (Throwable ex) {
 			barrier.forceTermination();
+			if (stageBarrier != null)
+				stageBarrier.forceTermination();
 			SwitchPoint.invalidateAll(new SwitchPoint[]{sp1, sp2});
+			IOThread io = ioThread;
+			if (io != null)
+				io.running = false;
 			ex.printStackTrace();
 			throw ex;
 		}
@@ -288,11 +463,10 @@ public class Compiler2BlobHost implements Blob {
 
 		for (int i = 0; i < initReadInstructions.size(); ++i) {
 			ReadInstruction inst = initReadInstructions.get(i);
-			while (!inst.load())
-				if (isDraining()) {
-					doDrain(initReadInstructions.subList(0, i), ImmutableList.<DrainInstruction>of());
-					return;
-				}
+			if (!awaitLoad(inst)) {
+				doDrain(initReadInstructions.subList(0, i), ImmutableList.<DrainInstruction>of());
+				return;
+			}
 		}
 
 		initCode.invoke();
@@ -307,12 +481,20 @@ public class Compiler2BlobHost implements Blob {
 		initWriteInstructions = null;
 		migrationInstructions = null;
 
+		if (!stagingBuffers.isEmpty()) {
+			barrierBuffers = withStagingBuffers();
+			ioThread = new IOThread();
+			ioThread.start();
+		}
+
 		readOrDrain();
 
 		SwitchPoint.invalidateAll(new SwitchPoint[]{sp1});
 
 		if (collectTimings)
 			System.out.println("init time: "+initTime.stop());
+		waitNanos = 0;
+		lastCycleEndNanos = System.nanoTime();
 	}
 
 	private final Stopwatch adjustTime = Stopwatch.createUnstarted();
@@ -323,40 +505,435 @@ public class Compiler2BlobHost implements Blob {
 			++adjustCount;
 		}
 
+		if (stageBarrier != null) {
+			//The cores run the stages once we return.
+			stagesPending = true;
+			return;
+		}
+
 		doWrites(writeInstructions);
 
 		for (MethodHandle h : storageAdjusts)
 			h.invokeExact();
 
+		if (steadyStateDone()) {
+			if (collectTimings)
+				adjustTime.stop();
+			return;
+		}
+
 		readOrDrain();
 
 		if (collectTimings)
 			adjustTime.stop();
 	}
 
+	/**
+	 * Tells the cycle listener (if any) the current steady state is done,
+	 * draining if it asks us to.
+	 * @return true iff we drained
+	 */
+	private boolean steadyStateDone() {
+		if (cycleListener != null && !isDraining()) {
+			long now = System.nanoTime();
+			Runnable callback = cycleListener.steadyStateDone(maxWorkNanos.getThenReset(), now - lastCycleEndNanos, waitNanos);
+			waitNanos = 0;
+			lastCycleEndNanos = now;
+			if (callback != null) {
+				//Drain now, without reading more input.
+				drainCallback = callback;
+				doDrain(ImmutableList.<ReadInstruction>of(), drainInstructions, true);
+				return true;
+			}
+			if (ioPaused) {
+				ioPaused = false;
+				ioThread = new IOThread();
+				ioThread.start();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the barrier action's instructions on all cores.  Each core claims
+	 * instructions until none are left in the stage, then waits for the other
+	 * cores at the stage barrier.  A storage's writes must finish before it's
+	 * adjusted, and its reads must wait until then, but instructions in the
+	 * same stage touch different tokens or storage, so they're independent.
+	 * @param core the core index
+	 */
+	private void runStages(int core) throws Throwable {
+		for (int i; (i = nextTask.getAndIncrement()) < writeInstructions.size();)
+			awaitWrite(writeInstructions.get(i), core);
+		stageBarrier.await(core);
+		for (int i; (i = nextTask.getAndIncrement()) < storageAdjusts.size();)
+			storageAdjusts.get(i).invokeExact();
+		stageBarrier.await(core);
+		if (!skipReads)
+			for (int i; (i = nextTask.getAndIncrement()) < readInstructions.size();)
+				loaded[i] = awaitLoad(readInstructions.get(i), core);
+		stageBarrier.await(core);
+	}
+
+	/**
+	 * The stage barrier action: ends the current stage.  The serial parts of
+	 * the barrier action (telling the cycle listener and draining) happen
+	 * here.
+	 */
+	private void endStage() {
+		nextTask.set(0);
+		if (stage == 1) {
+			long maxWaitNanos = 0;
+			for (int i = 0; i < coreWaitNanos.length; ++i) {
+				maxWaitNanos = Math.max(maxWaitNanos, coreWaitNanos[i]);
+				coreWaitNanos[i] = 0;
+			}
+			waitNanos += maxWaitNanos;
+			skipReads = steadyStateDone();
+		} else if (stage == 2) {
+			stagesPending = false;
+			if (!skipReads) {
+				List<ReadInstruction> loadedReads = new ArrayList<>(readInstructions.size());
+				for (int i = 0; i < loaded.length; ++i)
+					if (loaded[i])
+						loadedReads.add(readInstructions.get(i));
+				if (loadedReads.size() < readInstructions.size())
+					doDrain(loadedReads, drainInstructions);
+			}
+			skipReads = false;
+			if (collectTimings)
+				adjustTime.stop();
+		}
+		stage = (stage + 1) % 3;
+	}
+
+	/**
+	 * Receives per-steady-state timings, and can ask the blob to drain
+	 * immediately (e.g., to be replaced by a recompiled blob).
+	 */
+	interface CycleListener {
+		/**
+		 * Called from the barrier action after each steady state (before
+		 * reading input for the next one), unless the blob is draining.
+		 * @param workNanos the longest time any core spent in its steady-state
+		 * code
+		 * @param cycleNanos the time since the previous call (or the end of
+		 * init)
+		 * @param waitNanos the part of cycleNanos the barrier action spent
+		 * waiting for input or output space
+		 * @return null to continue, or a callback to drain the blob now and
+		 * run the callback when done
+		 */
+		public Runnable steadyStateDone(long workNanos, long cycleNanos, long waitNanos);
+	}
+
+	/**
+	 * Sets the cycle listener.  Must be called before the core code runs.
+	 * @param listener the listener
+	 */
+	void setCycleListener(CycleListener listener) {
+		this.cycleListener = listener;
+	}
+
+	/**
+	 * Returns the number of items for each token in the DrainData a drain
+	 * requested by the cycle listener would produce right now (omitting
+	 * tokens with no items).  A replacement blob compiled with initial data
+	 * of this shape can take the drained data via
+	 * {@link #replaceInitialState(DrainData)}.  Only meaningful when called
+	 * from {@link CycleListener#steadyStateDone(long, long, long)}.
+	 * @return the number of items per token
+	 */
+	ImmutableMap<Token, Integer> drainDataSizes() {
+		//Stop the I/O thread so the staging buffers hold still until the
+		//drain; steadyStateDone() restarts it if the listener doesn't drain.
+		if (ioThread != null) {
+			ioThread.finish();
+			ioThread = null;
+			ioPaused = true;
+		}
+		List<Map<Token, Integer>> sizes = new ArrayList<>(drainInstructions.size() + 1);
+		Map<Token, Integer> staged = new HashMap<>();
+		for (Map.Entry<Token, Buffer> e : stagingBuffers.entrySet())
+			staged.put(e.getKey(), e.getValue().size());
+		sizes.add(staged);
+		for (DrainInstruction i : drainInstructions)
+			sizes.add(i.sizes());
+		ImmutableMap<Token, Integer> total = CollectionUtils.union((key, value) -> {
+			int size = 0;
+			for (int v : value)
+				size += v;
+			return size;
+		}, sizes);
+		return ImmutableMap.copyOf(Maps.filterValues(total, v -> v > 0));
+	}
+
+	/**
+	 * Replaces the initial data this blob was compiled with by the given
+	 * DrainData's data, which must have the same number of items for each
+	 * token, and reloads worker state from the workers.  Lets a replacement
+	 * blob be compiled before the blob it replaces drains, using placeholder
+	 * data of the shape given by {@link #drainDataSizes()}.  Must be called
+	 * before the core code runs.
+	 * @param state the drained blob's DrainData
+	 */
+	void replaceInitialState(DrainData state) {
+		for (ReadInstruction i : initReadInstructions)
+			if (i instanceof Compiler2.InitDataReadInstruction)
+				((Compiler2.InitDataReadInstruction)i).replaceData(state);
+		for (DrainInstruction i : drainInstructions)
+			if (i instanceof StateHolder)
+				((StateHolder)i).reload();
+	}
+
+	/**
+	 * Returns the buffers this blob is using, including those it created
+	 * itself, for installation in a replacement blob.
+	 * @return the installed buffers
+	 */
+	ImmutableMap<Token, Buffer> installedBuffers() {
+		return buffers;
+	}
+
 	/**
 	 * Handle short writes round-robin so other Blobs can make progress (thus
-	 * freeing up buffer space).
+	 * freeing up buffer space).  If a pass makes no progress, idles until
+	 * readers free up space.
 	 * @param writes the write instructions to execute
 	 */
-	private static void doWrites(List<? extends NothrowCallable<Boolean>> writeInstructions) {
+	private void doWrites(List<? extends NothrowCallable<Boolean>> writeInstructions) {
 		ArrayList<NothrowCallable<Boolean>> writes = new ArrayList<>(writeInstructions);
-		while (!writes.isEmpty())
+		boolean waiting = false;
+		while (!writes.isEmpty()) {
 			for (Iterator<NothrowCallable<Boolean>> it = writes.iterator(); it.hasNext();) {
 				NothrowCallable<Boolean> write = it.next();
 				if (write.call())
 					it.remove();
 			}
+			if (!writes.isEmpty()) {
+				if (!waiting) {
+					//Register before retrying so we don't miss the wakeup.
+					setWaiting(Thread.currentThread());
+					waiting = true;
+					idle.reset();
+					waitNanos -= System.nanoTime();
+				} else
+					idle.idle();
+			}
+		}
+		if (waiting) {
+			waitNanos += System.nanoTime();
+			setWaiting(null);
+		}
 	}
 
 	private void readOrDrain() {
 		for (int i = 0; i < readInstructions.size(); ++i) {
 			ReadInstruction inst = readInstructions.get(i);
-			while (!inst.load())
-				if (isDraining()) {
-					doDrain(readInstructions.subList(0, i), drainInstructions);
-					return;
+			if (!awaitLoad(inst)) {
+				doDrain(readInstructions.subList(0, i), drainInstructions);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Loads the given instruction, idling until input arrives.
+	 * @param inst the instruction to load
+	 * @return true if the load succeeded, or false if we should drain
+	 */
+	private boolean awaitLoad(ReadInstruction inst) {
+		if (inst.load())
+			return true;
+		//Register before retrying so we don't miss the wakeup.
+		setWaiting(Thread.currentThread());
+		waitNanos -= System.nanoTime();
+		try {
+			idle.reset();
+			while (!inst.load()) {
+				if (isDraining())
+					return false;
+				idle.idle();
+			}
+			return true;
+		} finally {
+			waitNanos += System.nanoTime();
+			setWaiting(null);
+		}
+	}
+
+	/**
+	 * Loads the given instruction in the reads stage, idling until input
+	 * arrives.
+	 * @param inst the instruction to load
+	 * @param core the core index
+	 * @return true if the load succeeded, or false if we should drain
+	 */
+	private boolean awaitLoad(ReadInstruction inst, int core) {
+		if (inst.load())
+			return true;
+		Set<Token> tokens = inst.getMinimumBufferCapacity().keySet();
+		setWaiting(tokens, Thread.currentThread());
+		coreWaitNanos[core] -= System.nanoTime();
+		try {
+			IdleStrategy idle = coreIdle.get(core);
+			idle.reset();
+			while (!inst.load()) {
+				if (isDraining())
+					return false;
+				idle.idle();
+			}
+			return true;
+		} finally {
+			coreWaitNanos[core] += System.nanoTime();
+			setWaiting(tokens, null);
+		}
+	}
+
+	/**
+	 * Executes the given write instruction in the writes stage, idling until
+	 * readers free up space.
+	 * @param inst the instruction to execute
+	 * @param core the core index
+	 */
+	private void awaitWrite(WriteInstruction inst, int core) {
+		if (inst.call())
+			return;
+		Set<Token> tokens = inst.getMinimumBufferCapacity().keySet();
+		setWaiting(tokens, Thread.currentThread());
+		coreWaitNanos[core] -= System.nanoTime();
+		try {
+			IdleStrategy idle = coreIdle.get(core);
+			idle.reset();
+			while (!inst.call())
+				idle.idle();
+		} finally {
+			coreWaitNanos[core] += System.nanoTime();
+			setWaiting(tokens, null);
+		}
+	}
+
+	/**
+	 * Registers the given thread (or null to unregister) to be woken when our
+	 * input buffers get data or our output buffers get space.
+	 */
+	private void setWaiting(Thread thread) {
+		setWaiting(Sets.union(inputTokens, outputTokens), thread);
+	}
+
+	/**
+	 * Registers the given thread (or null to unregister) to be woken when the
+	 * given tokens' input buffers get data or output buffers get space.
+	 */
+	private void setWaiting(Set<Token> tokens, Thread thread) {
+		for (Token t : tokens)
+			if (inputTokens.contains(t))
+				Buffers.wakeReaderOnWrite(barrierBuffers.get(t), thread);
+			else
+				Buffers.wakeWriterOnRead(barrierBuffers.get(t), thread);
+	}
+
+	/**
+	 * Moves items from the installed input buffers to the staging buffers and
+	 * from the staging output buffers to the installed buffers, concurrently
+	 * with the core code, so the barrier action doesn't wait on the installed
+	 * buffers.  The I/O thread is the only reader or writer of the buffer
+	 * ends it uses, so it never finds less space or fewer items than it saw.
+	 */
+	private final class IOThread extends Thread {
+		private final List<Transfer> transfers = new ArrayList<>();
+		private final IdleStrategy idle = IdleStrategy.fromConfiguration(config).get();
+		private volatile boolean running = true;
+		private IOThread() {
+			super("Compiler2BlobHost I/O");
+			setDaemon(true);
+			for (Map.Entry<Token, Buffer> e : stagingBuffers.entrySet())
+				if (inputTokens.contains(e.getKey()))
+					transfers.add(new Transfer(buffers.get(e.getKey()), e.getValue()));
+				else
+					transfers.add(new Transfer(e.getValue(), buffers.get(e.getKey())));
+		}
+		@Override
+		public void run() {
+			for (Transfer t : transfers) {
+				Buffers.wakeReaderOnWrite(t.from, this);
+				Buffers.wakeWriterOnRead(t.to, this);
+			}
+			try {
+				idle.reset();
+				while (running) {
+					boolean progress = false;
+					for (Transfer t : transfers)
+						progress |= t.run();
+					if (progress)
+						idle.reset();
+					else
+						idle.idle();
+				}
+			} finally {
+				for (Transfer t : transfers) {
+					Buffers.wakeReaderOnWrite(t.from, null);
+					Buffers.wakeWriterOnRead(t.to, null);
 				}
+			}
+		}
+		/**
+		 * Stops and waits for the I/O thread.  Afterwards the barrier action
+		 * owns both ends of the staging buffers.
+		 */
+		private void finish() {
+			running = false;
+			LockSupport.unpark(this);
+			boolean interrupted = false;
+			while (isAlive())
+				try {
+					join();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class Transfer {
+		private static final int BATCH_SIZE = 1024;
+		private final Buffer from, to;
+		/**
+		 * An array of the buffers' primitive type if both are PrimitiveBuffers
+		 * of that type, else an Object[].
+		 */
+		private final Object batch;
+		private Transfer(Buffer from, Buffer to) {
+			this.from = from;
+			this.to = to;
+			Class<?> type = from instanceof PrimitiveBuffer && to instanceof PrimitiveBuffer
+					&& ((PrimitiveBuffer)from).primitiveType().equals(((PrimitiveBuffer)to).primitiveType()) ?
+					((PrimitiveBuffer)from).primitiveType() : Object.class;
+			this.batch = Array.newInstance(type, BATCH_SIZE);
+		}
+		/**
+		 * Moves as many items as are available and fit (as of the start of
+		 * the call).
+		 * @return true iff any items were moved
+		 */
+		private boolean run() {
+			int n = Math.min(from.size(), to.capacity() - to.size());
+			for (int left = n; left > 0;) {
+				int k = Math.min(left, BATCH_SIZE), written;
+				if (batch instanceof Object[]) {
+					Object[] objects = (Object[])batch;
+					k = from.read(objects, 0, k);
+					written = to.write(objects, 0, k);
+					Arrays.fill(objects, 0, k, null);
+				} else {
+					k = ((PrimitiveBuffer)from).readPrimitives(batch, 0, k);
+					written = ((PrimitiveBuffer)to).writePrimitives(batch, 0, k);
+				}
+				assert written == k : written + " of " + k;
+				left -= k;
+			}
+			return n > 0;
 		}
 	}
 
@@ -369,15 +946,37 @@ public class Compiler2BlobHost implements Blob {
 	 * empty list if we didn't complete init
 	 */
 	private void doDrain(List<ReadInstruction> reads, List<DrainInstruction> drains) {
+		doDrain(reads, drains, false);
+	}
+
+	/**
+	 * Extracts elements from storage and puts them in a DrainData.
+	 * @param reads read instructions whose load() completed (thus requiring
+	 * unload())
+	 * @param drains drain instructions, if we're in the steady-state, or an
+	 * empty list if we didn't complete init
+	 * @param forCompiler if true, the DrainData is for a replacement
+	 * Compiler2 blob, which can take it as-is; otherwise we run an interpreter
+	 * blob over it first
+	 */
+	private void doDrain(List<ReadInstruction> reads, List<DrainInstruction> drains, boolean forCompiler) {
 		Stopwatch drainTime = null;
 		if (collectTimings)
 			drainTime = Stopwatch.createStarted();
 
-		List<Map<Token, Object[]>> data = new ArrayList<>(reads.size() + drains.size());
+		List<Map<Token, Object[]>> data = new ArrayList<>(reads.size() + drains.size() + 2);
+		if (ioThread != null) {
+			ioThread.finish();
+			ioThread = null;
+		}
+		//Staged output precedes anything still in storage; staged input
+		//follows it.
+		data.add(unstage(outputTokens));
 		for (ReadInstruction i : reads)
 			data.add(i.unload());
 		for (DrainInstruction i : drains)
 			data.add(i.call());
+		data.add(unstage(inputTokens));
 		ImmutableMap<Token, List<Object>> mergedData = CollectionUtils.union((key, value) -> {
 			int size = 0;
 			for (Object[] v : value)
@@ -387,15 +986,18 @@ public class Compiler2BlobHost implements Blob {
 				data1.addAll(Arrays.asList(v));
 			return data1;
 		}, data);
-		//Try once to write data on output edges, then let the interpreter handle it.
+		//Try once to write data on output edges, then let the interpreter
+		//handle it.  A replacement compiler blob writes it instead, so the
+		//drained data has the shape drainDataSizes() predicted.
 		Predicate<Token> isOutput = Predicates.in(getOutputs());
-		for (Map.Entry<Token, List<Object>> e : Maps.filterKeys(mergedData, isOutput).entrySet()) {
-			final Buffer b = buffers.get(e.getKey());
-			final Object[] d = e.getValue().toArray();
-			int written = b.write(d, 0, d.length);
-			//Remove the data we wrote.
-			e.getValue().subList(0, written).clear();
-		}
+		if (!forCompiler)
+			for (Map.Entry<Token, List<Object>> e : Maps.filterKeys(mergedData, isOutput).entrySet()) {
+				final Buffer b = buffers.get(e.getKey());
+				final Object[] d = e.getValue().toArray();
+				int written = b.write(d, 0, d.length);
+				//Remove the data we wrote.
+				e.getValue().subList(0, written).clear();
+			}
 		DrainData forInterp = new DrainData(mergedData,
 				//We put state back in the workers via StateHolders, which are
 				//DrainInstructions, so no state in the DrainData.  (It will be
@@ -403,15 +1005,21 @@ public class Compiler2BlobHost implements Blob {
 				//distributed will still see it.)
 				ImmutableTable.<Integer, String, Object>of());
 
-		Interpreter.InterpreterBlobFactory interpFactory = new Interpreter.InterpreterBlobFactory();
-		Blob interp = interpFactory.makeBlob(workers, interpFactory.getDefaultConfiguration(workers), 1, forInterp);
-		interp.installBuffers(buffers);
-		Runnable interpCode = interp.getCoreCode(0);
-		final AtomicBoolean interpFinished = new AtomicBoolean();
-		interp.drain(() -> interpFinished.set(true));
-		while (!interpFinished.get())
-			interpCode.run();
-		this.drainData = interp.getDrainData();
+		if (forCompiler)
+			//The interpreter would keep consuming input as long as there's
+			//room for output, so don't run it when we aren't finishing.
+			this.drainData = forInterp;
+		else {
+			Interpreter.InterpreterBlobFactory interpFactory = new Interpreter.InterpreterBlobFactory();
+			Blob interp = interpFactory.makeBlob(workers, interpFactory.getDefaultConfiguration(workers), 1, forInterp);
+			interp.installBuffers(buffers);
+			Runnable interpCode = interp.getCoreCode(0);
+			final AtomicBoolean interpFinished = new AtomicBoolean();
+			interp.drain(() -> interpFinished.set(true));
+			while (!interpFinished.get())
+				interpCode.run();
+			this.drainData = interp.getDrainData();
+		}
 
 		SwitchPoint.invalidateAll(new SwitchPoint[]{sp1, sp2});
 		drainCallback.run();
@@ -423,6 +1031,22 @@ public class Compiler2BlobHost implements Blob {
 		}
 	}
 
+	/**
+	 * Removes the items in the staging buffers for the given tokens.
+	 * @param tokens the tokens
+	 * @return the removed items
+	 */
+	private Map<Token, Object[]> unstage(Set<Token> tokens) {
+		ImmutableMap.Builder<Token, Object[]> builder = ImmutableMap.builder();
+		for (Map.Entry<Token, Buffer> e : Maps.filterKeys(stagingBuffers, Predicates.in(tokens)).entrySet()) {
+			Object[] items = new Object[e.getValue().size()];
+			e.getValue().readAll(items);
+			if (items.length > 0)
+				builder.put(e.getKey(), items);
+		}
+		return builder.build();
+	}
+
 	private boolean isDraining() {
 		return drainCallback != null;
 	}
@@ -463,5 +1087,13 @@ public class Compiler2BlobHost implements Blob {
 	public static interface DrainInstruction extends NothrowCallable<Map<Token, Object[]>> {
 		@Override
 		public Map<Token, Object[]> call();
+		/**
+		 * Returns the number of items call() would return for each token,
+		 * without extracting them.
+		 * @return the number of items per token
+		 */
+		public default Map<Token, Integer> sizes() {
+			return ImmutableMap.of();
+		}
 	}
 }
@@ -21,15 +21,22 @@
  */
 package edu.mit.streamjit.impl.compiler2;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import com.google.common.collect.ImmutableSet;
+import edu.mit.streamjit.api.CompiledStream;
 import edu.mit.streamjit.api.Input;
+import edu.mit.streamjit.api.OneToOneElement;
 import edu.mit.streamjit.api.Output;
 import edu.mit.streamjit.api.Worker;
 import edu.mit.streamjit.impl.blob.Blob;
 import edu.mit.streamjit.impl.blob.Buffer;
 import edu.mit.streamjit.impl.common.BlobHostStreamCompiler;
 import edu.mit.streamjit.impl.common.Configuration;
+import edu.mit.streamjit.impl.common.ConnectWorkersVisitor;
+import edu.mit.streamjit.impl.common.IdleStrategy;
+import edu.mit.streamjit.impl.common.SharedCoreExecutor;
+import edu.mit.streamjit.impl.common.Workers;
 import edu.mit.streamjit.test.Datasets;
 import java.nio.file.Path;
 import java.util.Random;
@@ -48,6 +55,12 @@ public final class Compiler2StreamCompiler extends BlobHostStreamCompiler {
 	private Path dumpFile;
 	private boolean timings = false;
 	private boolean throughput = false;
+	private String idleStrategy;
+	private String coreExecutor;
+	private double adaptiveMultiplier = Double.NaN;
+	private int onlineTuning = 0;
+	private boolean pipelineIO = false;
+	private boolean parallelBarrierAction = false;
 	public Compiler2StreamCompiler() {
 		super(new Compiler2BlobFactory());
 	}
@@ -89,6 +102,82 @@ public final class Compiler2StreamCompiler extends BlobHostStreamCompiler {
 		return this;
 	}
 
+	/**
+	 * Sets what the blob does while waiting for input or output space; see
+	 * {@link IdleStrategy#parse(String)} for the format.
+	 * @param spec the idle strategy specification
+	 * @return this
+	 */
+	public Compiler2StreamCompiler idleStrategy(String spec) {
+		IdleStrategy.parse(spec); //check it's well-formed
+		this.idleStrategy = spec;
+		return this;
+	}
+
+	/**
+	 * Sets where the blob's core code runs; see
+	 * {@link SharedCoreExecutor#parse(String)} for the format.  The default is
+	 * one dedicated thread per core.
+	 * @param spec the core executor specification
+	 * @return this
+	 */
+	public Compiler2StreamCompiler coreExecutor(String spec) {
+		SharedCoreExecutor.parse(spec); //check it's well-formed
+		this.coreExecutor = spec;
+		return this;
+	}
+
+	/**
+	 * Lets the blob change its multiplier at runtime, recompiling with a larger
+	 * multiplier while barrier overhead exceeds the given fraction of the
+	 * cycle time (or a smaller one while it's well under).  The configured
+	 * multiplier is the starting point.
+	 * @param maxOverhead the maximum barrier overhead fraction, in (0, 1)
+	 * @return this
+	 */
+	public Compiler2StreamCompiler adaptiveMultiplier(double maxOverhead) {
+		checkArgument(maxOverhead > 0 && maxOverhead < 1, "bad overhead fraction %s", maxOverhead);
+		this.adaptiveMultiplier = maxOverhead;
+		return this;
+	}
+
+	/**
+	 * Lets the blob tune its configuration while it runs, compiling candidate
+	 * configurations in the background and swapping them in at a barrier
+	 * (handing over the drain data) to measure them, keeping the fastest.
+	 * The configured (or default) configuration is the starting point.
+	 * @param exploitCycles the number of steady states to run the best
+	 * configuration between candidates
+	 * @return this
+	 */
+	public Compiler2StreamCompiler onlineTuning(int exploitCycles) {
+		checkArgument(exploitCycles > 0, "bad steady state count %s", exploitCycles);
+		this.onlineTuning = exploitCycles;
+		return this;
+	}
+
+	/**
+	 * Moves the blob's input and output to and from its external buffers on
+	 * a separate I/O thread, overlapped with the steady-state computation, so
+	 * the barrier action only copies between memory and storage.
+	 * @return this
+	 */
+	public Compiler2StreamCompiler pipelineIO() {
+		this.pipelineIO = true;
+		return this;
+	}
+
+	/**
+	 * Shares the barrier action's buffer reads and writes and storage
+	 * adjustments between the cores, rather than running them all on the last
+	 * core to reach the barrier.
+	 * @return this
+	 */
+	public Compiler2StreamCompiler parallelBarrierAction() {
+		this.parallelBarrierAction = true;
+		return this;
+	}
+
 	@Override
 	protected final int getMaxNumCores() {
 		return maxNumCores;
@@ -98,7 +187,7 @@ public final class Compiler2StreamCompiler extends BlobHostStreamCompiler {
 	protected final Configuration getConfiguration(Set<Worker<?, ?>> workers) {
 		if (config != null) {
 			Configuration.Builder builder = Configuration.builder(config);
-			builder.putExtraData("reportThroughput", throughput);
+			putRuntimeExtraData(builder);
 			return builder.build();
 		}
 
@@ -113,16 +202,56 @@ public final class Compiler2StreamCompiler extends BlobHostStreamCompiler {
 		if (dumpFile != null)
 			builder.putExtraData("dumpFile", dumpFile);
 		builder.putExtraData("timings", timings);
-		builder.putExtraData("reportThroughput", throughput);
+		putRuntimeExtraData(builder);
 		return builder.build();
 	}
 
+	/**
+	 * Puts the extra data for the runtime options set on this compiler, which
+	 * apply whether or not we're using a specific configuration.
+	 */
+	private void putRuntimeExtraData(Configuration.Builder builder) {
+		builder.putExtraData("reportThroughput", throughput);
+		if (idleStrategy != null)
+			builder.putExtraData(IdleStrategy.EXTRA_DATA_KEY, idleStrategy);
+		if (coreExecutor != null)
+			builder.putExtraData(SharedCoreExecutor.EXTRA_DATA_KEY, coreExecutor);
+		if (!Double.isNaN(adaptiveMultiplier))
+			builder.putExtraData(AdaptiveMultiplierBlob.EXTRA_DATA_KEY, adaptiveMultiplier);
+		if (onlineTuning > 0)
+			builder.putExtraData(OnlineTuningBlob.EXTRA_DATA_KEY, onlineTuning);
+		if (pipelineIO)
+			builder.putExtraData(Compiler2BlobHost.PIPELINE_IO_KEY, true);
+		if (parallelBarrierAction)
+			builder.putExtraData(Compiler2BlobHost.PARALLEL_BARRIER_ACTION_KEY, true);
+	}
+
+	/**
+	 * Compiles the graph into one blob if all its workers have fixed rates;
+	 * otherwise, compiles each statically-schedulable region separately (see
+	 * {@link RegionStreamCompiler}).
+	 */
+	@Override
+	public <I, O> CompiledStream compile(OneToOneElement<I, O> stream, Input<I> input, Output<O> output) {
+		ConnectWorkersVisitor cwv = new ConnectWorkersVisitor();
+		stream.visit(cwv);
+		for (Worker<?, ?> w : Workers.getAllWorkersInGraph(cwv.getSource()))
+			if (RegionStreamCompiler.isVariableRate(w))
+				return new RegionStreamCompiler(this, coreExecutor != null ? SharedCoreExecutor.parse(coreExecutor) : null)
+						.compile(stream, input, output);
+		return super.compile(stream, input, output);
+	}
+
 	@Override
 	protected Blob makeBlob(ImmutableSet<Worker<?, ?>> workers, Configuration configuration, Input<?> input, Output<?> output) {
 		//When reporting throughput, repeat the input as needed.
 		Boolean reportThroughput = (Boolean)configuration.getExtraData("reportThroughput");
 		if (reportThroughput != null && reportThroughput)
 			input = Datasets.cycle(input);
+		if (OnlineTuningBlob.isEnabled(configuration))
+			return new OnlineTuningBlob(workers, configuration, getMaxNumCores(), null, input, output);
+		if (AdaptiveMultiplierBlob.isEnabled(configuration))
+			return new AdaptiveMultiplierBlob(workers, configuration, getMaxNumCores(), null, input, output);
 		return new Compiler2(workers, configuration, getMaxNumCores(), null, input, output).compile();
 	}
 
@@ -21,15 +21,20 @@
  */
 package edu.mit.streamjit.impl.compiler2;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Range;
-import edu.mit.streamjit.util.bytecode.methodhandles.Combinators;
 import edu.mit.streamjit.util.Pair;
 import java.lang.invoke.MethodHandle;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 /**
  * Represents one core during the compilation.
@@ -41,12 +46,55 @@ public class Core {
 	private final BiFunction<MethodHandle[], WorkerActor, MethodHandle> switchFactory;
 	private final ImmutableMap<ActorGroup, Integer> unrollFactors;
 	private final ImmutableTable<Actor, Integer, IndexFunctionTransformer> inputTransformers, outputTransformers;
+	private final SpecializationCache cache;
+	/**
+	 * Creates the emitter for this core's generated class, or null to build
+	 * MethodHandle combinators.
+	 */
+	private final Supplier<CoreCodeEmitter> emitterFactory;
 	private final List<Pair<ActorGroup, Range<Integer>>> allocations = new ArrayList<>();
+	/**
+	 * The results of prepare(): specialized code, or loop plans if emitting
+	 * bytecode; null if not prepared.
+	 */
+	private List<MethodStorage> specialized;
+	private List<ImmutableList<ActorGroup.GroupLoop>> plans;
 	public Core(ImmutableMap<Storage, ConcreteStorage> storage,
 			BiFunction<MethodHandle[], WorkerActor, MethodHandle> switchFactory,
 			ImmutableMap<ActorGroup, Integer> unrollFactors,
 			ImmutableTable<Actor, Integer, IndexFunctionTransformer> inputTransformers,
 			ImmutableTable<Actor, Integer, IndexFunctionTransformer> outputTransformers) {
+		this(storage, switchFactory, unrollFactors, inputTransformers, outputTransformers, new SpecializationCache());
+	}
+
+	/**
+	 * Creates a Core sharing specialized code through the given cache.  All
+	 * Cores sharing a cache must have the same storage, switch factory and
+	 * index function transformers; only the unroll factors may differ.
+	 */
+	public Core(ImmutableMap<Storage, ConcreteStorage> storage,
+			BiFunction<MethodHandle[], WorkerActor, MethodHandle> switchFactory,
+			ImmutableMap<ActorGroup, Integer> unrollFactors,
+			ImmutableTable<Actor, Integer, IndexFunctionTransformer> inputTransformers,
+			ImmutableTable<Actor, Integer, IndexFunctionTransformer> outputTransformers,
+			SpecializationCache cache) {
+		this(storage, switchFactory, unrollFactors, inputTransformers, outputTransformers, cache, null);
+	}
+
+	/**
+	 * Creates a Core sharing specialized code through the given cache, or, if
+	 * the emitter factory is non-null, generating its code as bytecode in a
+	 * class of its own (bypassing the cache).
+	 */
+	public Core(ImmutableMap<Storage, ConcreteStorage> storage,
+			BiFunction<MethodHandle[], WorkerActor, MethodHandle> switchFactory,
+			ImmutableMap<ActorGroup, Integer> unrollFactors,
+			ImmutableTable<Actor, Integer, IndexFunctionTransformer> inputTransformers,
+			ImmutableTable<Actor, Integer, IndexFunctionTransformer> outputTransformers,
+			SpecializationCache cache,
+			Supplier<CoreCodeEmitter> emitterFactory) {
+		this.cache = cache;
+		this.emitterFactory = emitterFactory;
 		this.storage = storage;
 		this.switchFactory = switchFactory;
 		this.unrollFactors = unrollFactors;
@@ -59,18 +107,57 @@ public class Core {
 			allocations.add(Pair.make(group, iterations));
 	}
 
+	/**
+	 * Does the part of code() that doesn't touch the emitter's Module:
+	 * specializing MethodHandle code, or planning the loops to emit as
+	 * bytecode.  Cores sharing a cache may be prepared concurrently.
+	 */
+	public void prepare() {
+		if (emitterFactory != null)
+			plans = plan();
+		else
+			specialized = specialize();
+	}
+
 	public List<MethodStorage> code() {
+		if (emitterFactory != null)
+			return emitCode();
+		return specialized != null ? specialized : specialize();
+	}
+
+	private List<MethodStorage> specialize() {
 		//TODO: ActorGroup ordering parameters: accumulate a
 		//List<Pair<ActorGroup, MethodHandle>>, then sort before semicolon(code).
-		List<MethodHandle> code = new ArrayList<>(allocations.size());
-		List<MethodStorage> ms = new ArrayList<>();
-		for (Pair<ActorGroup, Range<Integer>> p : allocations){
-			code.add(p.first.specialize(p.second, storage, switchFactory, unrollFactors.get(p.first), inputTransformers, outputTransformers));
-			ms.add(new MethodStorage(p.first.specialize(p.second, storage, switchFactory, unrollFactors.get(p.first), inputTransformers, outputTransformers),p.first,storage));
+		List<MethodStorage> ms = new ArrayList<>(allocations.size());
+		for (Pair<ActorGroup, Range<Integer>> p : allocations) {
+			int unrollFactor = unrollFactors.get(p.first);
+			MethodHandle code = cache.get(p.first, p.second, unrollFactor,
+					() -> p.first.specialize(p.second, storage, switchFactory, unrollFactor, inputTransformers, outputTransformers));
+			ms.add(new MethodStorage(code, p.first, storage));
 		}
 		return ms;
 	}
 
+	private List<ImmutableList<ActorGroup.GroupLoop>> plan() {
+		List<ImmutableList<ActorGroup.GroupLoop>> result = new ArrayList<>(allocations.size());
+		for (Pair<ActorGroup, Range<Integer>> p : allocations)
+			result.add(p.first.plan(p.second, storage, switchFactory, unrollFactors.get(p.first), inputTransformers, outputTransformers));
+		return result;
+	}
+
+	private List<MethodStorage> emitCode() {
+		List<ImmutableList<ActorGroup.GroupLoop>> groupPlans = plans != null ? plans : plan();
+		CoreCodeEmitter emitter = emitterFactory.get();
+		List<String> names = new ArrayList<>(allocations.size());
+		for (int i = 0; i < allocations.size(); ++i)
+			names.add(emitter.emit(allocations.get(i).first, groupPlans.get(i)));
+		Map<String, MethodHandle> handles = emitter.load();
+		List<MethodStorage> ms = new ArrayList<>(allocations.size());
+		for (int i = 0; i < allocations.size(); ++i)
+			ms.add(new MethodStorage(handles.get(names.get(i)), allocations.get(i).first, storage));
+		return ms;
+	}
+
 	/**
 	 * Returns true iff this Core is empty (has no allocations) and thus doesn't
 	 * need to generate or run code.
@@ -84,4 +171,76 @@ public class Core {
 	public String toString() {
 		return allocations.toString();
 	}
+
+	/**
+	 * Caches the result of ActorGroup.specialize() by group, iteration range
+	 * and unroll factor, so identical allocations on different Cores share one
+	 * MethodHandle.  (MethodHandles are immutable, so sharing is safe.)  Cores
+	 * may be specialized concurrently, so this class is thread-safe.  Two
+	 * cores missing on the same key at once may both specialize it (the first
+	 * result is kept); specializing under the map's lock would block other
+	 * keys' lookups for the duration.
+	 */
+	public static final class SpecializationCache {
+		private final ConcurrentHashMap<Key, MethodHandle> cache = new ConcurrentHashMap<>();
+		private final AtomicInteger hits = new AtomicInteger(), misses = new AtomicInteger();
+		public SpecializationCache() {}
+
+		private MethodHandle get(ActorGroup group, Range<Integer> iterations, int unrollFactor, Supplier<MethodHandle> specializer) {
+			Key key = new Key(group, iterations, unrollFactor);
+			MethodHandle code = cache.get(key);
+			if (code != null) {
+				hits.incrementAndGet();
+				return code;
+			}
+			misses.incrementAndGet();
+			code = specializer.get();
+			MethodHandle raced = cache.putIfAbsent(key, code);
+			return raced != null ? raced : code;
+		}
+
+		/**
+		 * Returns the number of specializations served from this cache.
+		 * @return the number of cache hits
+		 */
+		public int hits() {
+			return hits.get();
+		}
+
+		/**
+		 * Returns the number of specializations actually performed.
+		 * @return the number of cache misses
+		 */
+		public int misses() {
+			return misses.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d specializations, %d cache hits", misses(), hits());
+		}
+
+		private static final class Key {
+			private final ActorGroup group;
+			private final Range<Integer> iterations;
+			private final int unrollFactor;
+			private Key(ActorGroup group, Range<Integer> iterations, int unrollFactor) {
+				this.group = group;
+				this.iterations = iterations;
+				this.unrollFactor = unrollFactor;
+			}
+			@Override
+			public boolean equals(Object obj) {
+				if (!(obj instanceof Key))
+					return false;
+				Key other = (Key)obj;
+				return group.equals(other.group) && unrollFactor == other.unrollFactor
+						&& iterations.equals(other.iterations);
+			}
+			@Override
+			public int hashCode() {
+				return Objects.hash(group, iterations, unrollFactor);
+			}
+		}
+	}
 }
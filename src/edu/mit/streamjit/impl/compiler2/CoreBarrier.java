@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.compiler2;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import edu.mit.streamjit.impl.common.Configuration;
+import edu.mit.streamjit.impl.common.Configuration.IntParameter;
+import edu.mit.streamjit.impl.common.Configuration.SwitchParameter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The barrier separating a compiled blob's steady states.  Each of the
+ * blob's cores calls {@link #await(int)} with its core index; the last core to
+ * arrive runs the barrier action, then all cores are released.
+ * <p/>
+ * Phaser is general (dynamic registration, tiering) and pays for it on every
+ * phase.  The spin barriers here only do what a blob needs, and waiting cores
+ * spin for a bounded number of iterations before parking, so short barrier
+ * actions don't pay for a park and unpark.  The tuner picks the barrier with
+ * the "Barrier" and "BarrierSpins" parameters (see
+ * {@link #create(Configuration, int, Runnable)}).
+ * <p/>
+ * If the barrier action throws, the exception propagates to the core that ran
+ * it and the other cores stay blocked until someone calls
+ * {@link #forceTermination()}, just as with Phaser.
+ * @since 10/17/2026
+ */
+abstract class CoreBarrier {
+	static final String BARRIER_PARAMETER = "Barrier", SPINS_PARAMETER = "BarrierSpins";
+	static final ImmutableList<String> BARRIERS = ImmutableList.of("phaser", "spin", "tree");
+	/**
+	 * The combining tree's fan-in.
+	 */
+	private static final int TREE_FAN_IN = 4;
+	protected final int parties;
+	protected final Runnable action;
+	protected CoreBarrier(int parties, Runnable action) {
+		checkArgument(parties > 0, "bad parties %s", parties);
+		this.parties = parties;
+		this.action = checkNotNull(action);
+	}
+
+	/**
+	 * Creates the barrier chosen by the given configuration, or a Phaser-based
+	 * barrier if the configuration doesn't choose one.
+	 * @param config the blob configuration
+	 * @param parties the number of cores
+	 * @param action the barrier action
+	 * @return a barrier
+	 */
+	static CoreBarrier create(Configuration config, int parties, Runnable action) {
+		SwitchParameter<String> barrierParam = config.getParameter(BARRIER_PARAMETER, SwitchParameter.class, String.class);
+		IntParameter spinsParam = config.getParameter(SPINS_PARAMETER, IntParameter.class);
+		String barrier = barrierParam != null ? barrierParam.getValue() : "phaser";
+		int spins = spinsParam != null ? spinsParam.getValue() : 0;
+		switch (barrier) {
+			case "phaser":
+				return new PhaserBarrier(parties, action);
+			case "spin":
+				return new SenseReversingBarrier(parties, action, spins);
+			case "tree":
+				return new CombiningTreeBarrier(parties, action, spins);
+			default:
+				throw new IllegalArgumentException("bad barrier "+barrier);
+		}
+	}
+
+	/**
+	 * Adds the barrier parameters to the given configuration builder.
+	 * @param builder the builder
+	 */
+	static void makeParameters(Configuration.Builder builder) {
+		builder.addParameter(new SwitchParameter<>(BARRIER_PARAMETER, String.class, BARRIERS.get(0), BARRIERS));
+		builder.addParameter(new IntParameter(SPINS_PARAMETER, 0, 1 << 16, 1 << 10));
+	}
+
+	/**
+	 * Arrives at this barrier and waits for the other cores.  Returns
+	 * immediately if this barrier has been terminated.
+	 * @param party the calling core's index
+	 */
+	public abstract void await(int party);
+
+	/**
+	 * Terminates this barrier, releasing all waiting cores.  Later calls to
+	 * await() return immediately and don't run the barrier action.
+	 */
+	public abstract void forceTermination();
+
+	/**
+	 * A barrier backed by a Phaser, the old behavior.
+	 */
+	private static final class PhaserBarrier extends CoreBarrier {
+		private final Phaser phaser;
+		private PhaserBarrier(int parties, Runnable action) {
+			super(parties, action);
+			this.phaser = new Phaser(parties) {
+				@Override
+				protected boolean onAdvance(int phase, int registeredParties) {
+					PhaserBarrier.this.action.run();
+					return super.onAdvance(phase, registeredParties);
+				}
+			};
+		}
+		@Override
+		public void await(int party) {
+			phaser.arriveAndAwaitAdvance();
+		}
+		@Override
+		public void forceTermination() {
+			phaser.forceTermination();
+		}
+	}
+
+	/**
+	 * Common waiting logic for the spin barriers.  Cores wait for a single
+	 * global sense flag to flip; subclasses decide how cores count their
+	 * arrival.  A core reads the sense before arriving, which is safe because
+	 * the sense can't flip until that core arrives.
+	 */
+	private static abstract class SpinBarrier extends CoreBarrier {
+		private final int spins;
+		private volatile boolean sense, terminated;
+		/**
+		 * Parked cores, indexed by party, so the releasing core can unpark
+		 * them.  Each slot is only set by its own core.
+		 */
+		private final AtomicReferenceArray<Thread> waiters;
+		protected SpinBarrier(int parties, Runnable action, int spins) {
+			super(parties, action);
+			checkArgument(spins >= 0, "bad spins %s", spins);
+			this.spins = spins;
+			this.waiters = new AtomicReferenceArray<>(parties);
+		}
+
+		/**
+		 * Counts the given party's arrival.
+		 * @param party the calling core's index
+		 * @return true if the caller was the last to arrive
+		 */
+		protected abstract boolean arrive(int party);
+
+		@Override
+		public final void await(int party) {
+			if (terminated)
+				return;
+			boolean nextSense = !sense;
+			if (arrive(party)) {
+				action.run();
+				sense = nextSense;
+				unparkWaiters();
+				return;
+			}
+
+			for (int i = 0; i < spins; ++i)
+				if (released(nextSense))
+					return;
+			Thread me = Thread.currentThread();
+			try {
+				//Blocks through the pool if we're a SharedCoreExecutor task.
+				ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+					@Override
+					public boolean block() {
+						waiters.set(party, me);
+						if (!isReleasable())
+							LockSupport.park(SpinBarrier.this);
+						return isReleasable();
+					}
+					@Override
+					public boolean isReleasable() {
+						return released(nextSense);
+					}
+				});
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} finally {
+				waiters.compareAndSet(party, me, null);
+			}
+		}
+
+		private boolean released(boolean nextSense) {
+			return sense == nextSense || terminated;
+		}
+
+		private void unparkWaiters() {
+			for (int i = 0; i < parties; ++i) {
+				Thread t = waiters.getAndSet(i, null);
+				if (t != null)
+					LockSupport.unpark(t);
+			}
+		}
+
+		@Override
+		public final void forceTermination() {
+			terminated = true;
+			unparkWaiters();
+		}
+	}
+
+	/**
+	 * A sense-reversing barrier: cores count down a single shared counter.
+	 */
+	private static final class SenseReversingBarrier extends SpinBarrier {
+		private final AtomicInteger count;
+		private SenseReversingBarrier(int parties, Runnable action, int spins) {
+			super(parties, action, spins);
+			this.count = new AtomicInteger(parties);
+		}
+		@Override
+		protected boolean arrive(int party) {
+			if (count.decrementAndGet() != 0)
+				return false;
+			//No core can arrive again until the sense flips.
+			count.set(parties);
+			return true;
+		}
+	}
+
+	/**
+	 * A combining tree barrier: cores count down leaf counters shared by at
+	 * most TREE_FAN_IN cores, and the last core to arrive at a node arrives at
+	 * its parent, so no counter is contended by more than TREE_FAN_IN cores.
+	 */
+	private static final class CombiningTreeBarrier extends SpinBarrier {
+		private static final class Node {
+			private final Node parent;
+			private final int children;
+			private final AtomicInteger count;
+			private Node(Node parent, int children) {
+				this.parent = parent;
+				this.children = children;
+				this.count = new AtomicInteger(children);
+			}
+		}
+		/**
+		 * The leaf each party arrives at.
+		 */
+		private final Node[] leaves;
+		private CombiningTreeBarrier(int parties, Runnable action, int spins) {
+			super(parties, action, spins);
+			//Build the tree bottom-up, TREE_FAN_IN children per node.
+			int levels = 1;
+			for (int width = parties; width > TREE_FAN_IN; width = (width + TREE_FAN_IN - 1) / TREE_FAN_IN)
+				++levels;
+			Node[] level = new Node[]{null};
+			int[] widths = new int[levels + 1];
+			widths[levels] = parties;
+			for (int i = levels - 1; i >= 0; --i)
+				widths[i] = (widths[i + 1] + TREE_FAN_IN - 1) / TREE_FAN_IN;
+			for (int i = 0; i < levels; ++i) {
+				Node[] next = new Node[widths[i]];
+				for (int j = 0; j < next.length; ++j)
+					next[j] = new Node(level[j / TREE_FAN_IN],
+							Math.min(TREE_FAN_IN, widths[i + 1] - j * TREE_FAN_IN));
+				level = next;
+			}
+			this.leaves = level;
+		}
+		@Override
+		protected boolean arrive(int party) {
+			for (Node n = leaves[party / TREE_FAN_IN]; n != null; n = n.parent) {
+				if (n.count.decrementAndGet() != 0)
+					return false;
+				n.count.set(n.children);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.compiler2;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import edu.mit.streamjit.impl.common.Configuration;
+import edu.mit.streamjit.impl.common.Configuration.SwitchParameter;
+import edu.mit.streamjit.util.bytecode.BasicBlock;
+import edu.mit.streamjit.util.bytecode.Field;
+import edu.mit.streamjit.util.bytecode.Klass;
+import edu.mit.streamjit.util.bytecode.LocalVariable;
+import edu.mit.streamjit.util.bytecode.Method;
+import edu.mit.streamjit.util.bytecode.Modifier;
+import edu.mit.streamjit.util.bytecode.Module;
+import edu.mit.streamjit.util.bytecode.ModuleClassLoader;
+import edu.mit.streamjit.util.bytecode.Value;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLengthInst;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLoadInst;
+import edu.mit.streamjit.util.bytecode.insts.BinaryInst;
+import edu.mit.streamjit.util.bytecode.insts.BranchInst;
+import edu.mit.streamjit.util.bytecode.insts.CallInst;
+import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.JumpInst;
+import edu.mit.streamjit.util.bytecode.insts.LoadInst;
+import edu.mit.streamjit.util.bytecode.insts.ReturnInst;
+import edu.mit.streamjit.util.bytecode.insts.StoreInst;
+import edu.mit.streamjit.util.bytecode.types.TypeFactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Emits a core's code as one flat generated class instead of a tree of
+ * MethodHandle combinators.  Each ActorGroup allocation becomes a public
+ * static void method containing the group's loops (see
+ * {@link ActorGroup#plan}) as plain bytecode loops.  Work methods, with their
+ * read and write handles bound, are held in static final fields and invoked
+ * directly; pop and push rates become constants and index arrays become
+ * static final fields.
+ * <p/>
+ * The JIT treats static final MethodHandles as constants, so each work method
+ * inlines into a loop compiled on its own instead of depending on the whole
+ * combinator tree inlining into the core's entry point (which deep trees
+ * don't, and which takes many invocations to find out).  The tuner picks the
+ * backend per blob with the "CoreCodeBackend" parameter.
+ * <p/>
+ * Usage: call {@link #emit(ActorGroup, List)} for each allocation, then
+ * {@link #load()} once to get the handles.
+ * @since 10/17/2026
+ */
+public final class CoreCodeEmitter {
+	static final String BACKEND_PARAMETER = "CoreCodeBackend";
+	static final ImmutableList<String> BACKENDS = ImmutableList.of("combinators", "bytecode");
+	/**
+	 * Hands constants to generated classes' static initializers, keyed by
+	 * class name.  Each entry is removed when taken.
+	 */
+	private static final Map<String, Object[]> CONSTANTS = new ConcurrentHashMap<>();
+	private final Module module;
+	private final ModuleClassLoader loader;
+	private final Klass klass;
+	private final List<Object> constants = new ArrayList<>();
+	private final Map<Object, Field> constantFields = new IdentityHashMap<>();
+	private final List<String> methodNames = new ArrayList<>();
+	private boolean loaded = false;
+	/**
+	 * Creates a new emitter generating a class with the given name in the
+	 * given module.
+	 * @param className the fully-qualified name of the class to generate
+	 * @param module the module to generate the class in
+	 * @param loader the loader to load the class with
+	 */
+	public CoreCodeEmitter(String className, Module module, ModuleClassLoader loader) {
+		this.module = module;
+		this.loader = loader;
+		this.klass = new Klass(className, module.getKlass(Object.class), ImmutableList.<Klass>of(), module);
+		klass.modifiers().addAll(EnumSet.of(Modifier.PUBLIC, Modifier.FINAL));
+	}
+
+	/**
+	 * Returns true iff the given configuration chooses this backend.
+	 * @param config the blob configuration
+	 * @return true iff core code should be emitted as bytecode
+	 */
+	static boolean isEnabled(Configuration config) {
+		SwitchParameter<String> param = config.getParameter(BACKEND_PARAMETER, SwitchParameter.class, String.class);
+		return param != null && param.getValue().equals("bytecode");
+	}
+
+	/**
+	 * Adds the backend parameter to the given configuration builder.
+	 * @param builder the builder
+	 */
+	static void makeParameters(Configuration.Builder builder) {
+		builder.addParameter(new SwitchParameter<>(BACKEND_PARAMETER, String.class, BACKENDS.get(0), BACKENDS));
+	}
+
+	/**
+	 * Emits a method running the given loops of the given group, returning
+	 * the method's name.
+	 * @param group the group
+	 * @param loops the loops, as returned by ActorGroup.plan()
+	 * @return the name of the emitted method
+	 */
+	public String emit(ActorGroup group, List<ActorGroup.GroupLoop> loops) {
+		checkState(!loaded, "already loaded %s", klass.getName());
+		TypeFactory types = module.types();
+		String name = String.format("group%d_%d", group.id(), methodNames.size());
+		Method method = new Method(name, types.getMethodType(void.class), EnumSet.of(Modifier.PUBLIC, Modifier.STATIC), klass);
+		BasicBlock block = new BasicBlock(module, "entry");
+		method.basicBlocks().add(block);
+		for (ActorGroup.GroupLoop loop : loops)
+			block = emitGroupLoop(loop, method, block);
+		block.instructions().add(new ReturnInst(types.getVoidType()));
+		methodNames.add(name);
+		return name;
+	}
+
+	/**
+	 * Emits the given group loop at the end of the given block.
+	 * @return the block following the loop
+	 */
+	private BasicBlock emitGroupLoop(ActorGroup.GroupLoop loop, Method method, BasicBlock block) {
+		TypeFactory types = module.types();
+		Value zero = module.constants().getConstant(0);
+		Method arraycopy = module.getKlass(System.class).getMethod("arraycopy",
+				types.getMethodType(void.class, Object.class, int.class, Object.class, int.class, int.class));
+		int[][] copies = loop.copies();
+		for (int i = 0; i < copies.length; i += 2) {
+			LoadInst src = new LoadInst(constantField(copies[i], int[].class));
+			LoadInst dst = new LoadInst(constantField(copies[i+1], int[].class));
+			ArrayLengthInst length = new ArrayLengthInst(src);
+			block.instructions().addAll(ImmutableList.of(src, dst, length,
+					new CallInst(arraycopy, src, zero, dst, zero, length)));
+		}
+
+		return countedLoop(method, block, "i", module.constants().getConstant(loop.begin()),
+				module.constants().getConstant(loop.end()), loop.increment(), (body, i) -> {
+			for (ActorGroup.WorkerLoop w : loop.workerLoops())
+				body = emitWorkerLoop(w, method, body, i);
+			return body;
+		});
+	}
+
+	/**
+	 * Emits the given worker loop for group iteration i at the end of the
+	 * given block.
+	 * @return the block following the loop
+	 */
+	private BasicBlock emitWorkerLoop(ActorGroup.WorkerLoop loop, Method method, BasicBlock block, Value i) {
+		TypeFactory types = module.types();
+		Value subiterations = module.constants().getConstant(loop.subiterations());
+		BinaryInst begin = new BinaryInst(i, BinaryInst.Operation.MUL, subiterations);
+		BinaryInst lastIteration = new BinaryInst(i, BinaryInst.Operation.ADD, module.constants().getConstant(loop.iterations()));
+		BinaryInst end = new BinaryInst(lastIteration, BinaryInst.Operation.MUL, subiterations);
+		block.instructions().addAll(ImmutableList.of(begin, lastIteration, end));
+
+		MethodHandle work = loop.work();
+		Method invokeExact = Iterables.getOnlyElement(module.getKlass(MethodHandle.class).getMethods("invokeExact"));
+		Field workField = constantField(work, MethodHandle.class);
+		String indexName = "j"+loop.actor().id();
+		return countedLoop(method, block, indexName, begin, end, 1, (body, j) -> {
+			LoadInst handle = new LoadInst(workField);
+			body.instructions().add(handle);
+			Value read = indexArgument(loop.pop(), j, body), write = indexArgument(loop.push(), j, body);
+			body.instructions().add(new CallInst(invokeExact,
+					types.getMethodType(void.class, MethodHandle.class, work.type().parameterType(0), work.type().parameterType(1)),
+					handle, read, write));
+			return body;
+		});
+	}
+
+	/**
+	 * Returns the value to pass to a work method for the given pop or push:
+	 * the rate times the work iteration, or the index array.
+	 */
+	private Value indexArgument(Object rateOrIndices, Value iteration, BasicBlock block) {
+		if (rateOrIndices instanceof int[]) {
+			LoadInst indices = new LoadInst(constantField(rateOrIndices, int[].class));
+			block.instructions().add(indices);
+			return indices;
+		}
+		BinaryInst index = new BinaryInst(iteration, BinaryInst.Operation.MUL, module.constants().getConstant((Integer)rateOrIndices));
+		block.instructions().add(index);
+		return index;
+	}
+
+	/**
+	 * Emits a loop for (var = begin; var < end; var += increment) at the end
+	 * of the given block.  The body function receives the block to append the
+	 * body to and the loop variable's value, and returns the block ending the
+	 * body.
+	 * @return the block following the loop
+	 */
+	private BasicBlock countedLoop(Method method, BasicBlock block, String varName, Value begin, Value end, int increment,
+			BiFunction<BasicBlock, Value, BasicBlock> bodyFunction) {
+		LocalVariable var = new LocalVariable(module.types().getRegularType(int.class), varName, method);
+		BasicBlock header = new BasicBlock(module, varName+"_header"),
+				body = new BasicBlock(module, varName+"_body"),
+				exit = new BasicBlock(module, varName+"_exit");
+		method.basicBlocks().add(header);
+		method.basicBlocks().add(body);
+		block.instructions().add(new StoreInst(var, begin));
+		block.instructions().add(new JumpInst(header));
+
+		LoadInst test = new LoadInst(var);
+		header.instructions().add(test);
+		header.instructions().add(new BranchInst(test, BranchInst.Sense.LT, end, body, exit));
+
+		LoadInst value = new LoadInst(var);
+		body.instructions().add(value);
+		BasicBlock bodyEnd = bodyFunction.apply(body, value);
+		LoadInst current = new LoadInst(var);
+		BinaryInst next = new BinaryInst(current, BinaryInst.Operation.ADD, module.constants().getConstant(increment));
+		bodyEnd.instructions().addAll(ImmutableList.of(current, next, new StoreInst(var, next), new JumpInst(header)));
+
+		method.basicBlocks().add(exit);
+		return exit;
+	}
+
+	/**
+	 * Returns the static final field holding the given object, creating it if
+	 * necessary.
+	 */
+	private Field constantField(Object value, Class<?> type) {
+		Field field = constantFields.get(value);
+		if (field == null) {
+			field = new Field(module.types().getRegularType(type), "constant"+constants.size(),
+					EnumSet.of(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL), klass);
+			constants.add(value);
+			constantFields.put(value, field);
+		}
+		return field;
+	}
+
+	/**
+	 * Loads and initializes the generated class, returning handles to the
+	 * emitted methods by name.  No more methods can be emitted afterward.
+	 * @return the emitted methods
+	 */
+	public ImmutableMap<String, MethodHandle> load() {
+		checkState(!loaded, "already loaded %s", klass.getName());
+		loaded = true;
+		emitStaticInitializer();
+		CONSTANTS.put(klass.getName(), constants.toArray());
+		ImmutableMap.Builder<String, MethodHandle> handles = ImmutableMap.builder();
+		try {
+			Class<?> generated = Class.forName(klass.getName(), true, loader);
+			for (String name : methodNames)
+				handles.put(name, MethodHandles.publicLookup().findStatic(generated, name, MethodType.methodType(void.class)));
+		} catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException ex) {
+			throw new AssertionError(ex);
+		} finally {
+			CONSTANTS.remove(klass.getName());
+		}
+		return handles.build();
+	}
+
+	private void emitStaticInitializer() {
+		TypeFactory types = module.types();
+		Method clinit = new Method("<clinit>", types.getMethodType(void.class), EnumSet.of(Modifier.PUBLIC, Modifier.STATIC), klass);
+		BasicBlock block = new BasicBlock(module);
+		clinit.basicBlocks().add(block);
+		Method take = module.getKlass(CoreCodeEmitter.class).getMethod("takeConstants", types.getMethodType(Object[].class, String.class));
+		CallInst values = new CallInst(take, module.constants().getConstant(klass.getName()));
+		block.instructions().add(values);
+		for (int i = 0; i < constants.size(); ++i) {
+			Field field = constantFields.get(constants.get(i));
+			ArrayLoadInst value = new ArrayLoadInst(values, module.constants().getConstant(i));
+			CastInst cast = new CastInst(field.getType().getFieldType(), value);
+			block.instructions().addAll(ImmutableList.of(value, cast, new StoreInst(field, cast)));
+		}
+		block.instructions().add(new ReturnInst(types.getVoidType()));
+	}
+
+	/**
+	 * Called from generated classes' static initializers to retrieve their
+	 * constants.  Not for other use.
+	 * @param className the name of the generated class
+	 * @return the class's constants, in field order
+	 */
+	public static Object[] takeConstants(String className) {
+		Object[] values = CONSTANTS.remove(className);
+		if (values == null)
+			throw new IllegalStateException("no constants for "+className);
+		return values;
+	}
+}
@@ -22,13 +22,22 @@
 
 package edu.mit.streamjit.impl.compiler2;
 
+import static edu.mit.streamjit.util.bytecode.methodhandles.LookupUtils.findStatic;
+import static com.google.common.base.Preconditions.*;
 import edu.mit.streamjit.util.bytecode.methodhandles.LookupUtils;
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
 import java.util.Objects;
 import java.util.function.IntUnaryOperator;
 
 /**
- *
+ * A function from logical indices to physical indices.
+ * <p/>
+ * Affine functions and roundrobin transfer functions are represented in a
+ * canonical piecewise-affine form, and compositions of them are folded into a
+ * single function of that form when possible rather than chained, so storage
+ * accesses don't evaluate a chain of calls the JIT may not inline.
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 3/15/2015
  */
@@ -40,14 +49,14 @@ public interface IndexFunction extends IntUnaryOperator {
 
 	@Override
 	public default IndexFunction compose(IntUnaryOperator before) {
-		return before instanceof IndexFunction ? new CompoundIndexFunction((IndexFunction)before, this)
-				: new CompoundIndexFunction(before::applyAsInt, this);
+		return before instanceof IndexFunction ? CompoundIndexFunction.of((IndexFunction)before, this)
+				: CompoundIndexFunction.of(before::applyAsInt, this);
     }
 
 	@Override
 	public default IndexFunction andThen(IntUnaryOperator after) {
-		return after instanceof IndexFunction ? new CompoundIndexFunction(this, (IndexFunction)after)
-				: new CompoundIndexFunction(this, after::applyAsInt);
+		return after instanceof IndexFunction ? CompoundIndexFunction.of(this, (IndexFunction)after)
+				: CompoundIndexFunction.of(this, after::applyAsInt);
     }
 
 	/* private */ static final MethodHandle APPLY_AS_INT = LookupUtils.findVirtual(IntUnaryOperator.class, "applyAsInt");
@@ -58,6 +67,16 @@ public interface IndexFunction extends IntUnaryOperator {
 	public static IndexFunction identity() {
 		return IdentityIndexFunction.INSTANCE;
 	}
+
+	/**
+	 * Returns the function {@code i -> scale*i + offset}.
+	 * @param scale the scale
+	 * @param offset the offset
+	 * @return an affine index function
+	 */
+	public static IndexFunction affine(int scale, int offset) {
+		return PiecewiseAffineIndexFunction.of(1, scale, 0, offset, 0);
+	}
 }
 
 final class IdentityIndexFunction implements IndexFunction {
@@ -71,14 +90,55 @@ final class IdentityIndexFunction implements IndexFunction {
 	public void applyBulk(int[] bulk) {
 		//do nothing
 	}
+	@Override
+	public MethodHandle asHandle() {
+		return MethodHandles.identity(int.class);
+	}
+	@Override
+	public String toString() {
+		return "i";
+	}
 }
 
 final class CompoundIndexFunction implements IndexFunction {
 	private final IndexFunction before, after;
-	CompoundIndexFunction(IndexFunction before, IndexFunction after) {
+	private CompoundIndexFunction(IndexFunction before, IndexFunction after) {
 		this.before = Objects.requireNonNull(before);
 		this.after = Objects.requireNonNull(after);
 	}
+
+	/**
+	 * Returns {@code i -> after(before(i))}, folding identity functions and
+	 * adjacent piecewise-affine functions (including the outermost functions
+	 * of compound functions, so a chain built one function at a time folds).
+	 */
+	static IndexFunction of(IndexFunction before, IndexFunction after) {
+		if (before == IndexFunction.identity())
+			return after;
+		if (after == IndexFunction.identity())
+			return before;
+		if (before instanceof PiecewiseAffineIndexFunction && after instanceof PiecewiseAffineIndexFunction) {
+			IndexFunction f = PiecewiseAffineIndexFunction.compose((PiecewiseAffineIndexFunction)before, (PiecewiseAffineIndexFunction)after);
+			if (f != null)
+				return f;
+		} else if (before instanceof CompoundIndexFunction && after instanceof PiecewiseAffineIndexFunction) {
+			CompoundIndexFunction c = (CompoundIndexFunction)before;
+			if (c.after instanceof PiecewiseAffineIndexFunction) {
+				IndexFunction f = PiecewiseAffineIndexFunction.compose((PiecewiseAffineIndexFunction)c.after, (PiecewiseAffineIndexFunction)after);
+				if (f != null)
+					return of(c.before, f);
+			}
+		} else if (before instanceof PiecewiseAffineIndexFunction && after instanceof CompoundIndexFunction) {
+			CompoundIndexFunction c = (CompoundIndexFunction)after;
+			if (c.before instanceof PiecewiseAffineIndexFunction) {
+				IndexFunction f = PiecewiseAffineIndexFunction.compose((PiecewiseAffineIndexFunction)before, (PiecewiseAffineIndexFunction)c.before);
+				if (f != null)
+					return of(f, c.after);
+			}
+		}
+		return new CompoundIndexFunction(before, after);
+	}
+
 	@Override
 	public int applyAsInt(int operand) {
 		return after.applyAsInt(before.applyAsInt(operand));
@@ -88,4 +148,185 @@ final class CompoundIndexFunction implements IndexFunction {
 		before.applyBulk(bulk);
 		after.applyBulk(bulk);
 	}
+	@Override
+	public MethodHandle asHandle() {
+		return MethodHandles.filterReturnValue(before.asHandle(), after.asHandle());
+	}
+	@Override
+	public String toString() {
+		return after + " o " + before;
+	}
+}
+
+/**
+ * An index function of the form
+ * {@code f(i) = blockScale*((i+shift)/width) + elementScale*((i+shift)%width) + offset}.
+ * Affine functions have width 1; a roundrobin transfer function has width
+ * equal to its weight, blockScale equal to the total weight, elementScale 1
+ * and offset equal to the sum of the previous weights.
+ * <p/>
+ * If width is greater than 1, all parameters are nonnegative and shift is less
+ * than width, so for nonnegative indices the division and remainder don't
+ * round toward zero.  (Index functions are only applied to nonnegative
+ * indices.)  Affine functions may have negative parameters, but they don't
+ * fold with non-affine functions.
+ */
+final class PiecewiseAffineIndexFunction implements IndexFunction {
+	private static final Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodHandle ADD = findStatic(LOOKUP, "add");
+	private static final MethodHandle AFFINE = findStatic(LOOKUP, "affine");
+	private static final MethodHandle PIECEWISE = findStatic(LOOKUP, "piecewise");
+	private static final MethodHandle PIECEWISE_POW2 = findStatic(LOOKUP, "piecewisePow2");
+	private final int width, blockScale, elementScale, offset, shift;
+	private PiecewiseAffineIndexFunction(int width, int blockScale, int elementScale, int offset, int shift) {
+		this.width = width;
+		this.blockScale = blockScale;
+		this.elementScale = elementScale;
+		this.offset = offset;
+		this.shift = shift;
+	}
+
+	static IndexFunction of(int width, int blockScale, int elementScale, int offset, int shift) {
+		IndexFunction f = make(width, blockScale, elementScale, offset, shift);
+		checkArgument(f != null, "bad piecewise-affine function %s %s %s %s %s", width, blockScale, elementScale, offset, shift);
+		return f;
+	}
+
+	/**
+	 * Returns the given roundrobin transfer function, mapping the indices of
+	 * one of a roundrobin splitter's outputs (or joiner's inputs) to the
+	 * indices of its input (or output).
+	 * @param weight the weight of this output (or input)
+	 * @param prefixSum the sum of the weights before this one
+	 * @param totalWeight the sum of all the weights
+	 * @return a roundrobin transfer function
+	 */
+	static IndexFunction roundrobinTransfer(int weight, int prefixSum, int totalWeight) {
+		//A zero-weight output has no indices, so any function will do.
+		if (weight == 0)
+			return IndexFunction.affine(0, prefixSum);
+		return of(weight, totalWeight, 1, prefixSum, 0);
+	}
+
+	/**
+	 * Returns the canonical function with the given parameters, or null if
+	 * they don't meet the class invariants.
+	 * @throws ArithmeticException if normalizing overflows
+	 */
+	private static IndexFunction make(int width, int blockScale, int elementScale, int offset, int shift) {
+		if (width < 1 || shift < 0)
+			return null;
+		if (width > 1 && (blockScale < 0 || elementScale < 0 || offset < 0))
+			return null;
+		//Fold whole blocks of the shift into the offset.
+		offset = Math.addExact(offset, Math.multiplyExact(blockScale, shift / width));
+		shift %= width;
+		//Blocks laid end to end are just affine.
+		if (width > 1 && blockScale == Math.multiplyExact(elementScale, width))
+			return make(1, elementScale, 0, Math.addExact(offset, Math.multiplyExact(elementScale, shift)), 0);
+		if (width == 1) {
+			elementScale = 0;
+			if (blockScale == 1 && offset == 0)
+				return IndexFunction.identity();
+		}
+		return new PiecewiseAffineIndexFunction(width, blockScale, elementScale, offset, shift);
+	}
+
+	/**
+	 * Returns {@code i -> after(before(i))} as a single function, or null if
+	 * it isn't piecewise-affine.  Let x and y be before's element and block
+	 * indices.  after(before(i)) is piecewise-affine in x and y if after is
+	 * affine, or if before only shifts, or if before's blocks are aligned to
+	 * after's blocks and each of before's blocks stays within one of after's.
+	 */
+	static IndexFunction compose(PiecewiseAffineIndexFunction before, PiecewiseAffineIndexFunction after) {
+		PiecewiseAffineIndexFunction f = before, g = after;
+		try {
+			if (g.width == 1)
+				return make(f.width, Math.multiplyExact(g.blockScale, f.blockScale),
+						Math.multiplyExact(g.blockScale, f.elementScale),
+						Math.addExact(Math.multiplyExact(g.blockScale, f.offset), g.offset), f.shift);
+			if (f.width == 1 && f.blockScale == 1 && f.offset >= 0)
+				return make(g.width, g.blockScale, g.elementScale, g.offset, Math.addExact(g.shift, f.offset));
+			if (f.blockScale < 0 || f.offset < 0)
+				return null;
+			int e = Math.addExact(f.offset, g.shift);
+			if (f.blockScale % g.width == 0
+					&& Math.addExact(Math.multiplyExact(f.elementScale, f.width - 1), e % g.width) < g.width)
+				return make(f.width, Math.multiplyExact(g.blockScale, f.blockScale / g.width),
+						Math.multiplyExact(g.elementScale, f.elementScale),
+						Math.addExact(Math.addExact(Math.multiplyExact(g.blockScale, e / g.width),
+								Math.multiplyExact(g.elementScale, e % g.width)), g.offset),
+						f.shift);
+		} catch (ArithmeticException ex) {
+			//overflow; don't fold
+		}
+		return null;
+	}
+
+	@Override
+	public int applyAsInt(int operand) {
+		return piecewise(width, blockScale, elementScale, offset, shift, operand);
+	}
+
+	@Override
+	public void applyBulk(int[] bulk) {
+		if (width == 1)
+			for (int i = 0; i < bulk.length; ++i)
+				bulk[i] = affine(blockScale, offset, bulk[i]);
+		else
+			for (int i = 0; i < bulk.length; ++i)
+				bulk[i] = piecewise(width, blockScale, elementScale, offset, shift, bulk[i]);
+	}
+
+	@Override
+	public MethodHandle asHandle() {
+		if (width == 1 && blockScale == 1)
+			return MethodHandles.insertArguments(ADD, 0, offset);
+		if (width == 1)
+			return MethodHandles.insertArguments(AFFINE, 0, blockScale, offset);
+		if (Integer.bitCount(width) == 1)
+			return MethodHandles.insertArguments(PIECEWISE_POW2, 0, Integer.numberOfTrailingZeros(width), width - 1,
+					blockScale, elementScale, offset, shift);
+		return MethodHandles.insertArguments(PIECEWISE, 0, width, blockScale, elementScale, offset, shift);
+	}
+
+	private static int add(int addend, int i) {
+		return i + addend;
+	}
+
+	private static int affine(int scale, int offset, int i) {
+		return scale * i + offset;
+	}
+
+	private static int piecewise(int width, int blockScale, int elementScale, int offset, int shift, int i) {
+		int j = i + shift;
+		return blockScale * (j / width) + elementScale * (j % width) + offset;
+	}
+
+	private static int piecewisePow2(int log2Width, int mask, int blockScale, int elementScale, int offset, int shift, int i) {
+		int j = i + shift;
+		return blockScale * (j >>> log2Width) + elementScale * (j & mask) + offset;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof PiecewiseAffineIndexFunction))
+			return false;
+		PiecewiseAffineIndexFunction other = (PiecewiseAffineIndexFunction)obj;
+		return width == other.width && blockScale == other.blockScale && elementScale == other.elementScale
+				&& offset == other.offset && shift == other.shift;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(width, blockScale, elementScale, offset, shift);
+	}
+
+	@Override
+	public String toString() {
+		if (width == 1)
+			return String.format("%d*i+%d", blockScale, offset);
+		return String.format("%d*((i+%d)/%d)+%d*((i+%d)%%%d)+%d", blockScale, shift, width, elementScale, shift, width, offset);
+	}
 }
@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.compiler2;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import edu.mit.streamjit.api.Input;
+import edu.mit.streamjit.api.Output;
+import edu.mit.streamjit.api.Worker;
+import edu.mit.streamjit.impl.blob.Blob;
+import edu.mit.streamjit.impl.blob.Buffer;
+import edu.mit.streamjit.impl.blob.DrainData;
+import edu.mit.streamjit.impl.common.Configuration;
+import edu.mit.streamjit.impl.common.Configuration.IntParameter;
+import edu.mit.streamjit.impl.common.Configuration.Parameter;
+import edu.mit.streamjit.impl.common.Configuration.SwitchParameter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A Compiler2 blob that tunes its own configuration while it runs.  It derives
+ * a candidate configuration from the best one so far (changing one parameter)
+ * and a background thread compiles it (see {@link PreparedBlob}), discarding
+ * candidates that fail to compile or would need a different number of cores or
+ * bigger buffers.  When a candidate is ready, the blob drains the current blob
+ * at a barrier and swaps the candidate in, giving it the drain data and the
+ * same buffers.  After measuring the candidate for a while, it keeps it if it's
+ * faster than the best configuration, or swaps the best configuration back in
+ * if not, again compiled in the background while the candidate is measured.
+ * The best configuration is remeasured each time it runs, so as the input
+ * changes, candidates are compared against its current performance rather
+ * than a stale score.
+ * <p/>
+ * Nothing is compiled in the barrier action.  If a blob can't be swapped in,
+ * the current blob keeps running.
+ * <p/>
+ * Performance is measured as the non-waiting time per steady state divided by
+ * the multiplier, i.e., time per item.
+ * <p/>
+ * Enabled by the configuration's "onlineTuning" extra data, an Integer giving
+ * the number of steady states to run the best configuration between candidates.
+ * @since 10/17/2026
+ */
+final class OnlineTuningBlob implements Blob, Compiler2BlobHost.CycleListener {
+	/**
+	 * The configuration extra data key holding the number of steady states
+	 * between candidates.
+	 */
+	static final String EXTRA_DATA_KEY = "onlineTuning";
+	/**
+	 * Steady states to skip after each compile (while the JIT settles), then
+	 * steady states to measure before deciding.
+	 */
+	private static final int WARMUP_CYCLES = 16, MEASURE_CYCLES = 64;
+	/**
+	 * IntParameters with ranges wider than this are mutated by doubling or
+	 * halving; narrower ones get a random value in their range.
+	 */
+	private static final int NARROW_RANGE = 16;
+	private final ImmutableSet<Worker<?, ?>> workers;
+	private final int maxNumCores;
+	private final int exploitCycles;
+	private final ImmutableList<Runnable> coreCode;
+	private final Random random = new Random();
+	private final ExecutorService prober = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "OnlineTuningBlob prober");
+		t.setDaemon(true);
+		return t;
+	});
+	private volatile Compiler2BlobHost current;
+	/**
+	 * The best configuration so far.  Written only in the barrier action, but
+	 * read by the prober.
+	 */
+	private volatile Configuration best;
+	/* only accessed in the barrier action */
+	private Configuration running;
+	private double bestScore = Double.POSITIVE_INFINITY, runningScore;
+	private int cycles;
+	private long busyNanos;
+	/**
+	 * The candidate being compiled, or null if we haven't started one since
+	 * the last swap.
+	 */
+	private Future<PreparedBlob> probe;
+	/**
+	 * The best configuration being compiled to replace the candidate, or null
+	 * if we're running the best configuration.
+	 */
+	private Future<PreparedBlob> restore;
+	/**
+	 * True if the running candidate was measured slower than the best
+	 * configuration and we're waiting to swap the best one back in.
+	 */
+	private boolean rejected;
+	private int trials, improvements;
+	/* guarded by this */
+	private Runnable drainCallback;
+	private boolean recompiling;
+
+	OnlineTuningBlob(Set<Worker<?, ?>> workers, Configuration config, int maxNumCores, DrainData initialState, Input<?> input, Output<?> output) {
+		this.workers = ImmutableSet.copyOf(workers);
+		this.maxNumCores = maxNumCores;
+		this.exploitCycles = ((Number)config.getExtraData(EXTRA_DATA_KEY)).intValue();
+		this.best = this.running = config;
+		this.current = compile(config, initialState, input, output);
+		ImmutableList.Builder<Runnable> coreCodeBuilder = ImmutableList.builder();
+		for (int i = 0; i < current.getCoreCount(); ++i) {
+			final int core = i;
+			coreCodeBuilder.add(() -> current.getCoreCode(core).run());
+		}
+		this.coreCode = coreCodeBuilder.build();
+	}
+
+	/**
+	 * Returns true if the given configuration asks for online tuning.
+	 */
+	static boolean isEnabled(Configuration config) {
+		return config.getExtraData(EXTRA_DATA_KEY) != null;
+	}
+
+	/**
+	 * Returns the best configuration found so far.
+	 * @return the best configuration found so far
+	 */
+	public Configuration getBestConfiguration() {
+		return best;
+	}
+
+	private Compiler2BlobHost compile(Configuration config, DrainData initialState, Input<?> input, Output<?> output) {
+		Compiler2BlobHost blob = (Compiler2BlobHost)new Compiler2(workers, config, maxNumCores, initialState, input, output).compile();
+		blob.setCycleListener(this);
+		return blob;
+	}
+
+	/**
+	 * Starts compiling the given configuration on the prober thread, for a
+	 * drain shaped like one at this barrier.  The future's value is null if
+	 * the configuration is null, doesn't compile, or can't replace the current
+	 * blob.  Called only in the barrier action.
+	 */
+	private Future<PreparedBlob> prepare(Configuration config) {
+		if (config == null)
+			return Futures.immediateFuture(null);
+		ImmutableMap<Token, Integer> shape = current.drainDataSizes();
+		ImmutableMap<Token, Buffer> buffers = current.installedBuffers();
+		int coreCount = current.getCoreCount();
+		try {
+			return prober.submit(() -> PreparedBlob.compile(workers, config, maxNumCores, shape, coreCount, buffers));
+		} catch (RejectedExecutionException ex) {
+			//We're draining.
+			return Futures.immediateFuture(null);
+		}
+	}
+
+	private void nextProbe() {
+		probe = prepare(mutate(best));
+	}
+
+	private static PreparedBlob getQuietly(Future<PreparedBlob> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException | ExecutionException | CancellationException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a copy of the given configuration with one randomly-chosen int
+	 * or switch parameter changed, or null if there are none to change.
+	 */
+	private Configuration mutate(Configuration config) {
+		List<Parameter> mutable = new ArrayList<>();
+		for (Parameter p : config.getParametersMap().values())
+			if (p instanceof IntParameter && ((IntParameter)p).getMin() != ((IntParameter)p).getMax())
+				mutable.add(p);
+			else if (p instanceof SwitchParameter && ((SwitchParameter<?>)p).getUniverse().size() > 1)
+				mutable.add(p);
+		if (mutable.isEmpty())
+			return null;
+		Parameter victim = mutable.get(random.nextInt(mutable.size()));
+		Configuration.Builder builder = Configuration.builder(config);
+		builder.removeParameter(victim.getName());
+		if (victim instanceof IntParameter)
+			builder.addParameter(mutate((IntParameter)victim));
+		else
+			builder.addParameter(mutate((SwitchParameter<?>)victim));
+		return builder.build();
+	}
+
+	private IntParameter mutate(IntParameter p) {
+		int min = p.getMin(), max = p.getMax(), value = p.getValue(), newValue;
+		if ((long)max - min > NARROW_RANGE) {
+			long scaled = random.nextBoolean() ? (long)value * 2 : value / 2;
+			newValue = (int)Math.max(min, Math.min(max, scaled));
+			if (newValue == value)
+				newValue = value == max ? value - 1 : value + 1;
+		} else
+			do
+				newValue = min + random.nextInt(max - min + 1);
+			while (newValue == value);
+		return new IntParameter(p.getName(), p.getRange(), newValue);
+	}
+
+	private <T> SwitchParameter<T> mutate(SwitchParameter<T> p) {
+		List<T> others = new ArrayList<>(p.getUniverse());
+		others.remove(p.getValue());
+		return new SwitchParameter<>(p.getName(), p.getGenericParameter(),
+				others.get(random.nextInt(others.size())), p.getUniverse());
+	}
+
+	@Override
+	public Runnable steadyStateDone(long workNanos, long cycleNanos, long waitNanos) {
+		++cycles;
+		if (running != best) {
+			//Measuring a candidate.  Prepare the best configuration in case we
+			//have to swap it back in.
+			if (restore == null)
+				restore = prepare(best);
+			if (!rejected) {
+				if (!measure(cycleNanos - waitNanos))
+					return null;
+				double score = score();
+				++trials;
+				if (score < bestScore) {
+					best = running;
+					bestScore = score;
+					++improvements;
+					restore.cancel(true);
+					restore = null;
+					nextProbe();
+					return null;
+				}
+				rejected = true;
+				runningScore = score;
+			}
+			if (!restore.isDone())
+				return null;
+			PreparedBlob prepared = getQuietly(restore);
+			restore = null;
+			if (prepared == null) {
+				//The best configuration doesn't fit the installed buffers
+				//anymore, so we're stuck with the candidate; it's the best we
+				//can run.
+				best = running;
+				bestScore = runningScore;
+				rejected = false;
+				nextProbe();
+				return null;
+			}
+			if (!prepared.fits(current.drainDataSizes())) {
+				//Staged I/O changed the drain's shape; try again with this one.
+				restore = prepare(best);
+				return null;
+			}
+			return swapTo(prepared);
+		}
+
+		//Running the best configuration.  Refresh its score, then run it for
+		//a while (while the prober compiles a candidate) before trying the
+		//candidate.
+		if (cycles <= WARMUP_CYCLES + MEASURE_CYCLES) {
+			if (measure(cycleNanos - waitNanos))
+				bestScore = score();
+			return null;
+		}
+		if (probe == null)
+			nextProbe();
+		if (cycles < WARMUP_CYCLES + MEASURE_CYCLES + exploitCycles || !probe.isDone())
+			return null;
+		PreparedBlob candidate = getQuietly(probe);
+		if (candidate == null) {
+			nextProbe();
+			return null;
+		}
+		if (!candidate.fits(current.drainDataSizes())) {
+			probe = prepare(candidate.getConfiguration());
+			return null;
+		}
+		probe = null;
+		return swapTo(candidate);
+	}
+
+	/**
+	 * Accumulates a measurement, returning true when the measurement period
+	 * is over.
+	 */
+	private boolean measure(long nanos) {
+		if (cycles <= WARMUP_CYCLES)
+			return false;
+		busyNanos += nanos;
+		return cycles == WARMUP_CYCLES + MEASURE_CYCLES;
+	}
+
+	/**
+	 * Returns the running configuration's score (lower is better) and resets
+	 * the measurement.
+	 */
+	private double score() {
+		int multiplier = running.getParameter("multiplier", IntParameter.class).getValue();
+		double score = (double)busyNanos / MEASURE_CYCLES / multiplier;
+		busyNanos = 0;
+		return score;
+	}
+
+	private Runnable swapTo(PreparedBlob prepared) {
+		synchronized (this) {
+			if (drainCallback != null)
+				return null; //we're finishing anyway
+			recompiling = true;
+		}
+		return () -> swap(prepared);
+	}
+
+	/**
+	 * Replaces the current blob, which has just drained, with the prepared
+	 * one.  Runs in the old blob's barrier action, so the cores are all
+	 * stopped, but only moves data.
+	 */
+	private void swap(PreparedBlob prepared) {
+		Compiler2BlobHost replacement = prepared.install(current);
+		replacement.setCycleListener(this);
+		running = prepared.getConfiguration();
+		cycles = 0;
+		busyNanos = 0;
+		rejected = false;
+		current = replacement;
+		synchronized (this) {
+			recompiling = false;
+			if (drainCallback != null)
+				replacement.drain(drainCallback);
+		}
+	}
+
+	@Override
+	public Set<Worker<?, ?>> getWorkers() {
+		return workers;
+	}
+
+	@Override
+	public Set<Token> getInputs() {
+		return current.getInputs();
+	}
+
+	@Override
+	public Set<Token> getOutputs() {
+		return current.getOutputs();
+	}
+
+	@Override
+	public int getMinimumBufferCapacity(Token token) {
+		return current.getMinimumBufferCapacity(token);
+	}
+
+	@Override
+	public Class<?> getEdgeType(Token token) {
+		return current.getEdgeType(token);
+	}
+
+	@Override
+	public void installBuffers(Map<Token, Buffer> buffers) {
+		current.installBuffers(buffers);
+	}
+
+	@Override
+	public int getCoreCount() {
+		return coreCode.size();
+	}
+
+	@Override
+	public Runnable getCoreCode(int core) {
+		return coreCode.get(core);
+	}
+
+	@Override
+	public synchronized void drain(Runnable callback) {
+		drainCallback = callback;
+		prober.shutdownNow();
+		//If we're swapping blobs, swap() will pass this on.
+		if (!recompiling)
+			current.drain(callback);
+	}
+
+	@Override
+	public DrainData getDrainData() {
+		return current.getDrainData();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("OnlineTuningBlob(%s, %d improvements in %d trials)", current, improvements, trials);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.compiler2;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableTable;
+import edu.mit.streamjit.api.Worker;
+import edu.mit.streamjit.impl.blob.Blob.Token;
+import edu.mit.streamjit.impl.blob.Buffer;
+import edu.mit.streamjit.impl.blob.DrainData;
+import edu.mit.streamjit.impl.common.Configuration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Compiler2 blob compiled off the barrier thread to replace a running one,
+ * so the cores don't stop for a whole compile.  The replacement's initial
+ * state is the running blob's drain data, but the compiler only depends on
+ * how many items there are for each token, so we compile with placeholder
+ * data of the shape the running blob reports
+ * ({@link Compiler2BlobHost#drainDataSizes()}) and substitute the real data
+ * when swapping.  The shape is the same at every barrier unless the blob
+ * stages I/O, so the replacement can be swapped in at any barrier where the
+ * shapes match.
+ * @since 10/17/2026
+ */
+final class PreparedBlob {
+	private static final Object PLACEHOLDER = new Object();
+	private final Configuration config;
+	private final Compiler2BlobHost blob;
+	private final ImmutableMap<Token, Integer> shape;
+	private PreparedBlob(Configuration config, Compiler2BlobHost blob, ImmutableMap<Token, Integer> shape) {
+		this.config = config;
+		this.blob = blob;
+		this.shape = shape;
+	}
+
+	/**
+	 * Compiles the given configuration for a drain of the given shape.
+	 * Returns null if the configuration doesn't compile, or compiles to a
+	 * blob that can't replace the running one: one with a different number
+	 * of cores, or needing bigger buffers than those installed.
+	 * @param workers the workers
+	 * @param config the configuration to compile
+	 * @param maxNumCores the maximum number of cores
+	 * @param shape the number of drained items per token
+	 * @param coreCount the running blob's core count
+	 * @param buffers the running blob's installed buffers
+	 * @return a prepared blob, or null
+	 */
+	static PreparedBlob compile(ImmutableSet<Worker<?, ?>> workers, Configuration config, int maxNumCores,
+			ImmutableMap<Token, Integer> shape, int coreCount, Map<Token, Buffer> buffers) {
+		Map<Token, List<Object>> data = new HashMap<>();
+		for (Map.Entry<Token, Integer> e : shape.entrySet())
+			data.put(e.getKey(), Collections.nCopies(e.getValue(), PLACEHOLDER));
+		Compiler2BlobHost blob;
+		try {
+			blob = (Compiler2BlobHost)new Compiler2(workers, config, maxNumCores,
+					new DrainData(data, ImmutableTable.<Integer, String, Object>of()), null, null).compile();
+		} catch (RuntimeException ex) {
+			//A bad point in the search space (StreamCompilationFailedException,
+			//ScheduleException and the like).  Errors, including failed
+			//assertions, are bugs and propagate.
+			return null;
+		}
+		if (blob.getCoreCount() != coreCount)
+			return null;
+		for (Map.Entry<Token, Buffer> e : buffers.entrySet())
+			if (e.getValue().capacity() < blob.getMinimumBufferCapacity(e.getKey()))
+				return null;
+		return new PreparedBlob(config, blob, shape);
+	}
+
+	public Configuration getConfiguration() {
+		return config;
+	}
+
+	/**
+	 * Returns true if this blob can take a drain of the given shape.
+	 * @param shape the number of drained items per token
+	 * @return true iff the shapes match
+	 */
+	public boolean fits(Map<Token, Integer> shape) {
+		return this.shape.equals(shape);
+	}
+
+	/**
+	 * Gives this blob the drained blob's data, worker state and buffers, and
+	 * returns it, ready to run.  Runs in the drained blob's barrier action.
+	 * @param drained the blob being replaced, which has just drained
+	 * @return the replacement blob
+	 */
+	public Compiler2BlobHost install(Compiler2BlobHost drained) {
+		blob.replaceInitialState(drained.getDrainData());
+		blob.installBuffers(drained.installedBuffers());
+		return blob;
+	}
+}
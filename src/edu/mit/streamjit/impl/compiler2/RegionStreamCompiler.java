@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.compiler2;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import edu.mit.streamjit.api.OneToOneElement;
+import edu.mit.streamjit.api.Rate;
+import edu.mit.streamjit.api.Worker;
+import edu.mit.streamjit.impl.blob.Blob;
+import edu.mit.streamjit.impl.common.MessageConstraint;
+import edu.mit.streamjit.impl.common.SharedCoreExecutor;
+import edu.mit.streamjit.impl.common.Workers;
+import edu.mit.streamjit.impl.concurrent.ConcurrentStreamCompiler;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles graphs containing variable-rate workers, which Compiler2 can't
+ * statically schedule.  The graph is cut at variable-rate workers into
+ * statically-scheduled regions, each compiled by Compiler2 into its own blob
+ * with its own steady state; each variable-rate worker runs in its own
+ * Interpreter blob.  The blobs are connected by buffers sized at runtime from
+ * the blobs' minimum capacities rather than from a global schedule.
+ * <p/>
+ * Regions are chosen so the blob graph is acyclic.  Each worker gets a level,
+ * the largest number of variable-rate workers on any path from the source to
+ * it (excluding itself).  A region is a connected set of fixed-rate workers
+ * at the same level.  Edges between blobs then always go from a lower level
+ * to a higher one, or from a region to a variable-rate worker at the same
+ * level, so there are no cycles.
+ * @since 10/17/2026
+ */
+final class RegionStreamCompiler extends ConcurrentStreamCompiler {
+	private final Compiler2StreamCompiler compiler;
+	RegionStreamCompiler(Compiler2StreamCompiler compiler, SharedCoreExecutor executor) {
+		super(1, executor);
+		this.compiler = compiler;
+	}
+
+	/**
+	 * Returns true iff the given worker has any rate that is not fixed (e.g.,
+	 * Rate.create(0, 1)), so it can't be statically scheduled.
+	 * @param worker a worker
+	 * @return true iff the worker is variable-rate
+	 */
+	static boolean isVariableRate(Worker<?, ?> worker) {
+		for (List<Rate> rates : ImmutableList.of(worker.getPeekRates(), worker.getPopRates(), worker.getPushRates()))
+			for (Rate r : rates)
+				if (!r.isFixed())
+					return true;
+		return false;
+	}
+
+	@Override
+	protected <I, O> List<Set<Worker<?, ?>>> partition(OneToOneElement<I, O> stream, Worker<I, ?> source, Worker<?, O> sink) {
+		ImmutableList<Worker<?, ?>> order = Workers.topologicalSort(Workers.getAllWorkersInGraph(source));
+		Map<Worker<?, ?>, Integer> level = new HashMap<>();
+		Map<Worker<?, ?>, Set<Worker<?, ?>>> region = new HashMap<>();
+		List<Set<Worker<?, ?>>> partitions = new ArrayList<>();
+		for (Worker<?, ?> w : order) {
+			int l = 0;
+			for (Worker<?, ?> p : Workers.getPredecessors(w))
+				l = Math.max(l, level.get(p) + (isVariableRate(p) ? 1 : 0));
+			level.put(w, l);
+
+			Set<Worker<?, ?>> r = null;
+			if (!isVariableRate(w))
+				for (Worker<?, ?> p : Workers.getPredecessors(w)) {
+					if (isVariableRate(p) || level.get(p) != l)
+						continue;
+					Set<Worker<?, ?>> pr = region.get(p);
+					if (r == null)
+						r = pr;
+					else if (r != pr) {
+						//w joins two regions; merge them.
+						r.addAll(pr);
+						for (Worker<?, ?> x : pr)
+							region.put(x, r);
+						partitions.remove(pr);
+					}
+				}
+			if (r == null) {
+				r = new LinkedHashSet<>();
+				partitions.add(r);
+			}
+			r.add(w);
+			region.put(w, r);
+		}
+		return partitions;
+	}
+
+	@Override
+	protected Blob makeBlob(Set<Worker<?, ?>> partition, List<MessageConstraint> constraints) {
+		if (partition.size() == 1 && isVariableRate(Iterables.getOnlyElement(partition)))
+			return super.makeBlob(partition, constraints);
+		return new Compiler2BlobFactory().makeBlob(partition, compiler.getConfiguration(partition), compiler.getMaxNumCores(), null);
+	}
+
+	@Override
+	public String toString() {
+		return compiler.toString() + " (regions)";
+	}
+}
@@ -40,7 +40,7 @@ public final class StandardExternalStorageStrategy implements StorageStrategy {
 		return (Storage storage) -> {
 			if (storage.steadyStateCapacity() == 0)
 				return new EmptyConcreteStorage(storage);
-			Arrayish array = new Arrayish.ArrayArrayish(storage.type(), storage.steadyStateCapacity());
+			Arrayish array = new Arrayish.ArrayArrayish(storage.type(), CircularArrayConcreteStorage.capacity(storage));
 			return new CircularArrayConcreteStorage(array, storage);
 		};
 	}
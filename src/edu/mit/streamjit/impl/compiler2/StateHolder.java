@@ -62,4 +62,23 @@ public abstract class StateHolder implements DrainInstruction {
 		}
 		return ImmutableMap.of();
 	}
+
+	/**
+	 * The inverse of call(): copies the worker's non-final fields into this
+	 * state holder, for a blob compiled before the worker's state was final
+	 * (that is, before the blob it replaces drained).
+	 */
+	public void reload() {
+		for (Field hf : getClass().getDeclaredFields()) {
+			Field wf = ReflectionUtils.getFieldByName(worker, hf.getName());
+			if (!Modifier.isFinal(wf.getModifiers()))
+				try {
+					wf.setAccessible(true);
+					hf.setAccessible(true);
+					hf.set(this, wf.get(worker));
+				} catch (IllegalAccessException ex) {
+					throw new AssertionError(ex);
+				}
+		}
+	}
 }
@@ -59,7 +59,7 @@ public final class TuneExternalStorageStrategy implements StorageStrategy {
 					&& storage.isFullyExternal() //no reads of writes before adjust
 					)
 				return new DoubleArrayConcreteStorage(factory, storage);
-			return new CircularArrayConcreteStorage(factory.make(storage.type(), storage.steadyStateCapacity()), storage);
+			return new CircularArrayConcreteStorage(factory.make(storage.type(), CircularArrayConcreteStorage.capacity(storage)), storage);
 		};
 	}
 }
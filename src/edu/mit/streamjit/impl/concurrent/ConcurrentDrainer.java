@@ -30,7 +30,7 @@ import com.google.common.collect.ImmutableMap;
 import edu.mit.streamjit.impl.blob.Blob;
 import edu.mit.streamjit.impl.blob.Blob.Token;
 import edu.mit.streamjit.impl.common.AbstractDrainer;
-import edu.mit.streamjit.impl.common.BlobThread;
+import edu.mit.streamjit.impl.common.CoreRunner;
 import edu.mit.streamjit.impl.distributed.common.Utils;
 
 /**
@@ -48,19 +48,32 @@ public final class ConcurrentDrainer extends AbstractDrainer {
 	ImmutableMap<Token, Blob> blobMap;
 
 	/**
-	 * Set of threads that each blob is having.
+	 * Set of threads (or shared executor tasks) that each blob is having.
 	 */
-	ImmutableMap<Blob, Set<BlobThread>> threadMap;
+	ImmutableMap<Blob, Set<CoreRunner>> threadMap;
+
+	/**
+	 * Run after the final draining completes, or null.
+	 */
+	private final Runnable finished;
+
+	public ConcurrentDrainer(BlobGraph blobGraph,
+			Map<Blob, Set<CoreRunner>> threadMap) {
+		this(blobGraph, threadMap, null);
+	}
 
 	public ConcurrentDrainer(BlobGraph blobGraph,
-			Map<Blob, Set<BlobThread>> threadMap) {
+			Map<Blob, Set<CoreRunner>> threadMap, Runnable finished) {
 		setBlobGraph(blobGraph);
 		blobMap = buildBlobMap(threadMap.keySet());
 		this.threadMap = ImmutableMap.copyOf(threadMap);
+		this.finished = finished;
 	}
 
 	@Override
 	protected void drainingDone(boolean isFinal) {
+		if (isFinal && finished != null)
+			finished.run();
 		System.out.println("Draining Finished");
 	}
 
@@ -76,9 +89,9 @@ public final class ConcurrentDrainer extends AbstractDrainer {
 	@Override
 	protected void drainingDone(Token blobID, boolean isFinal) {
 		Blob blob = blobMap.get(blobID);
-		Set<BlobThread> blobThreads = threadMap.get(blob);
+		Set<CoreRunner> blobThreads = threadMap.get(blob);
 		checkNotNull(blobThreads);
-		for (BlobThread thread : blobThreads)
+		for (CoreRunner thread : blobThreads)
 			thread.requestStop();
 	}
 
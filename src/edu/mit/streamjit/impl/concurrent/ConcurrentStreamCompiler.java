@@ -23,7 +23,6 @@ package edu.mit.streamjit.impl.concurrent;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -43,10 +42,10 @@ import edu.mit.streamjit.api.Worker;
 import edu.mit.streamjit.impl.blob.Blob;
 import edu.mit.streamjit.impl.blob.Blob.Token;
 import edu.mit.streamjit.impl.blob.Buffer;
-import edu.mit.streamjit.impl.blob.ConcurrentArrayBuffer;
+import edu.mit.streamjit.impl.blob.Buffers;
 import edu.mit.streamjit.impl.common.AbstractDrainer;
 import edu.mit.streamjit.impl.common.AbstractDrainer.BlobGraph;
-import edu.mit.streamjit.impl.common.BlobThread;
+import edu.mit.streamjit.impl.common.CoreRunner;
 import edu.mit.streamjit.impl.common.Configuration;
 import edu.mit.streamjit.impl.common.Configuration.IntParameter;
 import edu.mit.streamjit.impl.common.Configuration.SwitchParameter;
@@ -55,6 +54,7 @@ import edu.mit.streamjit.impl.common.InputBufferFactory;
 import edu.mit.streamjit.impl.common.MessageConstraint;
 import edu.mit.streamjit.impl.common.OutputBufferFactory;
 import edu.mit.streamjit.impl.common.Portals;
+import edu.mit.streamjit.impl.common.SharedCoreExecutor;
 import edu.mit.streamjit.impl.common.VerifyStreamGraph;
 import edu.mit.streamjit.impl.interp.ChannelFactory;
 import edu.mit.streamjit.impl.interp.Interpreter;
@@ -70,6 +70,10 @@ import edu.mit.streamjit.partitioner.Partitioner;
  */
 public class ConcurrentStreamCompiler implements StreamCompiler {
 	int noOfBlobs;
+	/**
+	 * Runs the blobs' core code, or null to run each blob on its own thread.
+	 */
+	private final SharedCoreExecutor executor;
 
 	/**
 	 * @param Patrions
@@ -77,10 +81,22 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 	 *            blob on each thread.
 	 */
 	public ConcurrentStreamCompiler(int noOfBlobs) {
+		this(noOfBlobs, null);
+	}
+
+	/**
+	 * @param noOfBlobs
+	 *            number of blobs to partition the stream graph into.
+	 * @param executor
+	 *            the executor to run the blobs on as tasks, or null to run
+	 *            each blob on its own thread.
+	 */
+	public ConcurrentStreamCompiler(int noOfBlobs, SharedCoreExecutor executor) {
 		if (noOfBlobs < 1)
 			throw new IllegalArgumentException(
 					"noOfBlobs should be 1 or greater");
 		this.noOfBlobs = noOfBlobs;
+		this.executor = executor;
 	}
 
 	public ConcurrentStreamCompiler(Configuration cfg) {
@@ -92,6 +108,7 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 			throw new IllegalArgumentException(
 					"noOfBlobs should be 1 or greater");
 		this.noOfBlobs = noOfBlobs;
+		this.executor = SharedCoreExecutor.fromConfiguration(cfg);
 	}
 
 	@Override
@@ -109,9 +126,7 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 		VerifyStreamGraph verifier = new VerifyStreamGraph();
 		stream.visit(verifier);
 
-		Partitioner<I, O> horzPartitioner = new HorizontalPartitioner<>();
-		List<Set<Worker<?, ?>>> tempList = horzPartitioner.partitionEqually(
-				stream, source, sink, this.noOfBlobs);
+		List<Set<Worker<?, ?>>> tempList = partition(stream, source, sink);
 
 		List<Set<Worker<?, ?>>> partitionList = new ArrayList<>();
 		for (Set<Worker<?, ?>> blob : tempList) {
@@ -131,8 +146,7 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 
 		Set<Blob> blobSet = new HashSet<>();
 		for (Set<Worker<?, ?>> partition : partitionList) {
-			blobSet.add(new Interpreter(partition, constraints, makeConfig(),
-					null));
+			blobSet.add(makeBlob(partition, constraints));
 		}
 
 		BlobGraph bg = new BlobGraph(partitionList);
@@ -141,9 +155,11 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 
 		// TODO: derive a algorithm to find good buffer size and use here.
 		Buffer inputBuffer = InputBufferFactory.unwrap(input)
-				.createReadableBuffer(1000);
+				.createReadableBuffer(
+						Math.max(1000, minimumCapacity(blobSet, inputToken)));
 		Buffer outputBuffer = OutputBufferFactory.unwrap(output)
-				.createWritableBuffer(1000);
+				.createWritableBuffer(
+						Math.max(1000, minimumCapacity(blobSet, outputToken)));
 
 		assert !bufferMap.containsKey(inputToken) : "Overall input buffer is already created.";
 		assert !bufferMap.containsKey(outputToken) : "Overall output buffer is already created.";
@@ -155,8 +171,13 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 			b.installBuffers(bufferMap);
 		}
 
+		InputBufferFactory inputFactory = InputBufferFactory.unwrap(input);
+		OutputBufferFactory outputFactory = OutputBufferFactory.unwrap(output);
 		final ConcurrentCompiledStream cs = new ConcurrentCompiledStream(bg,
-				blobSet);
+				blobSet, executor, () -> {
+					inputFactory.close();
+					outputFactory.close();
+				});
 
 		if (input instanceof ManualInput)
 			InputBufferFactory.setManualInputDelegate((ManualInput<I>) input,
@@ -172,6 +193,40 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 		return cs;
 	}
 
+	/**
+	 * Partitions the stream graph into the workers of each blob. This
+	 * implementation cuts the graph horizontally into noOfBlobs partitions.
+	 * Empty partitions are ignored. The partitions must form an acyclic blob
+	 * graph.
+	 */
+	protected <I, O> List<Set<Worker<?, ?>>> partition(
+			OneToOneElement<I, O> stream, Worker<I, ?> source,
+			Worker<?, O> sink) {
+		Partitioner<I, O> horzPartitioner = new HorizontalPartitioner<>();
+		return horzPartitioner.partitionEqually(stream, source, sink,
+				this.noOfBlobs);
+	}
+
+	/**
+	 * Makes a blob for one partition. This implementation makes an
+	 * Interpreter blob.
+	 */
+	protected Blob makeBlob(Set<Worker<?, ?>> partition,
+			List<MessageConstraint> constraints) {
+		return new Interpreter(partition, constraints, makeConfig(), null);
+	}
+
+	/**
+	 * Returns the minimum capacity the blob using the given token requires of
+	 * its buffer.
+	 */
+	private static int minimumCapacity(Set<Blob> blobSet, Token t) {
+		for (Blob b : blobSet)
+			if (b.getInputs().contains(t) || b.getOutputs().contains(t))
+				return b.getMinimumBufferCapacity(t);
+		throw new AssertionError("no blob uses " + t);
+	}
+
 	// TODO: Buffer sizes, including head and tail buffers, must be optimized.
 	// consider adding some tuning factor.
 	/**
@@ -187,16 +242,20 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 
 		Map<Token, Integer> minInputBufCapaciy = new HashMap<>();
 		Map<Token, Integer> minOutputBufCapaciy = new HashMap<>();
+		Map<Token, Class<?>> inputTypes = new HashMap<>();
+		Map<Token, Class<?>> outputTypes = new HashMap<>();
 
 		for (Blob b : blobList) {
 			Set<Blob.Token> inputs = b.getInputs();
 			for (Token t : inputs) {
 				minInputBufCapaciy.put(t, b.getMinimumBufferCapacity(t));
+				inputTypes.put(t, b.getEdgeType(t));
 			}
 
 			Set<Blob.Token> outputs = b.getOutputs();
 			for (Token t : outputs) {
 				minOutputBufCapaciy.put(t, b.getMinimumBufferCapacity(t));
+				outputTypes.put(t, b.getEdgeType(t));
 			}
 		}
 
@@ -209,7 +268,8 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 				// TODO: Just to increase the performance. Change it later
 				bufSize = Math.max(1000, bufSize);
 
-				Buffer buf = new ConcurrentArrayBuffer(bufSize);
+				Buffer buf = Buffers.edgeBuffer(outputTypes.get(t),
+						inputTypes.get(t), bufSize);
 				bufferMap.put(t, buf);
 			}
 		}
@@ -234,17 +294,35 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 
 	public static class ConcurrentCompiledStream implements CompiledStream {
 
-		private Map<Blob, Set<BlobThread>> threadMap = new HashMap<>();
+		private Map<Blob, Set<CoreRunner>> threadMap = new HashMap<>();
 		private final AbstractDrainer drainer;
 
 		public ConcurrentCompiledStream(BlobGraph blobGraph, Set<Blob> blobSet) {
-			List<Thread> blobThreads = new ArrayList<>(blobSet.size());
+			this(blobGraph, blobSet, null);
+		}
+
+		public ConcurrentCompiledStream(BlobGraph blobGraph, Set<Blob> blobSet,
+				SharedCoreExecutor executor) {
+			this(blobGraph, blobSet, executor, null);
+		}
+
+		/**
+		 * @param finished
+		 *            run after the final draining completes (e.g., to flush
+		 *            the overall output), or null
+		 */
+		public ConcurrentCompiledStream(BlobGraph blobGraph, Set<Blob> blobSet,
+				SharedCoreExecutor executor, Runnable finished) {
+			List<CoreRunner> blobThreads = new ArrayList<>(blobSet.size());
 			for (final Blob b : blobSet) {
-				BlobThread t = new BlobThread(b.getCoreCode(0));
-				blobThreads.add(t);
-				threadMap.put(b, Collections.singleton(t));
+				Set<CoreRunner> threads = new HashSet<>(b.getCoreCount());
+				for (int i = 0; i < b.getCoreCount(); ++i)
+					threads.add(CoreRunner.create(executor, b.getCoreCode(i),
+							b.toString() + "-" + i));
+				blobThreads.addAll(threads);
+				threadMap.put(b, threads);
 			}
-			this.drainer = new ConcurrentDrainer(blobGraph, threadMap);
+			this.drainer = new ConcurrentDrainer(blobGraph, threadMap, finished);
 			start(blobThreads);
 		}
 
@@ -253,8 +331,8 @@ public class ConcurrentStreamCompiler implements StreamCompiler {
 		 * public. Currently start() is called inside the
 		 * ConcurrentCompiledStream's constructor.
 		 */
-		private void start(List<Thread> blobThreads) {
-			for (Thread t : blobThreads) {
+		private void start(List<CoreRunner> blobThreads) {
+			for (CoreRunner t : blobThreads) {
 				t.start();
 			}
 		}
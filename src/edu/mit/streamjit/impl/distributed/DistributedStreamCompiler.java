@@ -129,6 +129,12 @@ public class DistributedStreamCompiler implements StreamCompiler {
 			Input<I> input, Output<O> output) {
 
 		checkforDefaultOneToOneElement(stream);
+		// The distributed drainer doesn't close the output after draining, so
+		// outputs that buffer or write asynchronously would lose their tail.
+		if (OutputBufferFactory.unwrap(output).requiresClose())
+			throw new IllegalArgumentException(
+					"DistributedStreamCompiler doesn't support outputs that must be closed after draining: "
+							+ output);
 
 		ConnectWorkersVisitor primitiveConnector = new ConnectWorkersVisitor();
 		stream.visit(primitiveConnector);
@@ -55,8 +55,9 @@ public class TailChannel extends TCPInputChannel {
 
 	@Override
 	public void receiveData() {
+		int received = itemsReceived();
 		super.receiveData();
-		count++;
+		count += itemsReceived() - received;
 		// System.err.println(count);
 		if (count > limit)
 			latch.countDown();
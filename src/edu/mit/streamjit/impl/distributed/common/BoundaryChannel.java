@@ -81,9 +81,11 @@ public interface BoundaryChannel {
 		 * like kernel's socket buffer. Its implementations responsibility to
 		 * receive all data those are in middle and try to fill the actual
 		 * buffer. But in some case, after Stop() is called, actual buffer might
-		 * be full forever to write and there might be even more data in the
-		 * intermediate kernel buffer. In this case, before exiting, extraBuffer
-		 * should be filled with all unconsumed data in the kernel buffer.
+		 * be full forever to write and there might be even more data yet to be
+		 * sent. In this case, before exiting, extraBuffer should be filled with
+		 * all unconsumed data. With credit based flow control (see
+		 * {@link WireFormat}) that data is still at the sender, which has to be
+		 * granted enough credits to send it.
 		 * 
 		 * <p>
 		 * Based on the type argument, implementation may treat uncounsumed data
@@ -32,9 +32,8 @@ import edu.mit.streamjit.impl.distributed.runtimer.Controller;
  * Communication interface for both {@link StreamNode} and {@link Controller}
  * side. This interface is for an IO connection that is already created, i.e.,
  * creating a connections is not handled at here. Consider
- * {@link ConnectionFactory} to create a connection. </p> For the moment,
- * communicates at object granularity level. We may need to add primitive
- * interface functions later.
+ * {@link ConnectionFactory} to create a connection. </p> Communicates either
+ * at object granularity level or in batches of stream items.
  * 
  * @author Sumanan sumanan@mit.edu
  * @since May 14, 2013
@@ -59,6 +58,61 @@ public interface Connection {
 	 */
 	public void writeObject(Object obj) throws IOException;
 
+	/**
+	 * Write data[offset, offset+length) to the connection as one batch. See
+	 * {@link WireFormat} for the encoding. </p>throws exception if failed. So
+	 * no return value needed.
+	 * 
+	 * @throws IOException
+	 */
+	public void writeBatch(Object[] data, int offset, int length)
+			throws IOException;
+
+	/**
+	 * Read up to length items sent by {@link #writeBatch(Object[], int, int)}
+	 * into data, starting at offset. Blocks until at least one item arrives.
+	 * Do not mix with {@link #readObject()} on the same connection.
+	 * 
+	 * @return Number of items read, or -1 if the other side called
+	 *         {@link #softClose()}.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public int readBatch(Object[] data, int offset, int length)
+			throws IOException, ClassNotFoundException;
+
+	/**
+	 * Grant the other side's {@link #writeBatch(Object[], int, int)} credit
+	 * more items, or acknowledge its {@link #softClose()} with
+	 * {@link WireFormat#END_OF_SESSION}.
+	 * 
+	 * @throws IOException
+	 */
+	public void writeCredit(int credit) throws IOException;
+
+	/**
+	 * Read the next credit sent by {@link #writeCredit(int)}, blocking until
+	 * it arrives.
+	 * 
+	 * @throws IOException
+	 */
+	public int readCredit() throws IOException;
+
+	/**
+	 * Read the next credit sent by {@link #writeCredit(int)} if it has
+	 * already arrived.
+	 * 
+	 * @return The credit, or -1 if reading it would block.
+	 * @throws IOException
+	 */
+	public int pollCredit() throws IOException;
+
+	/**
+	 * @return true iff {@link #readBatch(Object[], int, int)} would not block.
+	 * @throws IOException
+	 */
+	public boolean hasBatchInput() throws IOException;
+
 	/**
 	 * Close the connection. This function is responsible for all kind of
 	 * resource cleanup. </p>throws exception if failed. So no return value
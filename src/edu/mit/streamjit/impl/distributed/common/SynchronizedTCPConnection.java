@@ -58,4 +58,48 @@ public class SynchronizedTCPConnection extends TCPConnection {
 			super.writeObject(obj);
 		}
 	}
+
+	@Override
+	public int readBatch(Object[] data, int offset, int length)
+			throws IOException, ClassNotFoundException {
+		synchronized (readLock) {
+			return super.readBatch(data, offset, length);
+		}
+	}
+
+	@Override
+	public int readCredit() throws IOException {
+		synchronized (readLock) {
+			return super.readCredit();
+		}
+	}
+
+	@Override
+	public int pollCredit() throws IOException {
+		synchronized (readLock) {
+			return super.pollCredit();
+		}
+	}
+
+	@Override
+	public boolean hasBatchInput() throws IOException {
+		synchronized (readLock) {
+			return super.hasBatchInput();
+		}
+	}
+
+	@Override
+	public void writeCredit(int credit) throws IOException {
+		synchronized (writeLock) {
+			super.writeCredit(credit);
+		}
+	}
+
+	@Override
+	public void writeBatch(Object[] data, int offset, int length)
+			throws IOException {
+		synchronized (writeLock) {
+			super.writeBatch(data, offset, length);
+		}
+	}
 }
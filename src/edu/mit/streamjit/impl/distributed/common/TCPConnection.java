@@ -23,6 +23,7 @@ package edu.mit.streamjit.impl.distributed.common;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -42,6 +43,8 @@ public class TCPConnection implements Connection {
 
 	private ObjectOutputStream ooStream = null;
 	private ObjectInput oiStream = null;
+	private WireFormat.Encoder encoder = null;
+	private WireFormat.Decoder decoder = null;
 	private Socket socket = null;
 	private boolean isconnected = false;
 	private final int resetCount;
@@ -63,6 +66,9 @@ public class TCPConnection implements Connection {
 		this.resetCount = resetCount;
 		try {
 			this.socket = socket;
+			// Credits (see WireFormat) are tiny writes that mustn't wait for
+			// Nagle's algorithm.
+			this.socket.setTcpNoDelay(true);
 			ooStream = new ObjectOutputStream(this.socket.getOutputStream());
 			oiStream = new ObjectInputStream(this.socket.getInputStream());
 			isconnected = true;
@@ -112,6 +118,82 @@ public class TCPConnection implements Connection {
 		}
 	}
 
+	@Override
+	public void writeBatch(Object[] data, int offset, int length)
+			throws IOException {
+		if (!isStillConnected())
+			throw new IOException("TCPConnection: Socket is not connected");
+		if (encoder == null)
+			encoder = new WireFormat.Encoder(false);
+		try {
+			encoder.write(ooStream, data, offset, length);
+		} catch (IOException ix) {
+			isconnected = false;
+			throw ix;
+		}
+	}
+
+	@Override
+	public int readBatch(Object[] data, int offset, int length)
+			throws IOException, ClassNotFoundException {
+		if (!isStillConnected())
+			throw new IOException("TCPConnection: Socket is not connected");
+		if (decoder == null)
+			decoder = new WireFormat.Decoder();
+		try {
+			while (!decoder.hasRemaining())
+				if (!decoder.readFrame(oiStream))
+					return -1;
+			return decoder.read(data, offset, length);
+		} catch (ClassNotFoundException ex) {
+			System.err.println("ClassNotFoundException...");
+			throw ex;
+		} catch (IOException e) {
+			isconnected = false;
+			throw e;
+		}
+	}
+
+	@Override
+	public void writeCredit(int credit) throws IOException {
+		if (!isStillConnected())
+			throw new IOException("TCPConnection: Socket is not connected");
+		try {
+			ooStream.writeInt(credit);
+			ooStream.flush();
+		} catch (IOException ix) {
+			isconnected = false;
+			throw ix;
+		}
+	}
+
+	@Override
+	public int readCredit() throws IOException {
+		if (!isStillConnected())
+			throw new IOException("TCPConnection: Socket is not connected");
+		try {
+			return oiStream.readInt();
+		} catch (IOException e) {
+			isconnected = false;
+			throw e;
+		}
+	}
+
+	@Override
+	public int pollCredit() throws IOException {
+		// Credits are written one per block, so a whole block's worth of
+		// available bytes is a whole credit.
+		if (oiStream.available() < 4)
+			return -1;
+		return readCredit();
+	}
+
+	@Override
+	public boolean hasBatchInput() throws IOException {
+		return (decoder != null && decoder.hasRemaining())
+				|| oiStream.available() > 0;
+	}
+
 	public final void closeConnection() {
 		try {
 			if (ooStream != null)
@@ -178,7 +260,7 @@ public class TCPConnection implements Connection {
 
 	@Override
 	public void softClose() throws IOException {
-		this.ooStream.write('\u001a');
+		this.ooStream.write(WireFormat.SOFT_CLOSE);
 		this.ooStream.flush();
 	}
 
@@ -253,6 +335,13 @@ public class TCPConnection implements Connection {
 
 		private ConcurrentMap<TCPConnectionInfo, TCPConnection> allConnections;
 
+		/**
+		 * Connections made by non-blocking boundary channels. These are
+		 * established by the channels themselves, but kept here so they are
+		 * reused across reconfigurations just like {@link #allConnections}.
+		 */
+		private ConcurrentMap<TCPConnectionInfo, SocketChannel> socketChannels;
+
 		private final int myNodeID;
 
 		private final Map<Integer, InetAddress> iNetAddressMap;
@@ -263,6 +352,7 @@ public class TCPConnection implements Connection {
 			this.myNodeID = myNodeID;
 			this.iNetAddressMap = iNetAddressMap;
 			this.allConnections = new ConcurrentHashMap<>();
+			this.socketChannels = new ConcurrentHashMap<>();
 		}
 
 		/**
@@ -304,22 +394,66 @@ public class TCPConnection implements Connection {
 				con = ConnectionFactory.getConnection(conInfo.getPortNo(),
 						timeOut, false);
 			} else if (conInfo.getDstID() == myNodeID) {
-				InetAddress ipAddress = iNetAddressMap.get(conInfo.getSrcID());
-				if (ipAddress.isLoopbackAddress())
-					ipAddress = iNetAddressMap.get(0);
-
-				int portNo = conInfo.getPortNo();
-				con = ConnectionFactory.getConnection(
-						ipAddress.getHostAddress(), portNo, false);
+				InetSocketAddress address = getServerAddress(conInfo);
+				con = ConnectionFactory.getConnection(address.getAddress()
+						.getHostAddress(), address.getPort(), false);
 			}
 			allConnections.put(conInfo, con);
 			return con;
 		}
 
+		/**
+		 * @return true iff this machine should listen for the connection
+		 *         corresponds to conInfo, i.e, conInfo.getSrcID() == myNodeID.
+		 */
+		public boolean isServer(TCPConnectionInfo conInfo) {
+			return conInfo.getSrcID() == myNodeID;
+		}
+
+		/**
+		 * @return Address of the machine that listens for the connection
+		 *         corresponds to conInfo.
+		 */
+		public InetSocketAddress getServerAddress(TCPConnectionInfo conInfo) {
+			InetAddress ipAddress = iNetAddressMap.get(conInfo.getSrcID());
+			if (ipAddress.isLoopbackAddress())
+				ipAddress = iNetAddressMap.get(0);
+			return new InetSocketAddress(ipAddress, conInfo.getPortNo());
+		}
+
+		/**
+		 * @return The already established {@link SocketChannel} corresponds
+		 *         to conInfo, or null if there is none.
+		 */
+		public SocketChannel getSocketChannel(TCPConnectionInfo conInfo) {
+			SocketChannel ch = socketChannels.get(conInfo);
+			if (ch != null && !ch.isOpen()) {
+				socketChannels.remove(conInfo, ch);
+				return null;
+			}
+			return ch;
+		}
+
+		/**
+		 * Keeps a newly established {@link SocketChannel} so that later
+		 * {@link #getSocketChannel(TCPConnectionInfo)} calls reuse it.
+		 */
+		public void putSocketChannel(TCPConnectionInfo conInfo,
+				SocketChannel channel) {
+			socketChannels.put(conInfo, channel);
+		}
+
 		public void closeAllConnections() {
 			for (TCPConnection con : allConnections.values()) {
 				con.closeConnection();
 			}
+			for (SocketChannel ch : socketChannels.values()) {
+				try {
+					ch.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 		}
 	}
 }
\ No newline at end of file
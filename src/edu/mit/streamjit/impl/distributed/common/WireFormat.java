@@ -0,0 +1,641 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.distributed.common;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The batched binary wire format used by boundary channels. A batch of stream
+ * items is sent as one or more frames, one frame per run of items of the same
+ * class. Each frame is a one byte tag, an item count and a length-prefixed
+ * payload.
+ * <ul>
+ * <li>Boxed primitives and Strings are sent with no per-item type
+ * information.</li>
+ * <li>Items whose class has a {@link TokenCodec} registered through
+ * {@link #registerCodec(Class, TokenCodec)} are encoded by the codec, after the
+ * class name. Every node must register the same codecs.</li>
+ * <li>Everything else falls back to Java serialization, with a fresh object
+ * stream per frame.</li>
+ * </ul>
+ * <p>
+ * Frames are carried as block data of the connection's object stream, so
+ * control messages and {@link Connection#softClose()}, which sends the single
+ * byte {@link #SOFT_CLOSE}, keep working on the same connection. No frame tag
+ * equals {@link #SOFT_CLOSE}. As a frame never contains a serialized object
+ * outside its payload, non-blocking transports can unwrap the block data
+ * themselves (see {@link BlockDataReader}) and interoperate with
+ * {@link TCPConnection}.
+ * </p>
+ * <p>
+ * Flow control is credit based. The receiving side sends credits in the
+ * opposite direction, each an int of block data, granting the sender that many
+ * more items. The sender never sends more items than it was granted, so every
+ * item it sends fits in the receiver's buffer. After receiving a soft close,
+ * the receiver answers with {@link #END_OF_SESSION}, which lets the sender
+ * discard any grants it didn't use before the connection is reused.
+ * </p>
+ * 
+ * @since Oct 17, 2026
+ */
+public final class WireFormat {
+
+	/**
+	 * The byte {@link Connection#softClose()} writes to end a session.
+	 */
+	public static final byte SOFT_CLOSE = 0x1a;
+
+	/**
+	 * The credit a receiver sends to acknowledge a soft close.
+	 */
+	public static final int END_OF_SESSION = 0;
+
+	/**
+	 * Size of a credit message, including its block header.
+	 */
+	public static final int CREDIT_SIZE = 6;
+
+	/**
+	 * Size of a frame header: tag, item count and payload length.
+	 */
+	public static final int FRAME_HEADER_SIZE = 9;
+
+	private static final byte INT = 1, LONG = 2, FLOAT = 3, DOUBLE = 4,
+			SHORT = 5, BYTE = 6, CHAR = 7, BOOLEAN = 8, STRING = 9,
+			CUSTOM = 10, OBJECT = 11;
+
+	private static final ConcurrentMap<Class<?>, TokenCodec<?>> codecsByClass = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, TokenCodec<?>> codecsByName = new ConcurrentHashMap<>();
+
+	private WireFormat() {
+	}
+
+	/**
+	 * Encodes and decodes the items of one user type. Implementations must be
+	 * thread safe; a single instance serves all connections.
+	 */
+	public interface TokenCodec<T> {
+		public void encode(T item, DataOutput out) throws IOException;
+
+		public T decode(DataInput in) throws IOException;
+	}
+
+	/**
+	 * Registers a codec for items whose class is exactly {@code type}.
+	 * Subclasses are not covered. Both ends of a connection must register the
+	 * same codec before any item of that type is sent.
+	 */
+	public static <T> void registerCodec(Class<T> type, TokenCodec<T> codec) {
+		checkNotNull(type);
+		checkNotNull(codec);
+		codecsByClass.put(type, codec);
+		codecsByName.put(type.getName(), codec);
+	}
+
+	/**
+	 * Returns the length of the frame at the buffer's position, including its
+	 * header, or -1 if the buffer doesn't hold a whole header yet. A
+	 * {@link #SOFT_CLOSE} counts as a frame of length one. Does not change the
+	 * buffer's position.
+	 */
+	public static int frameLength(ByteBuffer buffer) {
+		if (!buffer.hasRemaining())
+			return -1;
+		int p = buffer.position();
+		if (buffer.get(p) == SOFT_CLOSE)
+			return 1;
+		if (buffer.remaining() < FRAME_HEADER_SIZE)
+			return -1;
+		return FRAME_HEADER_SIZE + buffer.getInt(p + 5);
+	}
+
+	private static byte tagOf(Class<?> klass) {
+		if (klass == Integer.class)
+			return INT;
+		if (klass == Long.class)
+			return LONG;
+		if (klass == Float.class)
+			return FLOAT;
+		if (klass == Double.class)
+			return DOUBLE;
+		if (klass == Short.class)
+			return SHORT;
+		if (klass == Byte.class)
+			return BYTE;
+		if (klass == Character.class)
+			return CHAR;
+		if (klass == Boolean.class)
+			return BOOLEAN;
+		if (klass == String.class)
+			return STRING;
+		if (codecsByClass.containsKey(klass))
+			return CUSTOM;
+		return OBJECT;
+	}
+
+	private static int widthOf(byte tag) {
+		switch (tag) {
+			case LONG :
+			case DOUBLE :
+				return 8;
+			case INT :
+			case FLOAT :
+				return 4;
+			case SHORT :
+			case CHAR :
+				return 2;
+			case BYTE :
+			case BOOLEAN :
+				return 1;
+			default :
+				return 0;
+		}
+	}
+
+	/**
+	 * Encodes batches into a reusable buffer. Not thread safe.
+	 */
+	public static final class Encoder {
+		private final boolean direct;
+		private ByteBuffer frames;
+		private final Bytes bytes = new Bytes();
+		private final DataOutputStream bytesOut = new DataOutputStream(bytes);
+
+		/**
+		 * @param direct
+		 *            whether to encode into a direct buffer, for writing to a
+		 *            {@link java.nio.channels.SocketChannel}.
+		 */
+		public Encoder(boolean direct) {
+			this.direct = direct;
+			this.frames = allocate(8192);
+		}
+
+		/**
+		 * Encodes data[offset, offset+length) and returns the encoded frames
+		 * between the returned buffer's position and limit. The buffer is
+		 * reused by the next call.
+		 */
+		public ByteBuffer encode(Object[] data, int offset, int length)
+				throws IOException {
+			checkPositionIndexes(offset, offset + length, data.length);
+			frames.clear();
+			int end = offset + length;
+			int start = offset;
+			while (start < end) {
+				Class<?> klass = data[start].getClass();
+				int runEnd = start + 1;
+				while (runEnd < end && data[runEnd].getClass() == klass)
+					++runEnd;
+				encodeFrame(klass, data, start, runEnd - start);
+				start = runEnd;
+			}
+			frames.flip();
+			return frames;
+		}
+
+		/**
+		 * Encodes data[offset, offset+length) as block data of the given
+		 * object stream and flushes it.
+		 */
+		public void write(ObjectOutputStream out, Object[] data, int offset,
+				int length) throws IOException {
+			ByteBuffer b = encode(data, offset, length);
+			if (b.hasArray())
+				out.write(b.array(), b.arrayOffset() + b.position(),
+						b.remaining());
+			else {
+				byte[] copy = new byte[b.remaining()];
+				b.get(copy);
+				out.write(copy);
+			}
+			out.flush();
+		}
+
+		private void encodeFrame(Class<?> klass, Object[] data, int offset,
+				int count) throws IOException {
+			byte tag = tagOf(klass);
+			int width = widthOf(tag);
+			if (width > 0) {
+				ensureRemaining(FRAME_HEADER_SIZE + count * width);
+				frames.put(tag).putInt(count).putInt(count * width);
+				putPrimitives(tag, data, offset, count);
+				return;
+			}
+
+			bytes.reset();
+			switch (tag) {
+				case STRING :
+					for (int i = offset; i < offset + count; ++i) {
+						byte[] b = ((String) data[i])
+								.getBytes(StandardCharsets.UTF_8);
+						bytesOut.writeInt(b.length);
+						bytesOut.write(b);
+					}
+					break;
+				case CUSTOM :
+					encodeCustom(klass, data, offset, count);
+					break;
+				case OBJECT :
+					ObjectOutputStream oos = new ObjectOutputStream(bytes);
+					for (int i = offset; i < offset + count; ++i)
+						oos.writeObject(data[i]);
+					oos.flush();
+					break;
+				default :
+					throw new AssertionError(tag);
+			}
+			bytesOut.flush();
+			ensureRemaining(FRAME_HEADER_SIZE + bytes.size());
+			frames.put(tag).putInt(count).putInt(bytes.size());
+			frames.put(bytes.array(), 0, bytes.size());
+		}
+
+		private void putPrimitives(byte tag, Object[] data, int offset,
+				int count) {
+			ByteBuffer b = frames;
+			int end = offset + count;
+			switch (tag) {
+				case INT :
+					for (int i = offset; i < end; ++i)
+						b.putInt((Integer) data[i]);
+					break;
+				case LONG :
+					for (int i = offset; i < end; ++i)
+						b.putLong((Long) data[i]);
+					break;
+				case FLOAT :
+					for (int i = offset; i < end; ++i)
+						b.putFloat((Float) data[i]);
+					break;
+				case DOUBLE :
+					for (int i = offset; i < end; ++i)
+						b.putDouble((Double) data[i]);
+					break;
+				case SHORT :
+					for (int i = offset; i < end; ++i)
+						b.putShort((Short) data[i]);
+					break;
+				case BYTE :
+					for (int i = offset; i < end; ++i)
+						b.put((Byte) data[i]);
+					break;
+				case CHAR :
+					for (int i = offset; i < end; ++i)
+						b.putChar((Character) data[i]);
+					break;
+				case BOOLEAN :
+					for (int i = offset; i < end; ++i)
+						b.put((byte) ((Boolean) data[i] ? 1 : 0));
+					break;
+				default :
+					throw new AssertionError(tag);
+			}
+		}
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private void encodeCustom(Class<?> klass, Object[] data, int offset,
+				int count) throws IOException {
+			TokenCodec codec = codecsByClass.get(klass);
+			bytesOut.writeUTF(klass.getName());
+			for (int i = offset; i < offset + count; ++i)
+				codec.encode(data[i], bytesOut);
+		}
+
+		private void ensureRemaining(int n) {
+			if (frames.remaining() >= n)
+				return;
+			ByteBuffer bigger = allocate(Math.max(frames.position() + n,
+					2 * frames.capacity()));
+			frames.flip();
+			bigger.put(frames);
+			frames = bigger;
+		}
+
+		private ByteBuffer allocate(int capacity) {
+			return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+					.allocate(capacity);
+		}
+	}
+
+	private static final class Bytes extends ByteArrayOutputStream {
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Decodes the items of one frame at a time. A frame may be consumed over
+	 * several calls to {@link #read(Object[], int, int)}. Not thread safe.
+	 */
+	public static final class Decoder {
+		private ByteBuffer payload = ByteBuffer.allocate(8192);
+		private byte tag;
+		private int remaining;
+		private TokenCodec<?> codec;
+		private DataInputStream customIn;
+		private ObjectInputStream objectIn;
+
+		/**
+		 * @return true if the current frame has items left to read.
+		 */
+		public boolean hasRemaining() {
+			return remaining > 0;
+		}
+
+		/**
+		 * Reads the next frame from the given stream, blocking until it has
+		 * fully arrived.
+		 * 
+		 * @return false if the other side sent {@link Connection#softClose()}.
+		 */
+		public boolean readFrame(DataInput in) throws IOException {
+			checkState(remaining == 0, "current frame not consumed");
+			byte t = in.readByte();
+			if (t == SOFT_CLOSE)
+				return false;
+			int count = in.readInt();
+			int bytes = in.readInt();
+			payload(bytes);
+			in.readFully(payload.array(), 0, bytes);
+			startFrame(t, count, bytes);
+			return true;
+		}
+
+		/**
+		 * Reads the next frame from the given buffer, which must hold all of
+		 * it (see {@link WireFormat#frameLength(ByteBuffer)}). The frame is
+		 * copied, so the buffer may be reused once this returns.
+		 * 
+		 * @return false if the other side sent {@link Connection#softClose()}.
+		 */
+		public boolean readFrame(ByteBuffer in) throws IOException {
+			checkState(remaining == 0, "current frame not consumed");
+			byte t = in.get();
+			if (t == SOFT_CLOSE)
+				return false;
+			int count = in.getInt();
+			int bytes = in.getInt();
+			payload(bytes);
+			in.get(payload.array(), 0, bytes);
+			startFrame(t, count, bytes);
+			return true;
+		}
+
+		private void payload(int bytes) throws IOException {
+			if (bytes < 0)
+				throw new StreamCorruptedException("Bad frame length " + bytes);
+			if (payload.capacity() < bytes)
+				payload = ByteBuffer.allocate(Math.max(bytes,
+						2 * payload.capacity()));
+			payload.clear();
+		}
+
+		private void startFrame(byte t, int count, int bytes)
+				throws IOException {
+			if (t < INT || t > OBJECT)
+				throw new StreamCorruptedException("Unknown frame tag " + t);
+			payload.limit(bytes);
+			if (t == CUSTOM || t == OBJECT)
+				customIn = new DataInputStream(new ByteArrayInputStream(
+						payload.array(), 0, bytes));
+			if (t == CUSTOM) {
+				String className = customIn.readUTF();
+				codec = codecsByName.get(className);
+				if (codec == null)
+					throw new StreamCorruptedException(
+							"No TokenCodec registered for " + className);
+			}
+			if (t == OBJECT)
+				objectIn = new ObjectInputStream(customIn);
+			tag = t;
+			remaining = count;
+		}
+
+		/**
+		 * Decodes up to length items of the current frame into data,
+		 * starting at offset.
+		 * 
+		 * @return the number of items decoded, which is positive if
+		 *         {@link #hasRemaining()}.
+		 */
+		public int read(Object[] data, int offset, int length)
+				throws IOException, ClassNotFoundException {
+			checkPositionIndexes(offset, offset + length, data.length);
+			int n = Math.min(length, remaining);
+			int end = offset + n;
+			ByteBuffer b = payload;
+			switch (tag) {
+				case INT :
+					for (int i = offset; i < end; ++i)
+						data[i] = b.getInt();
+					break;
+				case LONG :
+					for (int i = offset; i < end; ++i)
+						data[i] = b.getLong();
+					break;
+				case FLOAT :
+					for (int i = offset; i < end; ++i)
+						data[i] = b.getFloat();
+					break;
+				case DOUBLE :
+					for (int i = offset; i < end; ++i)
+						data[i] = b.getDouble();
+					break;
+				case SHORT :
+					for (int i = offset; i < end; ++i)
+						data[i] = b.getShort();
+					break;
+				case BYTE :
+					for (int i = offset; i < end; ++i)
+						data[i] = b.get();
+					break;
+				case CHAR :
+					for (int i = offset; i < end; ++i)
+						data[i] = b.getChar();
+					break;
+				case BOOLEAN :
+					for (int i = offset; i < end; ++i)
+						data[i] = b.get() != 0;
+					break;
+				case STRING :
+					for (int i = offset; i < end; ++i) {
+						int len = b.getInt();
+						data[i] = new String(b.array(), b.position(), len,
+								StandardCharsets.UTF_8);
+						b.position(b.position() + len);
+					}
+					break;
+				case CUSTOM :
+					for (int i = offset; i < end; ++i)
+						data[i] = codec.decode(customIn);
+					break;
+				case OBJECT :
+					for (int i = offset; i < end; ++i)
+						data[i] = objectIn.readObject();
+					break;
+				default :
+					throw new AssertionError(tag);
+			}
+			remaining -= n;
+			if (remaining == 0)
+				skipFrame();
+			return n;
+		}
+
+		/**
+		 * Discards the rest of the current frame, e.g., after a
+		 * ClassNotFoundException left it unreadable.
+		 */
+		public void skipFrame() {
+			remaining = 0;
+			customIn = null;
+			objectIn = null;
+		}
+	}
+
+	/**
+	 * Writes object stream framing for transports that bypass
+	 * {@link ObjectOutputStream}.
+	 */
+	public static final class BlockData {
+		private BlockData() {
+		}
+
+		/**
+		 * Returns a new buffer holding an object stream header.
+		 */
+		public static ByteBuffer streamHeader() {
+			ByteBuffer b = ByteBuffer.allocate(4);
+			b.putShort(ObjectStreamConstants.STREAM_MAGIC).putShort(
+					ObjectStreamConstants.STREAM_VERSION);
+			b.flip();
+			return b;
+		}
+
+		/**
+		 * Puts a credit message into the given buffer, which must have at
+		 * least {@link WireFormat#CREDIT_SIZE} bytes remaining.
+		 */
+		public static void putCredit(ByteBuffer b, int credit) {
+			putBlockHeader(b, 4);
+			b.putInt(credit);
+		}
+
+		/**
+		 * Puts the header of a block of the given length into the given
+		 * buffer, which must have at least five bytes remaining.
+		 */
+		public static void putBlockHeader(ByteBuffer b, int length) {
+			if (length <= 0xff)
+				b.put(ObjectStreamConstants.TC_BLOCKDATA).put((byte) length);
+			else
+				b.put(ObjectStreamConstants.TC_BLOCKDATALONG).putInt(length);
+		}
+	}
+
+	/**
+	 * Extracts the block data of an object stream arriving in pieces, as
+	 * written by {@link ObjectOutputStream} in block data mode or by
+	 * {@link BlockData}. Resets are skipped; any other content is an error.
+	 * Not thread safe.
+	 */
+	public static final class BlockDataReader {
+		private int headerBytesLeft;
+		private int blockLeft;
+
+		/**
+		 * @param streamHeader
+		 *            whether the stream starts with an object stream header,
+		 *            i.e., whether the connection is new.
+		 */
+		public BlockDataReader(boolean streamHeader) {
+			this.headerBytesLeft = streamHeader ? 4 : 0;
+		}
+
+		/**
+		 * Moves block data from src to dst, as much as both allow, skipping
+		 * the stream header and block headers. Leaves incomplete headers in
+		 * src.
+		 */
+		public void unwrap(ByteBuffer src, ByteBuffer dst) throws IOException {
+			while (headerBytesLeft > 0 && src.hasRemaining()) {
+				src.get();
+				--headerBytesLeft;
+			}
+			while (src.hasRemaining() && dst.hasRemaining()) {
+				if (blockLeft == 0 && !readBlockHeader(src))
+					return;
+				int n = Math.min(blockLeft,
+						Math.min(src.remaining(), dst.remaining()));
+				int limit = src.limit();
+				src.limit(src.position() + n);
+				dst.put(src);
+				src.limit(limit);
+				blockLeft -= n;
+			}
+		}
+
+		private boolean readBlockHeader(ByteBuffer src) throws IOException {
+			int p = src.position();
+			switch (src.get(p)) {
+				case ObjectStreamConstants.TC_RESET :
+					src.position(p + 1);
+					return src.hasRemaining() && readBlockHeader(src);
+				case ObjectStreamConstants.TC_BLOCKDATA :
+					if (src.remaining() < 2)
+						return false;
+					src.position(p + 2);
+					blockLeft = src.get(p + 1) & 0xff;
+					return true;
+				case ObjectStreamConstants.TC_BLOCKDATALONG :
+					if (src.remaining() < 5)
+						return false;
+					src.position(p + 5);
+					blockLeft = src.getInt(p + 1);
+					if (blockLeft < 0)
+						throw new StreamCorruptedException(
+								"Bad block length " + blockLeft);
+					return true;
+				default :
+					throw new StreamCorruptedException(String.format(
+							"Unexpected object stream code %02x", src.get(p)));
+			}
+		}
+	}
+}
@@ -22,6 +22,7 @@
 package edu.mit.streamjit.impl.distributed.node;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -35,10 +36,11 @@ import com.google.common.collect.Sets;
 import edu.mit.streamjit.api.Worker;
 import edu.mit.streamjit.impl.blob.Blob;
 import edu.mit.streamjit.impl.blob.Buffer;
-import edu.mit.streamjit.impl.blob.ConcurrentArrayBuffer;
+import edu.mit.streamjit.impl.blob.Buffers;
 import edu.mit.streamjit.impl.blob.Blob.Token;
 import edu.mit.streamjit.impl.blob.DrainData;
-import edu.mit.streamjit.impl.common.BlobThread;
+import edu.mit.streamjit.impl.common.CoreRunner;
+import edu.mit.streamjit.impl.common.SharedCoreExecutor;
 import edu.mit.streamjit.impl.common.Workers;
 import edu.mit.streamjit.impl.distributed.common.BoundaryChannel;
 import edu.mit.streamjit.impl.distributed.common.BoundaryChannel.BoundaryInputChannel;
@@ -75,10 +77,30 @@ public class BlobsManagerImpl implements BlobsManager {
 
 	private final ImmutableMap<Token, Buffer> bufferMap;
 
+	/**
+	 * Runs the blobs' core code, or null to run each core on its own thread.
+	 */
+	private final SharedCoreExecutor executor;
+
+	/**
+	 * Services the boundary channels, or null to use blocking channels with
+	 * their own threads.
+	 */
+	private final SelectorPool selectorPool;
+
 	public BlobsManagerImpl(ImmutableSet<Blob> blobSet,
 			Map<Token, TCPConnectionInfo> conInfoMap, StreamNode streamNode,
 			TCPConnectionProvider conProvider) {
+		this(blobSet, conInfoMap, streamNode, conProvider, null, null);
+	}
+
+	public BlobsManagerImpl(ImmutableSet<Blob> blobSet,
+			Map<Token, TCPConnectionInfo> conInfoMap, StreamNode streamNode,
+			TCPConnectionProvider conProvider, SharedCoreExecutor executor,
+			SelectorPool selectorPool) {
 		this.conInfoMap = conInfoMap;
+		this.executor = executor;
+		this.selectorPool = selectorPool;
 		this.streamNode = streamNode;
 		this.conProvider = conProvider;
 
@@ -129,16 +151,20 @@ public class BlobsManagerImpl implements BlobsManager {
 
 		Map<Token, Integer> minInputBufCapaciy = new HashMap<>();
 		Map<Token, Integer> minOutputBufCapaciy = new HashMap<>();
+		Map<Token, Class<?>> inputTypes = new HashMap<>();
+		Map<Token, Class<?>> outputTypes = new HashMap<>();
 
 		for (Blob b : blobSet) {
 			Set<Blob.Token> inputs = b.getInputs();
 			for (Token t : inputs) {
 				minInputBufCapaciy.put(t, b.getMinimumBufferCapacity(t));
+				inputTypes.put(t, b.getEdgeType(t));
 			}
 
 			Set<Blob.Token> outputs = b.getOutputs();
 			for (Token t : outputs) {
 				minOutputBufCapaciy.put(t, b.getMinimumBufferCapacity(t));
+				outputTypes.put(t, b.getEdgeType(t));
 			}
 		}
 
@@ -152,17 +178,20 @@ public class BlobsManagerImpl implements BlobsManager {
 		for (Token t : localTokens) {
 			int bufSize = lcm(minInputBufCapaciy.get(t),
 					minOutputBufCapaciy.get(t));
-			addBuffer(t, bufSize, bufferMapBuilder);
+			addBuffer(t, bufSize, outputTypes.get(t), inputTypes.get(t),
+					bufferMapBuilder);
 		}
 
 		for (Token t : globalInputTokens) {
 			int bufSize = minInputBufCapaciy.get(t);
-			addBuffer(t, bufSize, bufferMapBuilder);
+			addBuffer(t, bufSize, Object.class, inputTypes.get(t),
+					bufferMapBuilder);
 		}
 
 		for (Token t : globalOutputTokens) {
 			int bufSize = minOutputBufCapaciy.get(t);
-			addBuffer(t, bufSize, bufferMapBuilder);
+			addBuffer(t, bufSize, outputTypes.get(t), Object.class,
+					bufferMapBuilder);
 		}
 		return bufferMapBuilder.build();
 	}
@@ -172,13 +201,21 @@ public class BlobsManagerImpl implements BlobsManager {
 	 * 
 	 * @param t
 	 * @param minSize
+	 * @param writerType
+	 *            edge type reported by the writing blob, or Object.class if
+	 *            the writer is a boundary channel.
+	 * @param readerType
+	 *            edge type reported by the reading blob, or Object.class if
+	 *            the reader is a boundary channel.
 	 * @param bufferMapBuilder
 	 */
-	private void addBuffer(Token t, int minSize,
+	private void addBuffer(Token t, int minSize, Class<?> writerType,
+			Class<?> readerType,
 			ImmutableMap.Builder<Token, Buffer> bufferMapBuilder) {
 		// TODO: Just to increase the performance. Change it later
 		int bufSize = Math.max(1000, minSize);
-		bufferMapBuilder.put(t, new ConcurrentArrayBuffer(bufSize));
+		bufferMapBuilder.put(t,
+				Buffers.edgeBuffer(writerType, readerType, bufSize));
 	}
 
 	private int gcd(int a, int b) {
@@ -220,8 +257,12 @@ public class BlobsManagerImpl implements BlobsManager {
 		ImmutableMap.Builder<Token, BoundaryInputChannel> inputChannelMap = new ImmutableMap.Builder<>();
 		for (Token t : inputTokens) {
 			TCPConnectionInfo conInfo = conInfoMap.get(t);
-			inputChannelMap.put(t, new TCPInputChannel(bufferMap.get(t),
-					conProvider, conInfo, t.toString(), 0));
+			if (selectorPool != null)
+				inputChannelMap.put(t, new NIOInputChannel(bufferMap.get(t),
+						selectorPool, conProvider, conInfo, t.toString()));
+			else
+				inputChannelMap.put(t, new TCPInputChannel(bufferMap.get(t),
+						conProvider, conInfo, t.toString(), 0));
 		}
 		return inputChannelMap.build();
 	}
@@ -231,8 +272,12 @@ public class BlobsManagerImpl implements BlobsManager {
 		ImmutableMap.Builder<Token, BoundaryOutputChannel> outputChannelMap = new ImmutableMap.Builder<>();
 		for (Token t : outputTokens) {
 			TCPConnectionInfo conInfo = conInfoMap.get(t);
-			outputChannelMap.put(t, new TCPOutputChannel(bufferMap.get(t),
-					conProvider, conInfo, t.toString(), 0));
+			if (selectorPool != null)
+				outputChannelMap.put(t, new NIOOutputChannel(bufferMap.get(t),
+						selectorPool, conProvider, conInfo, t.toString()));
+			else
+				outputChannelMap.put(t, new TCPOutputChannel(bufferMap.get(t),
+						conProvider, conInfo, t.toString(), 0));
 		}
 		return outputChannelMap.build();
 	}
@@ -243,7 +288,7 @@ public class BlobsManagerImpl implements BlobsManager {
 		private final Token blobID;
 
 		private final Blob blob;
-		private Set<BlobThread> blobThreads;
+		private Set<CoreRunner> blobThreads;
 
 		private final ImmutableMap<Token, BoundaryInputChannel> inputChannels;
 		private final ImmutableMap<Token, BoundaryOutputChannel> outputChannels;
@@ -271,8 +316,8 @@ public class BlobsManagerImpl implements BlobsManager {
 					sb.append(Workers.getIdentifier(w));
 					sb.append(",");
 				}
-				blobThreads.add(new BlobThread(blob.getCoreCode(i), sb
-						.toString()));
+				blobThreads.add(CoreRunner.create(executor,
+						blob.getCoreCode(i), sb.toString()));
 			}
 
 			drainState = 0;
@@ -280,19 +325,10 @@ public class BlobsManagerImpl implements BlobsManager {
 		}
 
 		private void start() {
-			for (BoundaryInputChannel bc : inputChannels.values()) {
-				Thread t = new Thread(bc.getRunnable(), bc.name());
-				t.start();
-				inputChannelThreads.add(t);
-			}
-
-			for (BoundaryOutputChannel bc : outputChannels.values()) {
-				Thread t = new Thread(bc.getRunnable(), bc.name());
-				t.start();
-				outputChannelThreads.add(t);
-			}
+			startChannels(inputChannels.values(), inputChannelThreads);
+			startChannels(outputChannels.values(), outputChannelThreads);
 
-			for (Thread t : blobThreads)
+			for (CoreRunner t : blobThreads)
 				t.start();
 		}
 
@@ -306,7 +342,7 @@ public class BlobsManagerImpl implements BlobsManager {
 				bc.stop(true);
 			}
 
-			for (Thread t : blobThreads)
+			for (CoreRunner t : blobThreads)
 				try {
 					t.join();
 				} catch (InterruptedException e) {
@@ -327,13 +363,7 @@ public class BlobsManagerImpl implements BlobsManager {
 					bc.stop(3);
 			}
 
-			for (Thread t : inputChannelThreads) {
-				try {
-					t.join();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
+			joinChannels(inputChannels.values(), inputChannelThreads);
 
 			DrainCallback dcb = new DrainCallback(this);
 			drainState = 2;
@@ -342,7 +372,7 @@ public class BlobsManagerImpl implements BlobsManager {
 
 		private void drained() {
 			drainState = 3;
-			for (BlobThread bt : blobThreads) {
+			for (CoreRunner bt : blobThreads) {
 				bt.requestStop();
 			}
 
@@ -350,13 +380,7 @@ public class BlobsManagerImpl implements BlobsManager {
 				bc.stop(!this.reqDrainData);
 			}
 
-			for (Thread t : outputChannelThreads) {
-				try {
-					t.join();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
+			joinChannels(outputChannels.values(), outputChannelThreads);
 
 			drainState = 4;
 			SNMessageElement drained = new SNDrainElement.Drained(blobID);
@@ -435,6 +459,38 @@ public class BlobsManagerImpl implements BlobsManager {
 		public Token getBlobID() {
 			return Utils.getBlobID(blob);
 		}
+
+		/**
+		 * Starts non-blocking channels on the {@link SelectorPool} and the
+		 * others on their own threads, which are added to threads.
+		 */
+		private void startChannels(
+				Collection<? extends BoundaryChannel> channels,
+				Set<Thread> threads) {
+			for (BoundaryChannel bc : channels) {
+				if (bc instanceof NIOChannel) {
+					((NIOChannel) bc).start();
+				} else {
+					Thread t = new Thread(bc.getRunnable(), bc.name());
+					t.start();
+					threads.add(t);
+				}
+			}
+		}
+
+		private void joinChannels(
+				Collection<? extends BoundaryChannel> channels,
+				Set<Thread> threads) {
+			try {
+				for (Thread t : threads)
+					t.join();
+				for (BoundaryChannel bc : channels)
+					if (bc instanceof NIOChannel)
+						((NIOChannel) bc).join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
 	private static class DrainCallback implements Runnable {
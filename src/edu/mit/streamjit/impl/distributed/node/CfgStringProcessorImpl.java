@@ -46,6 +46,7 @@ import edu.mit.streamjit.impl.common.Configuration;
 import edu.mit.streamjit.impl.common.Configuration.PartitionParameter;
 import edu.mit.streamjit.impl.common.Configuration.PartitionParameter.BlobSpecifier;
 import edu.mit.streamjit.impl.common.ConnectWorkersVisitor;
+import edu.mit.streamjit.impl.common.SharedCoreExecutor;
 import edu.mit.streamjit.impl.compiler2.Compiler2BlobFactory;
 import edu.mit.streamjit.impl.distributed.common.AppStatus;
 import edu.mit.streamjit.impl.distributed.common.ConfigurationString.ConfigurationStringProcessor;
@@ -106,7 +107,9 @@ public class CfgStringProcessorImpl implements ConfigurationStringProcessor {
 						.getExtraData(GlobalConstants.CONINFOMAP);
 
 				streamNode.setBlobsManager(new BlobsManagerImpl(blobSet,
-						conInfoMap, streamNode, conProvider));
+						conInfoMap, streamNode, conProvider, SharedCoreExecutor
+								.fromConfiguration(staticConfig), SelectorPool
+								.fromConfiguration(staticConfig)));
 			} else {
 				try {
 					streamNode.controllerConnection
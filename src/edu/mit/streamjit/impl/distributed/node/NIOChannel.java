@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.distributed.node;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.mit.streamjit.impl.blob.Buffer;
+import edu.mit.streamjit.impl.distributed.common.BoundaryChannel;
+import edu.mit.streamjit.impl.distributed.common.TCPConnection;
+import edu.mit.streamjit.impl.distributed.common.TCPConnection.TCPConnectionInfo;
+import edu.mit.streamjit.impl.distributed.common.TCPConnection.TCPConnectionProvider;
+import edu.mit.streamjit.impl.distributed.common.WireFormat;
+
+/**
+ * Common part of the non-blocking {@link BoundaryChannel}s. A
+ * {@link SelectorPool} thread repeatedly calls {@link #service()}, which first
+ * makes (or reuses) the TCP connection without blocking and then lets the
+ * subclass move data between the {@link Buffer} and the socket.
+ * <p>
+ * Both ends speak the same bytes as {@link TCPConnection}: an object stream
+ * header on a new connection, then {@link WireFormat} frames as block data. So
+ * a non-blocking channel can talk to a {@link TCPInputChannel},
+ * {@link TCPOutputChannel} or the controller's head and tail channels.
+ * </p>
+ * 
+ * @since Oct 17, 2026
+ */
+abstract class NIOChannel implements BoundaryChannel {
+
+	/**
+	 * Connect attempts before giving up, as in
+	 * {@link edu.mit.streamjit.impl.distributed.common.ConnectionFactory}.
+	 */
+	private static final int MAX_CONNECT_ATTEMPTS = 10;
+
+	protected final Buffer buffer;
+
+	protected final String name;
+
+	private final SelectorPool pool;
+
+	private final TCPConnectionProvider conProvider;
+
+	private final TCPConnectionInfo conInfo;
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	private volatile Selector selector;
+
+	private SelectionKey key;
+
+	protected SocketChannel channel;
+
+	/**
+	 * Whether the connection was made by this channel rather than reused, so
+	 * an object stream header is exchanged first.
+	 */
+	protected boolean newConnection;
+
+	private ByteBuffer streamHeader;
+
+	private ServerSocketChannel server;
+
+	private SocketChannel connecting;
+
+	private int connectAttempts;
+
+	private long retryAtNanos;
+
+	NIOChannel(Buffer buffer, SelectorPool pool,
+			TCPConnectionProvider conProvider, TCPConnectionInfo conInfo,
+			String name) {
+		this.buffer = buffer;
+		this.pool = pool;
+		this.conProvider = conProvider;
+		this.conInfo = conInfo;
+		this.name = name;
+	}
+
+	/**
+	 * Starts servicing this channel on the pool, unless already started.
+	 */
+	final void start() {
+		if (started.compareAndSet(false, true))
+			pool.register(this);
+	}
+
+	/**
+	 * Waits until this channel has finished, i.e., its session with the other
+	 * node is over.
+	 */
+	final void join() throws InterruptedException {
+		done.await();
+	}
+
+	final boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	final void attach(Selector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Called on the selector thread. Makes as much progress as possible
+	 * without blocking.
+	 * 
+	 * @return true iff any progress was made.
+	 */
+	final boolean service() {
+		try {
+			if (channel == null && !connect())
+				return false;
+			if (streamHeader != null) {
+				channel.write(streamHeader);
+				if (streamHeader.hasRemaining()) {
+					interest(SelectionKey.OP_WRITE);
+					return false;
+				}
+				streamHeader = null;
+			}
+			return transfer();
+		} catch (IOException e) {
+			System.err.println(name + " - " + e);
+			fail();
+			return true;
+		}
+	}
+
+	/**
+	 * Called on the selector thread when servicing this channel failed.
+	 * Closes its sockets and marks it finished.
+	 */
+	final void fail() {
+		try {
+			if (channel != null)
+				channel.close();
+			if (connecting != null)
+				connecting.close();
+			if (server != null)
+				server.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		finish();
+	}
+
+	/**
+	 * Moves data between the buffer and the established connection.
+	 * 
+	 * @return true iff any progress was made.
+	 */
+	protected abstract boolean transfer() throws IOException;
+
+	/**
+	 * Registers the given selector to be woken when this channel's buffer
+	 * changes, or unregisters if null.
+	 */
+	abstract void setWaiting(Selector selector);
+
+	/**
+	 * Wakes the selector thread, e.g., to notice a stop request.
+	 */
+	protected final void wakeup() {
+		Selector s = selector;
+		if (s != null)
+			s.wakeup();
+	}
+
+	/**
+	 * Sets the socket events the selector thread should wake for.
+	 */
+	protected final void interest(int ops) {
+		if (key.interestOps() != ops)
+			key.interestOps(ops);
+	}
+
+	/**
+	 * Marks this channel finished. The selector thread stops servicing it.
+	 */
+	protected void finish() {
+		if (key != null && key.isValid())
+			key.interestOps(0);
+		done.countDown();
+	}
+
+	/**
+	 * @return true iff the connection is established.
+	 */
+	private boolean connect() throws IOException {
+		SocketChannel ch = conProvider.getSocketChannel(conInfo);
+		if (ch != null) {
+			established(ch, false);
+			return true;
+		}
+
+		if (conProvider.isServer(conInfo)) {
+			if (server == null) {
+				server = ServerSocketChannel.open();
+				server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				server.bind(new InetSocketAddress(conInfo.getPortNo()));
+				server.configureBlocking(false);
+				server.register(selector, SelectionKey.OP_ACCEPT);
+			}
+			ch = server.accept();
+			if (ch == null)
+				return false;
+			server.close();
+			server = null;
+		} else {
+			if (connecting == null) {
+				if (System.nanoTime() - retryAtNanos < 0)
+					return false;
+				connecting = SocketChannel.open();
+				connecting.configureBlocking(false);
+				if (!connecting.connect(conProvider.getServerAddress(conInfo))) {
+					connecting.register(selector, SelectionKey.OP_CONNECT);
+					return false;
+				}
+			}
+			try {
+				if (!connecting.finishConnect())
+					return false;
+			} catch (IOException e) {
+				connecting.close();
+				connecting = null;
+				if (++connectAttempts == MAX_CONNECT_ATTEMPTS)
+					throw e;
+				System.out.println(name + " - Reattempting connection...."
+						+ connectAttempts);
+				retryAtNanos = System.nanoTime()
+						+ TimeUnit.SECONDS.toNanos(2 * connectAttempts);
+				return false;
+			}
+			ch = connecting;
+			connecting = null;
+		}
+		conProvider.putSocketChannel(conInfo, ch);
+		established(ch, true);
+		return true;
+	}
+
+	private void established(SocketChannel ch, boolean isNew)
+			throws IOException {
+		ch.configureBlocking(false);
+		ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		SelectionKey k = ch.keyFor(selector);
+		if (k != null && !k.isValid()) {
+			// Cancelled, but not yet deregistered; flush it.
+			selector.selectNow();
+			k = null;
+		}
+		this.key = k != null ? k : ch.register(selector, 0);
+		key.interestOps(0);
+		this.channel = ch;
+		this.newConnection = isNew;
+		if (isNew)
+			streamHeader = WireFormat.BlockData.streamHeader();
+	}
+
+	@Override
+	public final void closeConnection() throws IOException {
+		// The session ends by soft close; the connection is kept for reuse.
+	}
+
+	@Override
+	public final boolean isStillConnected() {
+		SocketChannel ch = channel;
+		return ch != null && ch.isOpen();
+	}
+
+	@Override
+	public final Runnable getRunnable() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				start();
+				try {
+					join();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+
+	@Override
+	public final int getOtherNodeID() {
+		return 0;
+	}
+
+	@Override
+	public final String name() {
+		return name;
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.distributed.node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.mit.streamjit.impl.blob.Buffer;
+import edu.mit.streamjit.impl.blob.Buffers;
+import edu.mit.streamjit.impl.distributed.common.BoundaryChannel.BoundaryInputChannel;
+import edu.mit.streamjit.impl.distributed.common.TCPConnection.TCPConnectionInfo;
+import edu.mit.streamjit.impl.distributed.common.TCPConnection.TCPConnectionProvider;
+import edu.mit.streamjit.impl.distributed.common.WireFormat;
+
+/**
+ * Non-blocking {@link BoundaryInputChannel}, serviced by a
+ * {@link SelectorPool}. Decodes received {@link WireFormat} frames and bulk
+ * writes them into the given {@link Buffer}.
+ * <p>
+ * Flow control is credit based, as in {@link TCPInputChannel}: the sender only
+ * sends what this channel has granted, which is never more than the buffer's
+ * free capacity. Further grants are sent as soon as the buffer's reader frees
+ * space, instead of sleeping.
+ * </p>
+ * <p>
+ * Note: NIOInputChannel acts as client when making TCP connection.
+ * </p>
+ * 
+ * @since Oct 17, 2026
+ */
+public final class NIOInputChannel extends NIOChannel implements
+		BoundaryInputChannel {
+
+	/**
+	 * How long the buffer may stay full, after stop(2), before we grant the
+	 * sender its remaining data into the extra buffer.
+	 */
+	private static final long SPILL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+	private final ByteBuffer net = ByteBuffer.allocateDirect(64 * 1024);
+
+	private ByteBuffer content = ByteBuffer.allocate(64 * 1024);
+
+	private WireFormat.BlockDataReader blocks;
+
+	private final WireFormat.Decoder decoder = new WireFormat.Decoder();
+
+	/**
+	 * Decoded items batch[batchPos, batchEnd) not yet written to the buffer.
+	 */
+	private final Object[] batch = new Object[TCPOutputChannel.BATCH_SIZE];
+
+	private int batchPos, batchEnd;
+
+	/**
+	 * The credit being sent, if it has remaining bytes.
+	 */
+	private final ByteBuffer credit = ByteBuffer.allocateDirect(
+			WireFormat.CREDIT_SIZE);
+
+	private final int grantThreshold;
+
+	/**
+	 * Items granted and received in this session.
+	 */
+	private int granted, received;
+
+	private boolean softClosed;
+
+	private final AtomicInteger stopType = new AtomicInteger(0);
+
+	private long fullSinceNanos;
+
+	private Queue<Object> extraData;
+
+	private Buffer extraBuffer;
+
+	private ImmutableList<Object> unProcessedData;
+
+	public NIOInputChannel(Buffer buffer, SelectorPool pool,
+			TCPConnectionProvider conProvider, TCPConnectionInfo conInfo,
+			String bufferTokenName) {
+		super(buffer, pool, conProvider, conInfo, "NIOInputChannel - "
+				+ bufferTokenName);
+		this.grantThreshold = Math.min(batch.length,
+				Math.max(1, buffer.capacity() / 4));
+		credit.limit(0);
+	}
+
+	@Override
+	protected boolean transfer() throws IOException {
+		if (blocks == null)
+			blocks = new WireFormat.BlockDataReader(newConnection);
+		boolean progress = false;
+		while (true) {
+			if (credit.hasRemaining()) {
+				channel.write(credit);
+				if (credit.hasRemaining()) {
+					interest(SelectionKey.OP_WRITE);
+					return progress;
+				}
+				if (softClosed) {
+					// The acknowledgement of the soft close is sent.
+					finish();
+					return true;
+				}
+			}
+
+			if (batchPos < batchEnd) {
+				if (!deliver()) {
+					interest(0);
+					return progress;
+				}
+				progress = true;
+			}
+
+			if (grant())
+				continue;
+
+			if (decoder.hasRemaining()) {
+				batchPos = 0;
+				try {
+					batchEnd = decoder.read(batch, 0, batch.length);
+				} catch (ClassNotFoundException e) {
+					e.printStackTrace();
+					decoder.skipFrame();
+					batchEnd = 0;
+				}
+				received += batchEnd;
+				continue;
+			}
+
+			content.flip();
+			int frameLength = WireFormat.frameLength(content);
+			if (frameLength >= 0 && content.remaining() >= frameLength) {
+				boolean more = decoder.readFrame(content);
+				content.compact();
+				if (!more) {
+					softClosed = true;
+					putCredit(WireFormat.END_OF_SESSION);
+				}
+				continue;
+			}
+			content.compact();
+			if (frameLength > content.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocate(frameLength);
+				content.flip();
+				bigger.put(content);
+				content = bigger;
+			}
+
+			net.flip();
+			int before = content.position();
+			blocks.unwrap(net, content);
+			net.compact();
+			if (content.position() > before)
+				continue;
+
+			int read = channel.read(net);
+			if (read < 0) {
+				System.out.println(name
+						+ " - Closing by EOF. Not by softClose");
+				channel.close();
+				finish();
+				return true;
+			}
+			if (read == 0) {
+				interest(SelectionKey.OP_READ);
+				return progress;
+			}
+			progress = true;
+		}
+	}
+
+	/**
+	 * Grants the sender the free space of the buffer we haven't granted yet,
+	 * less the decoded items not yet delivered. Small grants are deferred while
+	 * earlier grants are outstanding. After stop(2), if the buffer stays full
+	 * for {@link #SPILL_NANOS} with nothing outstanding, starts spilling into
+	 * the extra buffer so that the sender can finish.
+	 * 
+	 * @return true iff a credit was queued.
+	 */
+	private boolean grant() {
+		if (softClosed || credit.hasRemaining())
+			return false;
+		int type = stopType.get();
+		int free;
+		if (type == 3 || extraData != null)
+			free = batch.length;
+		else
+			free = Math.min(buffer.capacity() - buffer.size(),
+					TCPInputChannel.MAX_CREDIT) - (batchEnd - batchPos);
+		int outstanding = granted - received;
+		int grantable = free - outstanding;
+		if (grantable > 0
+				&& (outstanding == 0 || grantable >= grantThreshold)) {
+			putCredit(grantable);
+			granted += grantable;
+			fullSinceNanos = 0;
+			return true;
+		}
+		if (outstanding > 0 || type != 2 || extraData != null)
+			return false;
+
+		long now = System.nanoTime();
+		if (fullSinceNanos == 0)
+			fullSinceNanos = now;
+		if (now - fullSinceNanos < SPILL_NANOS)
+			return false;
+		System.err.println(name + " - Writing extra data in to extra buffer");
+		extraData = new ArrayDeque<>();
+		extraBuffer = Buffers.queueBuffer(extraData, Integer.MAX_VALUE);
+		return grant();
+	}
+
+	private void putCredit(int c) {
+		credit.clear();
+		WireFormat.BlockData.putCredit(credit, c);
+		credit.flip();
+	}
+
+	/**
+	 * Writes decoded items to the buffer, or to the extra buffer once we have
+	 * started spilling, or discards them after stop(3).
+	 * 
+	 * @return false if the buffer is full. As we only receive what we granted,
+	 *         this shouldn't happen.
+	 */
+	private boolean deliver() {
+		if (stopType.get() == 3) {
+			batchPos = batchEnd;
+		} else if (extraData != null) {
+			extraBuffer.write(batch, batchPos, batchEnd - batchPos);
+			batchPos = batchEnd;
+		} else {
+			batchPos += buffer.write(batch, batchPos, batchEnd - batchPos);
+			if (batchPos < batchEnd)
+				return false;
+		}
+		Arrays.fill(batch, 0, batchEnd, null);
+		batchPos = batchEnd = 0;
+		return true;
+	}
+
+	@Override
+	void setWaiting(Selector selector) {
+		Buffers.wakeSelectorOnRead(buffer, selector);
+	}
+
+	@Override
+	public void stop(int type) {
+		assert 0 < type && type < 4 : "Undefined stop type";
+		this.stopType.set(type);
+		wakeup();
+	}
+
+	/**
+	 * The selector pool does the receiving, so this starts the channel (if
+	 * needed) and waits until the pool has finished it.
+	 */
+	@Override
+	public void receiveData() {
+		start();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public Buffer getExtraBuffer() {
+		return extraBuffer;
+	}
+
+	@Override
+	public ImmutableList<Object> getUnprocessedData() {
+		if (!isDone())
+			throw new IllegalAccessError(
+					"Still processing... No unprocessed data");
+
+		if (unProcessedData == null) {
+			Object[] bufArray = new Object[buffer.size()];
+			buffer.readAll(bufArray);
+			ImmutableList.Builder<Object> builder = ImmutableList.builder();
+			builder.add(bufArray);
+			if (extraData != null)
+				builder.addAll(extraData);
+			unProcessedData = builder.build();
+		}
+		return unProcessedData;
+	}
+}
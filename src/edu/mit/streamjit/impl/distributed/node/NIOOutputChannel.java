@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.distributed.node;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+import com.google.common.collect.ImmutableList;
+
+import edu.mit.streamjit.impl.blob.Buffer;
+import edu.mit.streamjit.impl.blob.Buffers;
+import edu.mit.streamjit.impl.distributed.common.BoundaryChannel.BoundaryOutputChannel;
+import edu.mit.streamjit.impl.distributed.common.TCPConnection.TCPConnectionInfo;
+import edu.mit.streamjit.impl.distributed.common.TCPConnection.TCPConnectionProvider;
+import edu.mit.streamjit.impl.distributed.common.WireFormat;
+
+/**
+ * Non-blocking {@link BoundaryOutputChannel}, serviced by a
+ * {@link SelectorPool}. Reads batches from the given {@link Buffer} and sends
+ * each as one block of {@link WireFormat} frames with a gathering write. Only
+ * sends as many items as the receiver has granted, so a slow receiver backs up
+ * into the buffer rather than into the kernel's socket buffers.
+ * <p>
+ * Note: NIOOutputChannel acts as server when making TCP connection.
+ * </p>
+ * 
+ * @since Oct 17, 2026
+ */
+public final class NIOOutputChannel extends NIOChannel implements
+		BoundaryOutputChannel {
+
+	private final Object[] batch = new Object[TCPOutputChannel.BATCH_SIZE];
+
+	private final WireFormat.Encoder encoder = new WireFormat.Encoder(true);
+
+	private final ByteBuffer blockHeader = ByteBuffer.allocateDirect(5);
+
+	private final ByteBuffer softClose = ByteBuffer.allocateDirect(1);
+
+	/**
+	 * Block header and block content of the block being written.
+	 */
+	private final ByteBuffer[] pending = {blockHeader, null};
+
+	private volatile boolean stopping;
+
+	private volatile boolean isFinal;
+
+	private boolean softClosing;
+
+	/**
+	 * Raw and unwrapped bytes of the credits sent by the receiver.
+	 */
+	private final ByteBuffer creditNet = ByteBuffer.allocateDirect(256);
+
+	private final ByteBuffer creditContent = ByteBuffer.allocate(256);
+
+	private WireFormat.BlockDataReader creditBlocks;
+
+	/**
+	 * Number of items the receiver has granted but we haven't sent yet.
+	 */
+	private int credits;
+
+	/**
+	 * Whether the receiver has acknowledged our soft close.
+	 */
+	private boolean endOfSession;
+
+	private ImmutableList<Object> unProcessedData;
+
+	public NIOOutputChannel(Buffer buffer, SelectorPool pool,
+			TCPConnectionProvider conProvider, TCPConnectionInfo conInfo,
+			String bufferTokenName) {
+		super(buffer, pool, conProvider, conInfo, "NIOOutputChannel - "
+				+ bufferTokenName);
+	}
+
+	@Override
+	protected boolean transfer() throws IOException {
+		if (creditBlocks == null)
+			creditBlocks = new WireFormat.BlockDataReader(newConnection);
+		boolean progress = false;
+		while (true) {
+			if (pending[1] != null) {
+				progress |= channel.write(pending) > 0;
+				if (pending[1].hasRemaining()) {
+					interest(SelectionKey.OP_WRITE);
+					return progress;
+				}
+				pending[1] = null;
+			}
+
+			if (softClosing) {
+				progress |= readCredits();
+				if (endOfSession) {
+					finish();
+					return true;
+				}
+				interest(SelectionKey.OP_READ);
+				return progress;
+			}
+
+			// Read the flag before the buffer, so data written before stop()
+			// is sent when isFinal.
+			boolean stop = stopping;
+			if (!stop || isFinal) {
+				if (credits == 0)
+					progress |= readCredits();
+				int n = buffer.read(batch, 0, Math.min(credits, batch.length));
+				if (n > 0) {
+					credits -= n;
+					ByteBuffer frames = encoder.encode(batch, 0, n);
+					Arrays.fill(batch, 0, n, null);
+					enqueue(frames);
+					progress = true;
+					continue;
+				}
+				if (credits == 0 && buffer.size() > 0) {
+					// Wait for the receiver to grant more.
+					interest(SelectionKey.OP_READ);
+					return progress;
+				}
+			}
+
+			if (stop) {
+				softClose.clear();
+				softClose.put(WireFormat.SOFT_CLOSE).flip();
+				enqueue(softClose);
+				softClosing = true;
+				continue;
+			}
+
+			interest(0);
+			return progress;
+		}
+	}
+
+	/**
+	 * Reads the credits the receiver has sent so far, stopping after its
+	 * acknowledgement of our soft close.
+	 * 
+	 * @return true iff anything was read.
+	 */
+	private boolean readCredits() throws IOException {
+		boolean progress = false;
+		while (true) {
+			creditNet.flip();
+			creditBlocks.unwrap(creditNet, creditContent);
+			creditNet.compact();
+			creditContent.flip();
+			while (creditContent.remaining() >= 4 && !endOfSession) {
+				int c = creditContent.getInt();
+				if (c == WireFormat.END_OF_SESSION)
+					endOfSession = true;
+				else
+					credits += c;
+			}
+			creditContent.compact();
+			if (endOfSession)
+				return true;
+
+			int read = channel.read(creditNet);
+			if (read < 0)
+				throw new EOFException(name
+						+ " - Closed before acknowledging the soft close");
+			if (read == 0)
+				return progress;
+			progress = true;
+		}
+	}
+
+	private void enqueue(ByteBuffer content) {
+		blockHeader.clear();
+		WireFormat.BlockData.putBlockHeader(blockHeader, content.remaining());
+		blockHeader.flip();
+		pending[1] = content;
+	}
+
+	@Override
+	void setWaiting(Selector selector) {
+		Buffers.wakeSelectorOnWrite(buffer, selector);
+	}
+
+	@Override
+	public void stop(boolean isFinal) {
+		this.isFinal = isFinal;
+		this.stopping = true;
+		wakeup();
+	}
+
+	@Override
+	public void sendData() {
+		throw new UnsupportedOperationException(name
+				+ " is serviced by its SelectorPool");
+	}
+
+	@Override
+	protected void finish() {
+		fillUnprocessedData();
+		super.finish();
+	}
+
+	private void fillUnprocessedData() {
+		Object[] obArray = new Object[buffer.size()];
+		buffer.readAll(obArray);
+		this.unProcessedData = ImmutableList.copyOf(obArray);
+	}
+
+	@Override
+	public ImmutableList<Object> getUnprocessedData() {
+		if (unProcessedData == null)
+			throw new IllegalAccessError(
+					"Still processing... No unprocessed data");
+		return unProcessedData;
+	}
+}
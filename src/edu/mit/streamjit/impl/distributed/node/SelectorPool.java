@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.impl.distributed.node;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.primitives.Ints;
+
+import edu.mit.streamjit.impl.common.Configuration;
+
+/**
+ * A small pool of selector threads that services all non-blocking boundary
+ * channels ({@link NIOInputChannel}s and {@link NIOOutputChannel}s) of a
+ * {@link StreamNode}, instead of one blocking thread per channel.
+ * <p>
+ * Each thread repeatedly services every channel assigned to it. When none of
+ * them can make progress, it registers its selector to be woken by the
+ * channels' {@link edu.mit.streamjit.impl.blob.Buffer}s and selects on the
+ * channels' sockets, so a channel resumes as soon as its buffer has data (or
+ * space) or its socket is ready.
+ * </p>
+ * <p>
+ * {@link BlobsManagerImpl} chooses the transport with the configuration's
+ * "boundaryTransport" extra data (see {@link #fromConfiguration(Configuration)}).
+ * </p>
+ * 
+ * @since Oct 17, 2026
+ */
+public final class SelectorPool {
+
+	/**
+	 * The configuration extra data key holding the transport specification
+	 * string.
+	 */
+	public static final String EXTRA_DATA_KEY = "boundaryTransport";
+
+	/**
+	 * Upper bound on a select, in case a buffer wakeup was missed.
+	 */
+	private static final long SELECT_TIMEOUT_MILLIS = 5;
+
+	private final SelectorThread[] threads;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Pools created by {@link #parse(String)}, by size. Never closed, like the
+	 * shared pool, so each specification opens its threads and selectors once
+	 * no matter how many reconfigurations use it.
+	 */
+	private static final ConcurrentHashMap<Integer, SelectorPool> BY_SIZE = new ConcurrentHashMap<>();
+
+	public SelectorPool(int size) throws IOException {
+		checkArgument(size > 0, "bad selector pool size %s", size);
+		threads = new SelectorThread[size];
+		for (int i = 0; i < size; ++i) {
+			threads[i] = new SelectorThread("SelectorPool-" + i);
+			threads[i].start();
+		}
+	}
+
+	private static final class SharedHolder {
+		private static final SelectorPool SHARED;
+		static {
+			try {
+				SHARED = new SelectorPool(Math.max(1, Runtime.getRuntime()
+						.availableProcessors() / 8));
+			} catch (IOException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+	}
+
+	/**
+	 * @return The JVM-wide pool, with one selector thread per eight available
+	 *         processors (at least one).
+	 */
+	public static SelectorPool shared() {
+		return SharedHolder.SHARED;
+	}
+
+	/**
+	 * Returns the pool specified by the given configuration's
+	 * "boundaryTransport" extra data, or null (meaning blocking channels with
+	 * one thread each) if it isn't present.
+	 */
+	public static SelectorPool fromConfiguration(Configuration config) {
+		Object spec = config.getExtraData(EXTRA_DATA_KEY);
+		return spec != null ? parse((String) spec) : null;
+	}
+
+	/**
+	 * Parses a transport specification, one of:
+	 * <ul>
+	 * <li>"threads": blocking channels with one thread each (returns null)
+	 * <li>"nio": the JVM-wide shared pool
+	 * <li>"nio:N": the JVM-wide pool with N selector threads (created on first
+	 * use)
+	 * </ul>
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the specification is malformed
+	 */
+	public static SelectorPool parse(String spec) {
+		switch (spec) {
+			case "threads" :
+				return null;
+			case "nio" :
+				return shared();
+		}
+		checkArgument(spec.startsWith("nio:"), "bad boundary transport %s",
+				spec);
+		Integer size = Ints.tryParse(spec.substring("nio:".length()).trim());
+		checkArgument(size != null && size > 0, "bad boundary transport %s",
+				spec);
+		return BY_SIZE.computeIfAbsent(size, n -> {
+			try {
+				return new SelectorPool(n);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	/**
+	 * Assigns the channel to one of the pool's threads, which begins servicing
+	 * it.
+	 */
+	void register(NIOChannel channel) {
+		int i = Math.floorMod(next.getAndIncrement(), threads.length);
+		threads[i].added.add(channel);
+		threads[i].selector.wakeup();
+	}
+
+	private static final class SelectorThread extends Thread {
+
+		private final Selector selector;
+
+		private final Queue<NIOChannel> added = new ConcurrentLinkedQueue<>();
+
+		private final List<NIOChannel> channels = new ArrayList<>();
+
+		SelectorThread(String name) throws IOException {
+			super(name);
+			setDaemon(true);
+			this.selector = Selector.open();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					NIOChannel ch;
+					while ((ch = added.poll()) != null) {
+						ch.attach(selector);
+						channels.add(ch);
+					}
+
+					if (serviceAll())
+						selector.selectNow();
+					else {
+						// Ask the buffers to wake us, then check again so we
+						// don't miss data that arrived before they could.
+						setWaiting(selector);
+						if (serviceAll())
+							selector.selectNow();
+						else if (added.isEmpty())
+							selector.select(SELECT_TIMEOUT_MILLIS);
+						setWaiting(null);
+					}
+					// Every channel is serviced in every iteration, so the
+					// selected keys are only used to wake us up.
+					selector.selectedKeys().clear();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * @return true iff any channel made progress.
+		 */
+		private boolean serviceAll() {
+			boolean progress = false;
+			Iterator<NIOChannel> it = channels.iterator();
+			while (it.hasNext()) {
+				NIOChannel ch = it.next();
+				try {
+					progress |= ch.service();
+				} catch (RuntimeException e) {
+					// Don't let one channel's failure (e.g., a
+					// CancelledKeyException after a close) kill the thread
+					// and strand the others.
+					System.err.println(ch.name() + " - " + e);
+					e.printStackTrace();
+					ch.fail();
+					progress = true;
+				}
+				if (ch.isDone())
+					it.remove();
+			}
+			return progress;
+		}
+
+		private void setWaiting(Selector s) {
+			for (NIOChannel ch : channels)
+				ch.setWaiting(s);
+		}
+	}
+}
@@ -24,31 +24,38 @@ package edu.mit.streamjit.impl.distributed.node;
 import java.io.EOFException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OptionalDataException;
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import com.google.common.collect.ImmutableList;
 
 import edu.mit.streamjit.impl.blob.AbstractBuffer;
 import edu.mit.streamjit.impl.blob.Buffer;
+import edu.mit.streamjit.impl.blob.Buffers;
 import edu.mit.streamjit.impl.distributed.common.BoundaryChannel.BoundaryInputChannel;
 import edu.mit.streamjit.impl.distributed.common.Connection;
 import edu.mit.streamjit.impl.distributed.common.TCPConnection.TCPConnectionInfo;
 import edu.mit.streamjit.impl.distributed.common.TCPConnection.TCPConnectionProvider;
+import edu.mit.streamjit.impl.distributed.common.WireFormat;
 
 /**
- * This is {@link BoundaryInputChannel} over TCP. Receive objects from TCP
- * connection and write them into the given {@link Buffer}.
+ * This is {@link BoundaryInputChannel} over TCP. Receive batches of objects from
+ * TCP connection and bulk write them into the given {@link Buffer}. See
+ * {@link Connection#readBatch}.
  * <p>
  * Note: TCPInputChannel acts as client when making TCP connection.
  * </p>
  * <p>
- * In some case, after Stop() is called, buffer might be full forever and there
- * might be more data in the kernel TCP buffer. In this case before extraBuffer
- * will be filled with all kernel data.
+ * The sender only sends what we have granted it, which is never more than the
+ * free space of the buffer (see {@link WireFormat}). So received data always
+ * fits, and the data in the kernel's socket buffers are bounded by the buffer's
+ * capacity. In some case, after stop(2) is called, buffer might be full
+ * forever while the sender still has data to send. In this case we grant it
+ * more and fill the extraBuffer with the rest of its data.
  * 
  * @author Sumanan sumanan@mit.edu
  * @since May 29, 2013
@@ -81,6 +88,40 @@ public class TCPInputChannel implements BoundaryInputChannel {
 
 	private ImmutableList<Object> unProcessedData;
 
+	private final Object[] batch;
+
+	/**
+	 * Largest number of items granted at once. Bounds the number of items in
+	 * flight when the buffer is unbounded.
+	 */
+	static final int MAX_CREDIT = 64 * TCPOutputChannel.BATCH_SIZE;
+
+	/**
+	 * How long the buffer may stay full, after stop(2), before we start
+	 * spilling into {@link #extraBuffer}.
+	 */
+	private static final long SPILL_DELAY_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(500);
+
+	/**
+	 * Smallest grant sent while earlier grants are outstanding.
+	 */
+	private final int grantThreshold;
+
+	/**
+	 * Items granted and received in this session. Their difference is the
+	 * number of items the sender may still send.
+	 */
+	private int granted, received;
+
+	/**
+	 * Whether the buffer has been full since {@link #fullSince}, with nothing
+	 * left to receive.
+	 */
+	private boolean full;
+
+	private long fullSince;
+
 	public TCPInputChannel(Buffer buffer, TCPConnectionProvider conProvider,
 			TCPConnectionInfo conInfo, String bufferTokenName, int debugPrint) {
 		this.buffer = buffer;
@@ -93,6 +134,9 @@ public class TCPInputChannel implements BoundaryInputChannel {
 		this.unProcessedData = null;
 		this.isClosed = false;
 		this.stopType = new AtomicInteger(0);
+		this.batch = new Object[TCPOutputChannel.BATCH_SIZE];
+		this.grantThreshold = Math.min(batch.length,
+				Math.max(1, buffer.capacity() / 4));
 		count = 0;
 
 		FileWriter w = null;
@@ -132,16 +176,16 @@ public class TCPInputChannel implements BoundaryInputChannel {
 						e.printStackTrace();
 					}
 				}
+				Buffers.wakeWriterOnRead(buffer, Thread.currentThread());
+				granted = received = 0;
+				full = false;
 				while (stopType.get() == 0 && !softClosed) {
 					receiveData();
 				}
 
-				if (!softClosed) {
-					if (stopType.get() == 3)
-						discardAll();
-					else
-						finalReceive();
-				}
+				if (!softClosed)
+					finalReceive();
+				Buffers.wakeWriterOnRead(buffer, null);
 
 				try {
 					closeConnection();
@@ -163,58 +207,12 @@ public class TCPInputChannel implements BoundaryInputChannel {
 
 	@Override
 	public void receiveData() {
-		int bufFullCount = 0;
 		try {
-			Object obj = tcpConnection.readObject();
-			count++;
-
-			if (debugPrint == 3) {
-				System.out.println(Thread.currentThread().getName() + " - "
-						+ obj.toString());
-			}
-
-			if (writer != null) {
-				writer.write(obj.toString());
-				writer.write('\n');
-			}
-
-			while (!this.buffer.write(obj)) {
-				if (debugPrint == 3) {
-					System.out.println(Thread.currentThread().getName()
-							+ " Buffer FULL - " + obj.toString());
-				}
-				if (writer != null) {
-					writer.write("receiveData:Buffer FULL");
-					writer.write('\n');
-				}
-				try {
-					// TODO: Need to tune the sleep time.
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				if (stopType.get() > 1 && ++bufFullCount > 5) {
-					this.extraBuffer = new ExtraBuffer();
-					extraBuffer.write(obj);
-					System.err
-							.println("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@");
-					System.err
-							.println(name
-									+ " receiveData:Writing extra data in to extra buffer");
-					System.err
-							.println("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@");
-					break;
-				}
-			}
-
-			if (count % 1000 == 0 && debugPrint == 2) {
-				System.out.println(Thread.currentThread().getName() + " - "
-						+ count + " no of items have been received");
-			}
+			int n = receiveBatch();
+			if (n > 0)
+				deliver(n, " - ");
 		} catch (ClassNotFoundException e) {
 			e.printStackTrace();
-		} catch (OptionalDataException e) {
-			softClosed = true;
 		} catch (EOFException e) {
 			// Other side is closed.
 			System.out
@@ -233,112 +231,141 @@ public class TCPInputChannel implements BoundaryInputChannel {
 	}
 
 	/**
-	 * Once this channel is asked to stop, we have to read all data that exists
-	 * in the kernel's TCP buffer. Otherwise those data will be lost forever.
+	 * Grants the sender the free space of the buffer, then reads the next
+	 * batch if one can arrive.
+	 * 
+	 * @return the number of items read into {@link #batch}, or -1 if the
+	 *         sender has soft closed the connection.
 	 */
-	private void finalReceive() {
-		assert stopType.get() == 1 || stopType.get() == 2 : "Illegal stopType state";
-		boolean hasData;
-		int bufFullCount;
-		Buffer buffer;
-		if (this.extraBuffer == null)
-			buffer = this.buffer;
-		else
-			buffer = this.extraBuffer;
-		do {
-			bufFullCount = 0;
-			try {
-				Object obj = tcpConnection.readObject();
-				count++;
-
-				if (debugPrint == 2) {
-					System.out.println(Thread.currentThread().getName()
-							+ " finalReceive - " + obj.toString());
-				}
-
-				if (writer != null) {
-					writer.write(obj.toString());
-					writer.write('\n');
-				}
+	private int receiveBatch() throws IOException, ClassNotFoundException {
+		grant();
+		if (granted == received && !tcpConnection.hasBatchInput()) {
+			// Nothing is granted, so only a soft close can arrive.
+			waitForSpace();
+			return 0;
+		}
+		int n = tcpConnection.readBatch(batch, 0, batch.length);
+		if (n < 0) {
+			softClosed = true;
+			tcpConnection.writeCredit(WireFormat.END_OF_SESSION);
+			return -1;
+		}
+		full = false;
+		received += n;
+		count += n;
+		return n;
+	}
 
-				hasData = true;
+	/**
+	 * Grants the sender the free space we haven't granted yet. Small grants
+	 * are deferred while earlier grants are outstanding, to avoid sending a
+	 * credit per item.
+	 */
+	private void grant() throws IOException {
+		int free;
+		if (stopType.get() == 3 || extraBuffer != null)
+			free = batch.length;
+		else
+			free = Math.min(buffer.capacity() - buffer.size(), MAX_CREDIT);
+		int outstanding = granted - received;
+		int grantable = free - outstanding;
+		if (grantable > 0
+				&& (outstanding == 0 || grantable >= grantThreshold)) {
+			tcpConnection.writeCredit(grantable);
+			granted += grantable;
+		}
+	}
 
-				while (!buffer.write(obj)) {
-					if (debugPrint == 3) {
-						System.out.println(Thread.currentThread().getName()
-								+ " finalReceive:Buffer FULL - "
-								+ obj.toString());
-					}
+	/**
+	 * Called when the buffer is full and all grants have been used. After
+	 * stop(2), if the buffer stays full for {@link #SPILL_DELAY_NANOS}, starts
+	 * receiving into {@link #extraBuffer} so that the sender can finish.
+	 */
+	private void waitForSpace() {
+		long now = System.nanoTime();
+		if (!full) {
+			full = true;
+			fullSince = now;
+		} else if (stopType.get() == 2 && extraBuffer == null
+				&& now - fullSince > SPILL_DELAY_NANOS) {
+			this.extraBuffer = new ExtraBuffer();
+			System.err.println(name
+					+ " - Buffer is full. Writing extra data in to extra buffer");
+			return;
+		}
+		if (debugPrint == 3)
+			System.out.println(Thread.currentThread().getName()
+					+ " Buffer FULL");
+		LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+	}
 
-					if (writer != null) {
-						writer.write("finalReceive:Buffer FULL");
-						writer.write('\n');
-					}
+	/**
+	 * Writes the received batch into the buffer, or into the extra buffer once
+	 * we have started spilling. Discards it after stop(3).
+	 */
+	private void deliver(int n, String prefix) throws IOException {
+		debugReceived(n, prefix);
+		if (stopType.get() != 3) {
+			Buffer buffer = extraBuffer == null ? this.buffer : extraBuffer;
+			int written = buffer.write(batch, 0, n);
+			// We only receive what we granted, so this shouldn't loop.
+			while (written < n) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				written += buffer.write(batch, written, n - written);
+			}
+		}
+		Arrays.fill(batch, 0, n, null);
 
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
+		if (count / 1000 != (count - n) / 1000 && debugPrint == 2) {
+			System.out.println(Thread.currentThread().getName() + " - "
+					+ count + " no of items have been received");
+		}
+	}
 
-					if (stopType.get() == 2 && ++bufFullCount > 5) {
-						assert buffer != this.extraBuffer : "ExtraBuffer is full. This shouldn't be the case.";
-						assert this.extraBuffer == null : "Extra buffer has already been created.";
-						this.extraBuffer = new ExtraBuffer();
-						extraBuffer.write(obj);
-						buffer = extraBuffer;
-						System.err
-								.println("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@");
-						System.err
-								.println(name
-										+ " finalReceive:Writing extra data in to extra buffer");
-						System.err
-								.println("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@");
-					}
-				}
+	/**
+	 * @return the number of items received so far.
+	 */
+	protected final int itemsReceived() {
+		return count;
+	}
 
-				if (count % 1000 == 0 && debugPrint == 2) {
-					System.out.println(Thread.currentThread().getName() + " - "
-							+ count + " no of items have been received");
-				}
+	private void debugReceived(int n, String prefix) throws IOException {
+		for (int i = 0; i < n; ++i) {
+			if (debugPrint == 3) {
+				System.out.println(Thread.currentThread().getName() + prefix
+						+ batch[i].toString());
+			}
 
-			} catch (ClassNotFoundException e) {
-				hasData = true;
-				e.printStackTrace();
-			} catch (OptionalDataException e) {
-				softClosed = true;
-				hasData = false;
-			} catch (IOException e) {
-				System.out
-						.println("finalReceive:Closing by IOException. Not by softClose.");
-				hasData = false;
+			if (writer != null) {
+				writer.write(batch[i].toString());
+				writer.write('\n');
 			}
-		} while (hasData);
+		}
 	}
 
 	/**
-	 * Just discards all data in the input buffers. This is useful if we don't
-	 * care about the data and just tuning a app for performance.
+	 * Once this channel is asked to stop, we have to receive everything the
+	 * sender sends until its soft close. Otherwise those data will be lost
+	 * forever. After stop(3) the received data are discarded, which is useful
+	 * if we don't care about the data and just tuning a app for performance.
 	 */
-	private void discardAll() {
-		System.out.println("Discarding input data...");
-		boolean hasData;
-		do {
+	private void finalReceive() {
+		assert stopType.get() > 0 : "Illegal stopType state";
+		if (stopType.get() == 3)
+			System.out.println("Discarding input data...");
+		while (!softClosed) {
 			try {
-				Object obj = tcpConnection.readObject();
-				hasData = true;
+				int n = receiveBatch();
+				if (n > 0)
+					deliver(n, " finalReceive - ");
 			} catch (ClassNotFoundException e) {
-				hasData = true;
 				e.printStackTrace();
-			} catch (OptionalDataException e) {
-				softClosed = true;
-				hasData = false;
 			} catch (IOException e) {
 				System.out
 						.println("finalReceive:Closing by IOException. Not by softClose.");
-				hasData = false;
+				break;
 			}
-		} while (hasData);
+		}
 	}
 
 	private void reConnect() {
@@ -347,6 +374,7 @@ public class TCPInputChannel implements BoundaryInputChannel {
 				System.out.println("TCPInputChannel : Reconnecting...");
 				this.tcpConnection.closeConnection();
 				tcpConnection = conProvider.getConnection(conInfo);
+				granted = received = 0;
 				return;
 			} catch (IOException e) {
 				try {
@@ -24,7 +24,10 @@ package edu.mit.streamjit.impl.distributed.node;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import com.google.common.collect.ImmutableList;
 
@@ -33,21 +36,31 @@ import edu.mit.streamjit.impl.distributed.common.BoundaryChannel.BoundaryOutputC
 import edu.mit.streamjit.impl.distributed.common.Connection;
 import edu.mit.streamjit.impl.distributed.common.TCPConnection.TCPConnectionInfo;
 import edu.mit.streamjit.impl.distributed.common.TCPConnection.TCPConnectionProvider;
+import edu.mit.streamjit.impl.distributed.common.WireFormat;
 
 /**
  * This is {@link BoundaryOutputChannel} over TCP. Reads data from the given
- * {@link Buffer} and send them over the TCP connection.
+ * {@link Buffer} and send them over the TCP connection in batches of up to
+ * {@link #BATCH_SIZE} items. See {@link Connection#writeBatch}.
  * <p>
- * Note: TCPOutputChannel acts as server when making TCP connection.
+ * Never sends more items than the {@link TCPInputChannel} at the other end has
+ * granted (see {@link WireFormat}), so sent items don't wait in the kernel's
+ * socket buffers for space in the receiver's buffer.
  * </p>
  * <p>
- * TODO: Need to aggressively optimise this class.
+ * Note: TCPOutputChannel acts as server when making TCP connection.
+ * </p>
  * 
  * @author Sumanan sumanan@mit.edu
  * @since May 29, 2013
  */
 public class TCPOutputChannel implements BoundaryOutputChannel {
 
+	/**
+	 * Maximum number of items read from the buffer and sent in one batch.
+	 */
+	public static final int BATCH_SIZE = 1024;
+
 	FileWriter writer;
 
 	private final int debugPrint;
@@ -70,6 +83,19 @@ public class TCPOutputChannel implements BoundaryOutputChannel {
 
 	protected ImmutableList<Object> unProcessedData;
 
+	private final Object[] batch;
+
+	/**
+	 * batch[batchStart, batchEnd) holds items read from the buffer but not yet
+	 * sent. If a write fails, they're resent after reconnecting.
+	 */
+	private int batchStart, batchEnd;
+
+	/**
+	 * Number of items the receiver has granted but we haven't sent yet.
+	 */
+	private int credits;
+
 	public TCPOutputChannel(Buffer buffer, TCPConnectionProvider conProvider,
 			TCPConnectionInfo conInfo, String bufferTokenName, int debugPrint) {
 		this.buffer = buffer;
@@ -80,6 +106,8 @@ public class TCPOutputChannel implements BoundaryOutputChannel {
 		this.name = "TCPOutputChannel - " + bufferTokenName;
 		this.debugPrint = debugPrint;
 		this.unProcessedData = null;
+		this.batch = new Object[BATCH_SIZE];
+		this.credits = 0;
 		count = 0;
 
 		FileWriter w = null;
@@ -99,6 +127,22 @@ public class TCPOutputChannel implements BoundaryOutputChannel {
 	public final void closeConnection() throws IOException {
 		// tcpConnection.closeConnection();
 		tcpConnection.softClose();
+		awaitEndOfSession();
+	}
+
+	/**
+	 * Reads the credits granted until the receiver acknowledges our soft
+	 * close, so the grants we didn't use aren't mistaken for grants of the next
+	 * session on this connection.
+	 */
+	private void awaitEndOfSession() {
+		try {
+			while (tcpConnection.readCredit() != WireFormat.END_OF_SESSION)
+				;
+		} catch (IOException e) {
+			// Connection is gone. Nothing left to discard.
+		}
+		credits = 0;
 	}
 
 	@Override
@@ -152,33 +196,93 @@ public class TCPOutputChannel implements BoundaryOutputChannel {
 	}
 
 	public final void sendData() {
-		while (this.buffer.size() > 0 && !stopFlag.get()) {
+		while (hasDataToSend() && !stopFlag.get()) {
+			int n = 0;
 			try {
-				Object obj = buffer.read();
-				tcpConnection.writeObject(obj);
-				count++;
-
-				if (debugPrint == 3) {
-					System.out.println(Thread.currentThread().getName() + " - "
-							+ obj.toString());
-				}
-
-				if (writer != null) {
-					writer.write(obj.toString());
-					writer.write('\n');
-				}
+				if (!acquireCredits(false))
+					return;
+				n = sendBatch(" - ");
 			} catch (IOException e) {
 				System.err
 						.println("TCP Output Channel. WriteObject exception.");
 				reConnect();
 			}
-			if (count % 1000 == 0 && debugPrint == 2) {
+			if (count / 1000 != (count - n) / 1000 && debugPrint == 2) {
 				System.out.println(Thread.currentThread().getName() + " - "
 						+ count + " items have been sent");
 			}
 		}
 	}
 
+	private boolean hasDataToSend() {
+		return batchStart < batchEnd || buffer.size() > 0;
+	}
+
+	/**
+	 * Sends as many items of the pending batch as we have credits for,
+	 * refilling the batch from the buffer first if it's empty. Items are only
+	 * removed from the batch once written, so if the write fails they're sent
+	 * again.
+	 * 
+	 * @return the number of items sent.
+	 * @throws IOException
+	 */
+	private int sendBatch(String debugPrefix) throws IOException {
+		if (batchStart == batchEnd) {
+			batchStart = 0;
+			batchEnd = buffer.read(batch, 0, Math.min(credits, batch.length));
+		}
+		int from = batchStart;
+		int n = Math.min(credits, batchEnd - from);
+		tcpConnection.writeBatch(batch, from, n);
+		batchStart += n;
+		credits -= n;
+		count += n;
+		debugSent(from, n, debugPrefix);
+		Arrays.fill(batch, from, from + n, null);
+		return n;
+	}
+
+	/**
+	 * Adds the credits the receiver has granted since the last call.
+	 * 
+	 * @param block
+	 *            if true, blocks until at least one credit is available.
+	 *            Otherwise waits briefly and gives up so that the caller can
+	 *            recheck the {@link #stopFlag}.
+	 * @return true iff at least one credit is available.
+	 * @throws IOException
+	 */
+	private boolean acquireCredits(boolean block) throws IOException {
+		int c;
+		while (credits < batch.length
+				&& (c = tcpConnection.pollCredit()) > 0)
+			credits += c;
+		if (credits > 0)
+			return true;
+		if (block) {
+			credits += tcpConnection.readCredit();
+			return credits > 0;
+		}
+		// The receiver's buffer is full. Wait for it to drain.
+		LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		return false;
+	}
+
+	private void debugSent(int from, int n, String prefix) throws IOException {
+		for (int i = from; i < from + n; ++i) {
+			if (debugPrint == 3) {
+				System.out.println(Thread.currentThread().getName() + prefix
+						+ batch[i].toString());
+			}
+
+			if (writer != null) {
+				writer.write(batch[i].toString());
+				writer.write('\n');
+			}
+		}
+	}
+
 	@Override
 	public final int getOtherNodeID() {
 		return 0;
@@ -198,26 +302,17 @@ public class TCPOutputChannel implements BoundaryOutputChannel {
 	 * configurations. Shouldn't be called when autotuner tunes.
 	 */
 	private void finalSend() {
-		while (this.buffer.size() > 0) {
+		while (hasDataToSend()) {
+			int n = 0;
 			try {
-				Object o = buffer.read();
-				tcpConnection.writeObject(o);
-				count++;
-
-				if (debugPrint == 3) {
-					System.out.println(Thread.currentThread().getName()
-							+ " FinalSend - " + o.toString());
-				}
-
-				if (writer != null) {
-					writer.write(o.toString());
-					writer.write('\n');
-				}
-
+				acquireCredits(true);
+				n = sendBatch(" FinalSend - ");
 			} catch (IOException e) {
+				// The unsent items become unprocessed data.
 				System.err.println("TCP Output Channel. finalSend exception.");
+				return;
 			}
-			if (count % 1000 == 0 && debugPrint == 2) {
+			if (count / 1000 != (count - n) / 1000 && debugPrint == 2) {
 				System.out.println(Thread.currentThread().getName()
 						+ " FinalSend - " + count
 						+ " no of items have been sent");
@@ -226,6 +321,7 @@ public class TCPOutputChannel implements BoundaryOutputChannel {
 	}
 
 	private void reConnect() {
+		credits = 0;
 		try {
 			this.tcpConnection.closeConnection();
 			while (!stopFlag.get()) {
@@ -252,8 +348,13 @@ public class TCPOutputChannel implements BoundaryOutputChannel {
 	// TODO: Huge data copying is happening in this code twice. Need to optimise
 	// this.
 	protected void fillUnprocessedData() {
-		Object[] obArray = new Object[buffer.size()];
-		buffer.readAll(obArray);
+		// Items in the pending batch came out of the buffer first.
+		int pending = batchEnd - batchStart;
+		Object[] obArray = new Object[pending + buffer.size()];
+		System.arraycopy(batch, batchStart, obArray, 0, pending);
+		Arrays.fill(batch, batchStart, batchEnd, null);
+		batchStart = batchEnd = 0;
+		buffer.readAll(obArray, pending);
 		assert buffer.size() == 0 : String.format(
 				"buffer size is %d. But 0 is expected", buffer.size());
 		this.unProcessedData = ImmutableList.copyOf(obArray);
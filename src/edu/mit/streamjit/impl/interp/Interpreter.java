@@ -34,10 +34,12 @@ import edu.mit.streamjit.api.Worker;
 import edu.mit.streamjit.impl.blob.Blob;
 import edu.mit.streamjit.impl.blob.BlobFactory;
 import edu.mit.streamjit.impl.blob.Buffer;
+import edu.mit.streamjit.impl.blob.Buffers;
 import edu.mit.streamjit.impl.blob.DrainData;
 import edu.mit.streamjit.impl.common.Configuration;
 import edu.mit.streamjit.impl.common.Configuration.SwitchParameter;
 import edu.mit.streamjit.impl.common.IOInfo;
+import edu.mit.streamjit.impl.common.IdleStrategy;
 import edu.mit.streamjit.impl.common.MessageConstraint;
 import edu.mit.streamjit.impl.common.Workers;
 import edu.mit.streamjit.util.ReflectionUtils;
@@ -54,6 +56,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 /**
  * An Interpreter interprets a section of a stream graph.  An Interpreter's
@@ -103,6 +106,11 @@ public class Interpreter implements Blob {
 	 * can't fire a source.
 	 */
 	private ImmutableMap<Channel<?>, Buffer> inputBuffers, outputBuffers;
+	/**
+	 * Supplies the IdleStrategy for each core's Runnable, used when
+	 * interpret() can't fire anything.
+	 */
+	private final Supplier<IdleStrategy> idleStrategy;
 	public Interpreter(Iterable<Worker<?, ?>> workersIter, Iterable<MessageConstraint> constraintsIter, Configuration config) {
 		this(workersIter, constraintsIter, config, null);
 	}
@@ -110,6 +118,7 @@ public class Interpreter implements Blob {
 		this.workers = ImmutableSet.copyOf(workersIter);
 		this.sinks = Workers.getBottommostWorkers(workers);
 		this.config = config;
+		this.idleStrategy = IdleStrategy.fromConfiguration(config);
 
 		//Validate constraints.
 		for (MessageConstraint mc : constraintsIter)
@@ -246,13 +255,33 @@ public class Interpreter implements Blob {
 	@Override
 	public Runnable getCoreCode(int core) {
 		checkElementIndex(core, getCoreCount());
+		final IdleStrategy idle = idleStrategy.get();
 		return new Runnable() {
+			/**
+			 * The thread registered for wakeups, or null.  Under a
+			 * SharedCoreExecutor this core code moves between pool threads,
+			 * so we re-register whenever it runs on a different one.
+			 */
+			private Thread waiter = null;
 			@Override
 			public void run() {
 				Runnable callback = Interpreter.this.callback.get();
-				if (callback == null)
-					interpret();
-				else {
+				if (callback == null) {
+					if (interpret()) {
+						idle.reset();
+						if (waiter != null)
+							setWaiting(null);
+						waiter = null;
+					} else {
+						//Ask to be woken when our inputs get data or our
+						//outputs get space, then back off.
+						Thread current = Thread.currentThread();
+						if (waiter != current)
+							setWaiting(current);
+						waiter = current;
+						idle.idle();
+					}
+				} else {
 					//Do any remaining work.
 					interpret();
 					//Run the callback (which may be empty).
@@ -264,6 +293,13 @@ public class Interpreter implements Blob {
 		};
 	}
 
+	private void setWaiting(Thread thread) {
+		for (Buffer b : inputBuffers.values())
+			Buffers.wakeReaderOnWrite(b, thread);
+		for (Buffer b : outputBuffers.values())
+			Buffers.wakeWriterOnRead(b, thread);
+	}
+
 	@Override
 	public void drain(Runnable callback) {
 		//Set the callback; the core code will run it after its next interpret().
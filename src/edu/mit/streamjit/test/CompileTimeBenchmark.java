@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.test;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Longs;
+import edu.mit.streamjit.api.OneToOneElement;
+import edu.mit.streamjit.api.Worker;
+import edu.mit.streamjit.impl.common.Configuration;
+import edu.mit.streamjit.impl.common.ConnectWorkersVisitor;
+import edu.mit.streamjit.impl.common.Workers;
+import edu.mit.streamjit.impl.compiler.Schedule;
+import edu.mit.streamjit.impl.compiler2.ActorArchetype;
+import edu.mit.streamjit.impl.compiler2.Compiler2BlobFactory;
+import edu.mit.streamjit.impl.compiler2.Compiler2BlobHost;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Compiler2 compile time (graph to Blob, without running it) for
+ * large benchmarks, to catch compile-time regressions.  Reports the median
+ * of several compiles after warmup, both cold (with the generated-code and
+ * schedule caches cleared before each compile, as for a first compile) and
+ * warm (reusing the cached results, as when the tuner revisits a graph),
+ * with the median time of each compiler phase (see
+ * {@link Compiler2BlobHost#getCompileTimes()}) to show where the time goes.
+ *
+ * Usage: CompileTimeBenchmark [cores multiplier [benchmark...]]
+ * (defaults: 4 cores, multiplier 128, DES2 DCT2 MPEG2)
+ * @since 10/17/2026
+ */
+public final class CompileTimeBenchmark {
+	private static final int WARMUP_COMPILES = 3, TIMED_COMPILES = 7;
+	private CompileTimeBenchmark() {}
+
+	public static void main(String[] args) {
+		if (args.length == 1) {
+			System.err.println("Usage: CompileTimeBenchmark [cores multiplier [benchmark...]]");
+			System.exit(1);
+		}
+		int cores = args.length >= 2 ? Integer.parseInt(args[0]) : 4;
+		int multiplier = args.length >= 2 ? Integer.parseInt(args[1]) : 128;
+		List<String> names = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : ImmutableList.of("DES2", "DCT2", "MPEG2");
+		for (String name : names) {
+			Benchmark benchmark = Benchmarker.getBenchmarkByName(name);
+			for (int i = 0; i < WARMUP_COMPILES; ++i)
+				compile(benchmark, cores, multiplier);
+			List<Timing> cold = new ArrayList<>(), warm = new ArrayList<>();
+			for (int i = 0; i < TIMED_COMPILES; ++i) {
+				ActorArchetype.clearGeneratedCodeCache();
+				Schedule.clearSolutionCache();
+				cold.add(compile(benchmark, cores, multiplier));
+			}
+			for (int i = 0; i < TIMED_COMPILES; ++i)
+				warm.add(compile(benchmark, cores, multiplier));
+			report(name, "cold", cores, multiplier, cold);
+			report(name, "warm", cores, multiplier, warm);
+		}
+	}
+
+	private static void report(String name, String kind, int cores, int multiplier, List<Timing> timings) {
+		long[] millis = new long[timings.size()];
+		for (int i = 0; i < millis.length; ++i)
+			millis[i] = timings.get(i).totalMillis;
+		Arrays.sort(millis);
+		System.out.format("%s: cores %d, multiplier %d, %s caches: median %d ms (min %d, max %d)%n",
+				name, cores, multiplier, kind, millis[millis.length/2], millis[0], Longs.max(millis));
+		//Every compile runs the same phases in the same order.
+		for (String phase : timings.get(0).phaseNanos.keySet()) {
+			long[] nanos = new long[timings.size()];
+			for (int i = 0; i < nanos.length; ++i)
+				nanos[i] = timings.get(i).phaseNanos.get(phase);
+			Arrays.sort(nanos);
+			System.out.format("  %s: median %.1f ms%n", phase, nanos[nanos.length/2] / 1e6);
+		}
+	}
+
+	private static final class Timing {
+		private final long totalMillis;
+		private final ImmutableMap<String, Long> phaseNanos;
+		private Timing(long totalMillis, ImmutableMap<String, Long> phaseNanos) {
+			this.totalMillis = totalMillis;
+			this.phaseNanos = phaseNanos;
+		}
+	}
+
+	private static Timing compile(Benchmark benchmark, int cores, int multiplier) {
+		OneToOneElement<Object, Object> stream = benchmark.instantiate();
+		ConnectWorkersVisitor cwv = new ConnectWorkersVisitor();
+		stream.visit(cwv);
+		ImmutableSet<Worker<?, ?>> workers = Workers.getAllWorkersInGraph(cwv.getSource());
+		Compiler2BlobFactory factory = new Compiler2BlobFactory();
+		Configuration.Builder builder = Configuration.builder(factory.getDefaultConfiguration(workers));
+		Configuration.IntParameter multiplierParam = (Configuration.IntParameter)builder.removeParameter("multiplier");
+		builder.addParameter(new Configuration.IntParameter("multiplier", multiplierParam.getRange(), multiplier));
+		Configuration config = builder.build();
+
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		Compiler2BlobHost blob = (Compiler2BlobHost)factory.makeBlob(workers, config, cores, null);
+		return new Timing(stopwatch.elapsed(TimeUnit.MILLISECONDS), blob.getCompileTimes());
+	}
+}
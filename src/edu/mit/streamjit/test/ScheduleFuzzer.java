@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2013-2015 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.test;
+
+import edu.mit.streamjit.impl.compiler.Schedule;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks Schedule's ILP-free solvers against a brute-force search.  Generates
+ * random rate-balanced systems of the two forms Schedule solves without the
+ * ILP solver (all buffer-exactly-zero steady states, and all buffer-at-least
+ * init schedules where no firing reduces the objective), schedules them,
+ * checks the schedule satisfies every constraint, and checks it's as good,
+ * under the ILP's objective, as the best solution in a grid around the
+ * origin.  Like StreamFuzzer, this is a standalone tool rather than a sanity
+ * benchmark, since it exercises the scheduler without compiling a stream.
+ *
+ * Usage: ScheduleFuzzer [systems [seed]]
+ * (defaults: 3000 systems, seed 0)
+ * @since 10/17/2026
+ */
+public final class ScheduleFuzzer {
+	private ScheduleFuzzer() {}
+
+	public static void main(String[] args) {
+		int systems = args.length >= 1 ? Integer.parseInt(args[0]) : 3000;
+		long seed = args.length >= 2 ? Long.parseLong(args[1]) : 0;
+		Random random = new Random(seed);
+		for (int i = 0; i < systems; ++i) {
+			RandomSystem system;
+			//Other init systems go to the ILP solver.
+			do
+				system = new RandomSystem(random, i % 2 == 0);
+			while (!system.steadyState && system.firingReducesObjective());
+			system.check();
+		}
+		System.out.format("%d systems matched the brute-force optimum%n", systems);
+	}
+
+	private static final class Edge {
+		private final int upstream, downstream, push, pop, delta;
+		private Edge(int upstream, int downstream, int push, int pop, int delta) {
+			this.upstream = upstream;
+			this.downstream = downstream;
+			this.push = push;
+			this.pop = pop;
+			this.delta = delta;
+		}
+	}
+
+	/**
+	 * A random tree of things (so its rates are always consistent), with
+	 * random rates, execution constraints and costs.
+	 */
+	private static final class RandomSystem {
+		private final boolean steadyState;
+		private final int things, fireCost, excessBufferCost;
+		private final int[] minExecutions;
+		private final List<Edge> edges = new ArrayList<>();
+		private RandomSystem(Random random, boolean steadyState) {
+			this.steadyState = steadyState;
+			this.things = 2 + random.nextInt(3);
+			this.fireCost = random.nextInt(3);
+			this.excessBufferCost = random.nextInt(4);
+			this.minExecutions = new int[things];
+			for (int t = 0; t < things; ++t)
+				minExecutions[t] = random.nextInt(3) == 0 ? random.nextInt(4) : 0;
+			for (int t = 1; t < things; ++t) {
+				int other = random.nextInt(t);
+				boolean down = random.nextBoolean();
+				edges.add(new Edge(down ? other : t, down ? t : other,
+						1 + random.nextInt(3), 1 + random.nextInt(3),
+						steadyState ? 0 : random.nextInt(7) - 2));
+			}
+		}
+
+		private Schedule<Integer> schedule() {
+			Schedule.Builder<Integer> builder = Schedule.builder();
+			for (int t = 0; t < things; ++t)
+				builder.add(t);
+			for (Edge e : edges) {
+				Schedule.Builder<Integer>.BufferingConstraintBuilder c = builder.connect(e.upstream, e.downstream)
+						.push(e.push).pop(e.pop).peek(e.pop);
+				if (steadyState)
+					c.bufferExactly(e.delta);
+				else
+					c.bufferAtLeast(e.delta);
+			}
+			for (int t = 0; t < things; ++t)
+				if (minExecutions[t] > 0)
+					builder.executeAtLeast(t, minExecutions[t]);
+			return builder.costs(fireCost, excessBufferCost).build();
+		}
+
+		private boolean feasible(long[] x) {
+			boolean anyFires = false;
+			for (int t = 0; t < things; ++t) {
+				if (x[t] < minExecutions[t])
+					return false;
+				anyFires |= x[t] > 0;
+			}
+			if (!anyFires)
+				return false;
+			for (Edge e : edges) {
+				long buffered = e.push * x[e.upstream] - e.pop * x[e.downstream];
+				if (steadyState ? buffered != e.delta : buffered < e.delta)
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Returns true if firing some thing once reduces the objective.
+		 */
+		private boolean firingReducesObjective() {
+			long[] cost = new long[things];
+			Arrays.fill(cost, fireCost);
+			for (Edge e : edges) {
+				cost[e.upstream] += excessBufferCost * e.push;
+				cost[e.downstream] -= excessBufferCost * e.pop;
+			}
+			return Arrays.stream(cost).anyMatch(c -> c < 0);
+		}
+
+		/**
+		 * The ILP's objective: each firing costs fireCost, and each item
+		 * left in a buffer costs excessBufferCost.
+		 */
+		private long objective(long[] x) {
+			long sum = 0;
+			for (int t = 0; t < things; ++t)
+				sum += fireCost * x[t];
+			for (Edge e : edges)
+				sum += excessBufferCost * (e.push * x[e.upstream] - e.pop * x[e.downstream]);
+			return sum;
+		}
+
+		/**
+		 * Schedules this system and checks the schedule is feasible and
+		 * optimal.
+		 */
+		private void check() {
+			Schedule<Integer> schedule = schedule();
+			long[] solution = new long[things];
+			for (int t = 0; t < things; ++t)
+				solution[t] = schedule.getExecutions(t);
+			if (!feasible(solution))
+				throw new AssertionError("infeasible schedule " + Arrays.toString(solution) + " for " + this);
+
+			//Keep the grid small enough to search quickly; the optimum of
+			//systems this small is well inside it.
+			int bound = things == 2 ? 60 : things == 3 ? 30 : 16;
+			long[] x = new long[things];
+			long best = Long.MAX_VALUE;
+			long[] bestX = null;
+			while (true) {
+				if (feasible(x) && objective(x) < best) {
+					best = objective(x);
+					bestX = x.clone();
+				}
+				int t = 0;
+				while (t < things && x[t] == bound)
+					x[t++] = 0;
+				if (t == things)
+					break;
+				++x[t];
+			}
+			if (bestX != null && objective(solution) > best)
+				throw new AssertionError(String.format("schedule %s (objective %d) worse than %s (objective %d) for %s",
+						Arrays.toString(solution), objective(solution), Arrays.toString(bestX), best, this));
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(steadyState ? "steady state" : "init");
+			sb.append(String.format(" system, costs %d/%d, min executions %s:", fireCost, excessBufferCost, Arrays.toString(minExecutions)));
+			for (Edge e : edges)
+				sb.append(String.format(" %d (push %d) -> %d (pop %d) %s %d;",
+						e.upstream, e.push, e.downstream, e.pop, steadyState ? "==" : ">=", e.delta));
+			return sb.toString();
+		}
+	}
+}